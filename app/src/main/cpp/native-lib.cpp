@@ -27,6 +27,8 @@ limitations under the License.
 #include <string>
 #include <android/log.h>
 #include <ctime>
+#include <climits>
+#include <cmath>
 #include <opencv2/core/core_c.h>
 //#include <opencv2/features2d.hpp>
 #include <opencv2/imgcodecs.hpp>
@@ -68,6 +70,28 @@ struct timespec& end)
     LOGD("%s: %lf", prefix, milliseconds);
 }
 
+// bwareaopen: remove the 8-connected components with at most max_area pixels from a CV_8U mask in one labelling pass
+void removeSmallComponents(Mat &bw, double max_area)
+{
+    Mat labels, stats, centroids;
+    int num = connectedComponentsWithStats(bw, labels, stats, centroids, 8, CV_32S);
+
+    vector<uchar> keep(num, 0);
+    for (int i = 1; i < num; i++) {
+        keep[i] = stats.at<int>(i, CC_STAT_AREA) > max_area;
+    }
+
+    for (int r = 0; r < bw.rows; r++) {
+        const int *label_row = labels.ptr<int>(r);
+        uchar *bw_row = bw.ptr<uchar>(r);
+        for (int c = 0; c < bw.cols; c++) {
+            if (!keep[label_row[c]]) {
+                bw_row[c] = 0;
+            }
+        }
+    }
+}
+
 JNIEXPORT jint JNICALL Java_gov_nih_nlm_malaria_1screener_imageProcessing_ThickSmearProcessor_processThickImage(
         JNIEnv *env, jobject, jlong mat, jlong result,
         jintArray intJNIArray_X, jintArray intJNIArray_Y, jlong extra) {
@@ -134,18 +158,7 @@ JNIEXPORT jint JNICALL Java_gov_nih_nlm_malaria_1screener_imageProcessing_ThickS
     mask.release();
 
     // bwareaopen
-    Mat WBC_clone = WBC_mask.clone();
-    vector<vector<Point> > contours1;
-    findContours(WBC_clone, contours1, RETR_LIST, CHAIN_APPROX_NONE);
-    WBC_clone.release();
-
-    for (int i = 0; i < contours1.size(); i++) {
-        double area = contourArea(contours1[i]);
-
-        if (area <= (1200 / (scale_factor*scale_factor))) {
-            drawContours(WBC_mask, contours1, i, (0), -1);
-        }
-    }
+    removeSmallComponents(WBC_mask, 1200 / (scale_factor*scale_factor));
 
     //imdilate
     Mat kernel_9x9 = getStructuringElement(MORPH_ELLIPSE, Size(9, 9));
@@ -369,6 +382,655 @@ JNIEXPORT jint JNICALL Java_gov_nih_nlm_malaria_1screener_imageProcessing_ThickS
 
 }
 
+//------------------------------------------- thin smear -------------------------------------------
+// port of MarkerBasedWatershed & SegmentWatershed, keep the two in step. Masks are CV_8U with values 0 & 1.
+
+// dst = src (cmpop) value ? 1 : 0
+static void compareBinary(const Mat &src, double value, int cmpop, Mat &dst)
+{
+    compare(src, Scalar(value), dst, cmpop);
+    threshold(dst, dst, 0, 1, THRESH_BINARY);
+}
+
+// dst = src != 0 ? 0 : 1
+static void invertBinary(const Mat &src, Mat &dst)
+{
+    threshold(src, dst, 0, 1, THRESH_BINARY_INV);
+}
+
+static void fillContours(Mat &bw, const vector<vector<Point> > &contours, Point offset = Point())
+{
+    for (int i = 0; i < contours.size(); i++) {
+        drawContours(bw, contours, i, Scalar(1), -1, LINE_8, noArray(), INT_MAX, offset);
+    }
+}
+
+static bool canPropagate(const double *J, const double *I, int q, double v)
+{
+    return J[q] < v && J[q] < I[q];
+}
+
+// grayscale reconstruction by dilation, 8-connectivity, hybrid algorithm of MorphReconstruct.java.
+// J is the marker on input and the result on output, J & I are continuous CV_64F.
+static void morphReconstruct(Mat &J_mat, const Mat &I_mat)
+{
+    int rows = J_mat.rows;
+    int cols = J_mat.cols;
+    int length = rows * cols;
+
+    double *J = J_mat.ptr<double>();
+    const double *I = I_mat.ptr<double>();
+
+    for (int p = 0; p < length; p++) {
+        if (J[p] > I[p]) {
+            J[p] = I[p];
+        }
+    }
+
+    // raster scan, causal neighbors
+    for (int r = 0; r < rows; r++) {
+        for (int c = 0; c < cols; c++) {
+            int p = r * cols + c;
+            double max = J[p];
+
+            if (r > 0) {
+                int up = p - cols;
+                if (c > 0 && J[up - 1] > max) max = J[up - 1];
+                if (J[up] > max) max = J[up];
+                if (c < cols - 1 && J[up + 1] > max) max = J[up + 1];
+            }
+            if (c > 0 && J[p - 1] > max) max = J[p - 1];
+
+            J[p] = max < I[p] ? max : I[p];
+        }
+    }
+
+    vector<int> fifo;
+    fifo.reserve(length / 16 + 16);
+
+    // anti-raster scan, anti-causal neighbors
+    for (int r = rows - 1; r >= 0; r--) {
+        for (int c = cols - 1; c >= 0; c--) {
+            int p = r * cols + c;
+            double max = J[p];
+
+            if (c < cols - 1 && J[p + 1] > max) max = J[p + 1];
+            if (r < rows - 1) {
+                int down = p + cols;
+                if (c > 0 && J[down - 1] > max) max = J[down - 1];
+                if (J[down] > max) max = J[down];
+                if (c < cols - 1 && J[down + 1] > max) max = J[down + 1];
+            }
+
+            double v = max < I[p] ? max : I[p];
+            J[p] = v;
+
+            if ((c < cols - 1 && canPropagate(J, I, p + 1, v))
+                || (r < rows - 1 && ((c > 0 && canPropagate(J, I, p + cols - 1, v))
+                                     || canPropagate(J, I, p + cols, v)
+                                     || (c < cols - 1 && canPropagate(J, I, p + cols + 1, v))))) {
+                fifo.push_back(p);
+            }
+        }
+    }
+
+    // propagation, fifo grows at the back and is read from head
+    for (size_t head = 0; head < fifo.size(); head++) {
+        int p = fifo[head];
+        int r = p / cols;
+        int c = p - r * cols;
+        double v = J[p];
+
+        for (int dr = -1; dr <= 1; dr++) {
+            int rr = r + dr;
+            if (rr < 0 || rr >= rows) {
+                continue;
+            }
+            for (int dc = -1; dc <= 1; dc++) {
+                int cc = c + dc;
+                if ((dr == 0 && dc == 0) || cc < 0 || cc >= cols) {
+                    continue;
+                }
+                int q = rr * cols + cc;
+                if (J[q] < v && I[q] != J[q]) {
+                    J[q] = v < I[q] ? v : I[q];
+                    fifo.push_back(q);
+                }
+            }
+        }
+    }
+}
+
+// regional minima, 8-connectivity, same as RegionalMinima.java. im is continuous CV_32F, labels are CV_32F 1..n
+static int regionalMinima(const Mat &im_mat, Mat &labels_mat)
+{
+    int rows = im_mat.rows;
+    int cols = im_mat.cols;
+    int length = rows * cols;
+
+    const float *im = im_mat.ptr<float>();
+    labels_mat = Mat::zeros(rows, cols, CV_32FC1);
+    float *labels = labels_mat.ptr<float>();
+
+    vector<uchar> visited(length, 0);
+    vector<int> plateau(length);
+    int count = 0;
+
+    for (int p = 0; p < length; p++) {
+
+        if (visited[p] || im[p] == 0) {
+            continue;
+        }
+
+        float value = im[p];
+        bool isMin = true;
+
+        // flood fill the plateau of p
+        int size = 0;
+        plateau[size++] = p;
+        visited[p] = 1;
+
+        for (int head = 0; head < size; head++) {
+            int q = plateau[head];
+            int r = q / cols;
+            int c = q - r * cols;
+
+            for (int dr = -1; dr <= 1; dr++) {
+                int rr = r + dr;
+                if (rr < 0 || rr >= rows) {
+                    continue;
+                }
+                for (int dc = -1; dc <= 1; dc++) {
+                    int cc = c + dc;
+                    if ((dr == 0 && dc == 0) || cc < 0 || cc >= cols) {
+                        continue;
+                    }
+                    int n = rr * cols + cc;
+                    if (im[n] < value) {
+                        isMin = false;
+                    } else if (im[n] == value && !visited[n]) {
+                        visited[n] = 1;
+                        plateau[size++] = n;
+                    }
+                }
+            }
+        }
+
+        if (isMin) {
+            count++;
+            for (int i = 0; i < size; i++) {
+                labels[plateau[i]] = count;
+            }
+        }
+    }
+
+    return count;
+}
+
+// clip the darkest min_percent and brightest (1 - max_percent) pixels, same bins & retake rule as Histogram.runHistogram_8bit
+static bool stretchHist8bit(const Mat &green, double min_percent, double max_percent, Mat &stretched)
+{
+    int grayHist[256] = {0};
+    for (int r = 0; r < green.rows; r++) {
+        const uchar *row = green.ptr<uchar>(r);
+        for (int c = 0; c < green.cols; c++) {
+            grayHist[row[c]]++;
+        }
+    }
 
+    int minVal = 0;
+    while (minVal < 255 && grayHist[minVal] == 0) {
+        minVal++;
+    }
+    int maxVal = 255;
+    while (maxVal > 0 && grayHist[maxVal] == 0) {
+        maxVal--;
+    }
+
+    double range = (double) (maxVal - minVal) / 256;
+
+    double hist[256] = {0};
+    for (int v = 0; v < 256; v++) {
+        if (grayHist[v] == 0) {
+            continue;
+        }
+
+        int h;
+        if (range == 0) {
+            h = v == 0 ? 0 : INT_MAX; // same as (int) of NaN & Infinity in Java
+        } else {
+            h = (int) (v / range);
+        }
+
+        if (h == 256) {
+            hist[255] += grayHist[v];
+        } else if (h > 256) {
+            return false;
+        } else {
+            hist[h] += grayHist[v];
+        }
+    }
+
+    // normalized cumulative histogram
+    double cumHist[256];
+    double temp = 0;
+    for (int i = 0; i < 256; i++) {
+        temp = temp + hist[i];
+        cumHist[i] = temp;
+    }
+    for (int i = 0; i < 256; i++) {
+        cumHist[i] = cumHist[i] / temp;
+    }
+
+    int lower = 0;
+    int upper = 0;
+    for (int i = 0; i < 256; i++) {
+        if (cumHist[i] >= min_percent) {
+            lower = i;
+            break;
+        }
+    }
+    for (int i = 0; i < 256; i++) {
+        if (cumHist[i] >= max_percent) {
+            upper = i;
+            break;
+        }
+    }
+
+    // bin centers of the lower and upper bound
+    double dist = (double) (maxVal - minVal) / (256 * 2);
+    float center_lower = (float) ((maxVal - dist) - dist * 2 * (255 - lower));
+    float center_upper = (float) ((maxVal - dist) - dist * 2 * (255 - upper));
+
+    Mat lut(1, 256, CV_8UC1);
+    for (int v = 0; v < 256; v++) {
+        float value = v;
+        if (value < center_lower) {
+            value = center_lower;
+        } else if (value > center_upper) {
+            value = center_upper;
+        }
+        lut.at<uchar>(v) = saturate_cast<uchar>(value);
+    }
+
+    LUT(green, lut, stretched);
+
+    return true;
 }
 
+// Otsu threshold of a [0, 1] image inside mask, same float arithmetic as OtsuThreshold.java
+static double otsuThreshold(const Mat &image, const Mat &mask)
+{
+    int histData[256] = {0};
+
+    Mat newImage;
+    normalize(image, newImage, 0, 255, NORM_MINMAX);
+
+    int total = 0;
+    for (int r = 0; r < newImage.rows; r++) {
+        const double *im_row = newImage.ptr<double>(r);
+        const uchar *mask_row = mask.ptr<uchar>(r);
+        for (int c = 0; c < newImage.cols; c++) {
+            if (mask_row[c] == 1) {
+                histData[(int) im_row[c]]++;
+                total++;
+            }
+        }
+    }
+
+    float sum = 0;
+    for (int t = 0; t < 256; t++) sum += t * histData[t];
+
+    float sumB = 0;
+    int wB = 0;
+    int wF = 0;
+
+    float varMax = 0;
+    double th = 0;
+
+    for (int t = 0; t < 256; t++) {
+        wB += histData[t];
+        if (wB == 0) continue;
+
+        wF = total - wB;
+        if (wF == 0) break;
+
+        sumB += (float) (t * histData[t]);
+
+        float mB = sumB / wB;
+        float mF = (sum - sumB) / wF;
+
+        float varBetween = (float) wB * (float) wF * (mB - mF) * (mB - mF);
+
+        if (varBetween > varMax) {
+            varMax = varBetween;
+            th = t;
+        }
+    }
+
+    return th;
+}
+
+// pixel-wise minimum of the LoG responses for sigma 5, 6 & 9, CV_32F, same kernels as LoGFilterBank.java
+static void logFilterMin(const Mat &im, Mat &Lmin)
+{
+    const int sigmas[] = {5, 6, 9};
+
+    Mat im32F;
+    im.convertTo(im32F, CV_32F);
+
+    for (int s = 0; s < 3; s++) {
+        int sigma = sigmas[s];
+
+        int G_length = (int) floor((sigma * 6 + 1) / 2);
+        int length = sigma * 3 * 2 + 1;
+
+        double sigma2 = pow(sigma, 2);
+        double sigma4 = pow(sigma, 4);
+        double D = sqrt(2 * CV_PI) * sigma;
+
+        Mat G(1, length, CV_32FC1);
+        Mat dGxx(1, length, CV_32FC1);
+        for (int i = 0; i < length; i++) {
+            double x = i - G_length;
+            double x2 = pow(x, 2);
+
+            double gauss = exp(x2 / sigma2 * -0.5) / D;
+            G.at<float>(i) = (float) gauss;
+            dGxx.at<float>(i) = (float) ((x2 - sigma2) / sigma4 * gauss);
+        }
+
+        // same passes & border modes as LoGFilterBank.java: the second Gaussian smoothing is BORDER_REFLECT_101 along y
+        Mat one = Mat::ones(1, 1, CV_32FC1);
+        Mat Ixx, Iyy;
+        sepFilter2D(im32F, Ixx, CV_32F, dGxx, G, Point(-1, -1), 0, BORDER_CONSTANT);
+        sepFilter2D(im32F, Iyy, CV_32F, G, dGxx, Point(-1, -1), 0, BORDER_CONSTANT);
+        add(Ixx, Iyy, Ixx);
+        sepFilter2D(Ixx, Ixx, CV_32F, one, G, Point(-1, -1), 0, BORDER_REFLECT_101);
+        sepFilter2D(Ixx, Ixx, CV_32F, G, one, Point(-1, -1), 0, BORDER_CONSTANT);
+
+        // borders of width 3 * sigma to 0
+        int w = min(length / 2, min(Ixx.rows, Ixx.cols));
+        Ixx(Rect(0, 0, w, Ixx.rows)).setTo(0);
+        Ixx(Rect(Ixx.cols - w, 0, w, Ixx.rows)).setTo(0);
+        Ixx(Rect(0, 0, Ixx.cols, w)).setTo(0);
+        Ixx(Rect(0, Ixx.rows - w, Ixx.cols, w)).setTo(0);
+
+        if (s == 0) {
+            Lmin = Ixx;
+        } else {
+            min(Lmin, Ixx, Lmin);
+        }
+    }
+}
+
+// WBC mask of the whole image, CV_8U 0 & 1. mask_border is eroded inside the bounding box of the field of view,
+// the same side effect as in MarkerBasedWatershed.
+static bool detectWBC(const Mat &green, Mat &mask_border, float resizeValue, Mat &WBC_out)
+{
+    Mat mask_border_clone = mask_border.clone();
+    vector<vector<Point> > contours;
+    findContours(mask_border_clone, contours, RETR_LIST, CHAIN_APPROX_NONE);
+    mask_border_clone.release();
+
+    if (contours.empty()) {
+        return false;
+    }
+
+    double maxArea = 0;
+    int maxAreaIdx = 0;
+    if (contours.size() > 1) {
+        for (int i = 0; i < contours.size(); i++) {
+            double area = contourArea(contours[i]);
+            if (area > maxArea) {
+                maxArea = area;
+                maxAreaIdx = i;
+            }
+        }
+    }
+
+    Rect rect = boundingRect(contours[maxAreaIdx]);
+    contours.clear();
+    Mat cropped = mask_border(rect);
+    Mat image_cropped = green(rect);
+
+    Mat im_d, im_e, R;
+    Mat kernel3x3 = getStructuringElement(MORPH_RECT, Size(3, 3));
+    dilate(image_cropped, im_d, kernel3x3);
+    erode(image_cropped, im_e, kernel3x3);
+    subtract(im_d, im_e, R);
+
+    erode(cropped, cropped, getStructuringElement(MORPH_ELLIPSE, Size(4, 4)));
+    multiply(R, cropped, R);
+
+    // R where R > 20
+    Mat R_res;
+    threshold(R, R_res, 20, 0, THRESH_TOZERO);
+
+    double value = 1.7 * sum(R_res)[0] / countNonZero(R_res);
+    Mat WBC_mask;
+    compareBinary(R, rint(value), CMP_GT, WBC_mask);
+
+    //imdilate
+    dilate(WBC_mask, WBC_mask, getStructuringElement(MORPH_ELLIPSE, Size(2, 2)));
+
+    // imfill
+    Mat WBC_clone = WBC_mask.clone();
+    vector<vector<Point> > contours_WBC;
+    findContours(WBC_clone, contours_WBC, RETR_LIST, CHAIN_APPROX_NONE);
+    fillContours(WBC_mask, contours_WBC);
+    contours_WBC.clear();
+
+    // imclearborder
+    Mat marker = Mat::ones(WBC_mask.size(), CV_64FC1);
+    marker(Rect(1, 1, marker.cols - 2, marker.rows - 2)).setTo(0);
+    Mat WBC_mask64F;
+    WBC_mask.convertTo(WBC_mask64F, CV_64F);
+    morphReconstruct(marker, WBC_mask64F);
+    marker.convertTo(marker, CV_8U);
+    subtract(WBC_mask, marker, WBC_mask);
+
+    erode(WBC_mask, WBC_mask, getStructuringElement(MORPH_ELLIPSE, Size(2, 2)));
+
+    // bwareaopen
+    double RBC_avgArea = round(CV_PI * pow(20.0, 2)) / resizeValue;
+    removeSmallComponents(WBC_mask, RBC_avgArea);
+
+    WBC_clone = WBC_mask.clone();
+    vector<vector<Point> > contours_out;
+    findContours(WBC_clone, contours_out, RETR_LIST, CHAIN_APPROX_NONE, Point(rect.x, rect.y));
+
+    WBC_out = Mat::zeros(mask_border.size(), CV_8UC1);
+    fillContours(WBC_out, contours_out);
+
+    return true;
+}
+
+// port of SegmentWatershed.runSegmentWatershed, returns the CV_32S labels to start the watershed from
+static void segmentWatershed(const Mat &image, const Mat &mask, const Mat &marker, Mat &J)
+{
+    vector<Mat> channels;
+    split(image, channels);
+
+    Mat Imin;
+    min(channels[1], channels[2], Imin);
+    channels.clear();
+    Imin.convertTo(Imin, CV_64F);
+
+    double data[] = {-0.5, 0, 0.5};
+    Mat kernelX(1, 3, CV_64FC1, data);
+    Mat kernelY(3, 1, CV_64FC1, data);
+
+    Mat dx, dy, g;
+    filter2D(Imin, dx, Imin.depth(), kernelX);
+    filter2D(Imin, dy, Imin.depth(), kernelY);
+    pow(dx, 2, dx);
+    pow(dy, 2, dy);
+    add(dx, dy, g);
+    sqrt(g, g);
+
+    Mat BG;
+    dilate(mask, BG, getStructuringElement(MORPH_RECT, Size(9, 9)));
+    invertBinary(BG, BG);
+
+    Mat MarkOrBG;
+    compareBinary(marker, 0, CMP_GT, MarkOrBG);
+    bitwise_or(BG, MarkOrBG, MarkOrBG);
+
+    // imimposemin, -inf on BG|marker and +inf elsewhere
+    Mat fm(g.size(), CV_64FC1, Scalar(INFINITY));
+    fm.setTo(Scalar(-INFINITY), MarkOrBG);
+
+    double minVal, maxVal;
+    minMaxLoc(g, &minVal, &maxVal);
+    double range = maxVal - minVal;
+    double h = range == 0 ? 0.1 : range * 0.001;
+
+    Mat fp1;
+    add(g, Scalar(h), fp1);
+    min(fp1, fm, Imin);
+
+    // imreconstruct on the complements
+    fm.convertTo(J, -1, -1, 1);
+    Mat in_Imin;
+    Imin.convertTo(in_Imin, -1, -1, 1);
+    morphReconstruct(J, in_Imin);
+    J.convertTo(J, -1, -1, 1);
+
+    // inf & -inf to 1, everything else to 0
+    for (int r = 0; r < J.rows; r++) {
+        double *row = J.ptr<double>(r);
+        for (int c = 0; c < J.cols; c++) {
+            row[c] = std::isinf(row[c]) ? 1 : 0;
+        }
+    }
+
+    // markers are already labelled 1..n, background is 1 in J
+    Mat markerLabels;
+    marker.convertTo(markerLabels, CV_64F);
+    add(markerLabels, J, J);
+    J.convertTo(J, CV_32S);
+}
+
+// port of MarkerBasedWatershed.runMarkerBasedWatershed, false when the image needs to be retaken
+static bool segmentThinImage(const Mat &image, float resizeValue, Mat &watershed_result, Mat &WBC_mask)
+{
+    struct timespec start, end;
+    clock_gettime(CLOCK_MONOTONIC, &start);
+
+    vector<Mat> channels;
+    split(image, channels); // b g r
+    Mat green = channels[1];
+
+    Mat stretched;
+    if (!stretchHist8bit(green, 0.01, 0.99, stretched)) {
+        return false;
+    }
+
+    // normalize the range to [0,1] and negate: FG will be light; BG will be dark.
+    Mat norm_im;
+    normalize(stretched, norm_im, 0, 1, NORM_MINMAX, CV_64F);
+    stretched.release();
+    norm_im.convertTo(norm_im, -1, -1, 1);
+
+    // border mask, imfill & imerode
+    Mat mask_border;
+    compareBinary(norm_im, 0.8, CMP_LT, mask_border);
+    Mat mask_border_clone = mask_border.clone();
+    vector<vector<Point> > contours;
+    findContours(mask_border_clone, contours, RETR_LIST, CHAIN_APPROX_NONE);
+    mask_border_clone.release();
+    fillContours(mask_border, contours);
+    contours.clear();
+    erode(mask_border, mask_border, getStructuringElement(MORPH_RECT, Size(5, 5)));
+
+    // WBC
+    if (!detectWBC(green, mask_border, resizeValue, WBC_mask)) {
+        return false;
+    }
+    channels.clear();
+
+    // Otsu
+    double Th = otsuThreshold(norm_im, mask_border) / 255;
+
+    Mat mask_alpha;
+    compareBinary(norm_im, Th, CMP_GT, mask_alpha);
+    bitwise_and(mask_alpha, mask_border, mask_alpha);
+    mask_border.release();
+
+    // bwareaopen on 1 - mask_alpha fills the small holes for bwdist, bwareaopen on mask_alpha discards the small blobs
+    double in_min_area_size = 150;
+    Mat mask_alpha_Ones;
+    invertBinary(mask_alpha, mask_alpha_Ones);
+    removeSmallComponents(mask_alpha_Ones, in_min_area_size);
+    invertBinary(mask_alpha_Ones, mask_alpha_Ones);
+    removeSmallComponents(mask_alpha, in_min_area_size);
+
+    // Gaussian smoothing and CLAHE
+    Mat Gx = getGaussianKernel(5, 1, CV_64F);
+    Mat G = Gx * Gx.t();
+    flip(G, G, 1);
+    int anchor = G.cols - 2 - 1;
+    Mat I;
+    filter2D(norm_im, I, norm_im.depth(), G, Point(anchor, anchor), 0, BORDER_CONSTANT);
+    norm_im.release();
+
+    Mat I_0to255, I2_8U, I2;
+    normalize(I, I_0to255, 0, 255, NORM_MINMAX, CV_8U);
+    I.release();
+    Ptr<CLAHE> clahe = createCLAHE(2.56, Size(8, 8));
+    clahe->apply(I_0to255, I2_8U);
+    normalize(I2_8U, I2, 0, 1, NORM_MINMAX, CV_64F);
+
+    // blob responses across scales, weighted by the distance transform
+    Mat Lmin;
+    logFilterMin(I2, Lmin);
+    I2.release();
+
+    Mat D;
+    distanceTransform(mask_alpha_Ones, D, DIST_L2, 5);
+    threshold(D, D, 5, 0, THRESH_TOZERO);
+
+    Mat Lm2 = D.mul(Lmin);
+    Lmin.release();
+    D.release();
+
+    Mat kernel_ones = Mat::ones(3, 3, CV_32FC1);
+    filter2D(Lm2, Lm2, Lm2.depth(), kernel_ones, Point(1, 1), 0, BORDER_CONSTANT);
+
+    // imregionalmin, labelled markers
+    Mat markers;
+    regionalMinima(Lm2, markers);
+    dilate(markers, markers, getStructuringElement(MORPH_RECT, Size(3, 3)));
+
+    // marker controlled watershed
+    Mat labels;
+    segmentWatershed(image, mask_alpha, markers, labels);
+    watershed(image, labels);
+    compare(labels, Scalar(1), watershed_result, CMP_GT);
+
+    clock_gettime(CLOCK_MONOTONIC, &end);
+    print_timediff("Thin smear segmentation time", start, end);
+
+    return true;
+}
+
+JNIEXPORT jint JNICALL Java_gov_nih_nlm_malaria_1screener_imageProcessing_ThinSmearProcessor_processThinImage(
+        JNIEnv *env, jobject, jlong mat, jfloat resizeValue, jlong watershedResult, jlong wbcMask) {
+
+    Mat &mat_this = *(Mat *) mat;
+    Mat *mat_watershed = (Mat *) watershedResult;
+    Mat *mat_wbc = (Mat *) wbcMask;
+
+    Mat watershed_result, WBC_mask;
+    if (!segmentThinImage(mat_this, resizeValue, watershed_result, WBC_mask)) {
+        return 0;
+    }
+
+    *mat_watershed = watershed_result;
+    *mat_wbc = WBC_mask;
+
+    return 1;
+}
+
+}
@@ -68,11 +68,13 @@ import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
 import gov.nih.nlm.malaria_screener.custom.Utils.UtilsData;
 import gov.nih.nlm.malaria_screener.frontEnd.ResultDisplayer;
 import gov.nih.nlm.malaria_screener.frontEnd.ResultDisplayer_thickSmear;
-import gov.nih.nlm.malaria_screener.imageProcessing.SVM_Classifier;
 import gov.nih.nlm.malaria_screener.frontEnd.SettingsActivity;
-import gov.nih.nlm.malaria_screener.imageProcessing.TensorFlowClassifier;
+import gov.nih.nlm.malaria_screener.imageProcessing.CellScores;
+import gov.nih.nlm.malaria_screener.imageProcessing.ModelRegistry;
+import gov.nih.nlm.malaria_screener.imageProcessing.PreScreen;
 import gov.nih.nlm.malaria_screener.imageProcessing.ThickSmearProcessor;
 import gov.nih.nlm.malaria_screener.imageProcessing.ThinSmearProcessor;
+import gov.nih.nlm.malaria_screener.imageProcessing.Segmentation.SegmentationContext;
 
 import org.opencv.android.Utils;
 import org.opencv.core.Core;
@@ -149,6 +151,9 @@ public class CameraActivity extends AppCompatActivity {
     //Mat oriSizeMat;
     Mat resizedMat = new Mat();
 
+    // scratch buffers & kernels reused by every thin smear image of this session
+    SegmentationContext segContext = new SegmentationContext();
+
     File pictureFileCopy;
 
     boolean takenFromCam = false; // flag for saving image taken from cam
@@ -184,9 +189,6 @@ public class CameraActivity extends AppCompatActivity {
         // check to see if has Camera
         checkCameraHardware(this);
 
-        // read pre-trained SVM data structure & TF deep learning model // put read SVM data structure & TF model here to reduce processing time
-        readSVMHandler.sendEmptyMessage(0);
-
         Runtime rt = Runtime.getRuntime();
         long maxMemory = rt.maxMemory();
         Log.d(TAG, "maxMemory: " + Long.toString(maxMemory / 1024 / 1024));
@@ -254,77 +256,6 @@ public class CameraActivity extends AppCompatActivity {
         }
     }
 
-    // load pre-trained classifier models
-    private Handler readSVMHandler = new Handler() {
-
-        public void handleMessage(Message msg) {
-            super.handleMessage(msg);
-
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-
-                    long startTime_w = System.currentTimeMillis();
-
-                    // load TF model
-                    try {
-
-                        // TF Lite code
-                        /*UtilsCustom.tensorFlowClassifier_thin_lite = Classifier_Lite.create(context, Classifier_Lite.Model.FLOAT_THINSMEAR, Classifier_Lite.Device.CPU, 4);
-                        UtilsCustom.tensorFlowClassifier_thick_lite = Classifier_Lite.create(context, Classifier_Lite.Model.FLOAT_THICKSMEAR, Classifier_Lite.Device.CPU, 4);*/
-
-                        // thin smear
-                        String modelNameStr_thin = "malaria_thinsmear_44_retrainSudan_20P_4000C_separate.pb";
-                        int TF_input_size_thin = 44;
-                        //String inputLayerNameStr_thin = "conv2d_20_input";
-                        String inputLayerNameStr_thin = "conv2d_1_input";
-                        //String outputLayerNameStr_thin = "output_node0";
-                        String outputLayerNameStr_thin = "dense_1/Softmax";
-
-                        UtilsCustom.tensorFlowClassifier_thin = TensorFlowClassifier.create(context.getAssets(), modelNameStr_thin, TF_input_size_thin, TF_input_size_thin, inputLayerNameStr_thin, outputLayerNameStr_thin);
-                        //UtilsCustom.tensorFlowClassifier_thin = TensorFlowClassifier.create(context.getAssets(), "malaria_thinsmear.h5.pb", UtilsCustom.TF_input_size, "input_2", "output_node0");
-                        //UtilsCustom.tfClassifier_lite = TFClassifier_Lite.create(context.getAssets(), "thinSmear_100_quantized.tflite", UtilsCustom.TF_input_size);
-
-                        //thick smear
-                        String modelNameStr_thick = "ThickSmearModel.h5.pb";
-                        int TF_input_size_thick = 44;
-                        String inputLayerNameStr_thick = "conv2d_1_input";
-                        String outputLayerNameStr_thick = "output_node0";
-
-                        UtilsCustom.tensorFlowClassifier_thick = TensorFlowClassifier.create(context.getAssets(), modelNameStr_thick, TF_input_size_thick, TF_input_size_thick, inputLayerNameStr_thick, outputLayerNameStr_thick);
-
-                        //UtilsCustom.tensorFlowClassifier_thick = TensorFlowClassifier.create(context.getAssets(), "ThickSmearModel_7LayerConv.h5.pb", UtilsCustom.TF_input_size, "conv2d_1_input", "output_node0");
-
-                        //for blur detection
-                        //UtilsCustom.tensorFlowClassifier_fMeasure_thin = TensorFlowClassifier.create(context.getAssets(), "ThinSmear_7LayerConv_fMeasure_115x85.h5.pb", UtilsCustom.TF_input_width, UtilsCustom.TF_input_height, "conv2d_1_input", "output_node0");
-
-
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                    //load SVM model
-                    UtilsCustom.svm_classifier = SVM_Classifier.create(context);
-
-                    int classNum = 2;
-                    for (int index = 0; index < classNum; index++) {
-                        UtilsCustom.svm_classifier.readSVMTextFile(index);
-                    }
-
-                    long endTime_w = System.currentTimeMillis();
-                    long totalTime_w = endTime_w - startTime_w;
-                    Log.d(TAG, "Read Classifier Time: " + totalTime_w);
-
-                }
-            };
-
-            Thread readSVMThread = new Thread(r);
-            readSVMThread.start();
-
-        }
-    };
-
-
     private static String digitFormat(int num) {
         String str = "" + num;
         //if (num < 10)
@@ -486,6 +417,10 @@ public class CameraActivity extends AppCompatActivity {
         WB = sharedPreferences.getString("whitebalance", "0");
 
         UtilsCustom.whichClassifier = Integer.valueOf(sharedPreferences.getString("classifier", "0"));
+        UtilsCustom.inference_backend = Integer.valueOf(sharedPreferences.getString("inference_backend", "0"));
+
+        // start loading the models of this smear type & classifier in the background, release the others
+        ModelRegistry.prepare(context, smearType, UtilsCustom.whichClassifier);
 
         double value = sharedPreferences.getInt("Th", 50);
         UtilsCustom.Th = (100 - value) / 100;
@@ -890,7 +825,7 @@ public class CameraActivity extends AppCompatActivity {
 
         long startTime = System.currentTimeMillis();
 
-        ThinSmearProcessor thinSmearProcessor = new ThinSmearProcessor(getApplicationContext());
+        ThinSmearProcessor thinSmearProcessor = new ThinSmearProcessor(getApplicationContext(), segContext);
         int[] res = thinSmearProcessor.processImage(resizedMat, orientation, RV, takenFromCam, pictureFileCopy);
 
         if (res == null){
@@ -898,7 +833,7 @@ public class CameraActivity extends AppCompatActivity {
             Log.d(TAG, "Here");
 
             inProgress.dismiss();
-            retakeHandler.sendEmptyMessage(0);
+            retakeHandler.sendEmptyMessage(thinSmearProcessor.getPreScreenResult());
 
         } else {
 
@@ -919,6 +854,7 @@ public class CameraActivity extends AppCompatActivity {
                 rotateResultImage();
             }
             SaveResultImage(pictureFileCopy.toString());
+            SaveCellScores(thinSmearProcessor.getCellScores(), pictureFileCopy.toString());
 
             goToNextActivity();
 
@@ -956,6 +892,7 @@ public class CameraActivity extends AppCompatActivity {
         UtilsCustom.canvasBitmap = Bitmap.createScaledBitmap(UtilsCustom.canvasBitmap, width, height, false);
 
         SaveResultImage(pictureFileCopy.toString());
+        SaveCellScores(thickSmearProcessor.getCellScores(), pictureFileCopy.toString());
 
         goToNextActivity_thickSmear();
 
@@ -1160,6 +1097,27 @@ public class CameraActivity extends AppCompatActivity {
         //UtilsCustom.canvasBitmap.recycle();
     }
 
+    // save centroids & infected probabilities of the cells, the slide can be re-scored at another threshold later
+    private void SaveCellScores(CellScores cellScores, String picFileStr) {
+
+        File direct = new File(Environment.getExternalStorageDirectory(), "NLM_Malaria_Screener/New");
+
+        if (!direct.exists()) {
+            direct.mkdirs();
+        }
+
+        // get image name
+        String imgStr = picFileStr.substring(picFileStr.lastIndexOf("/") + 1);
+        int endIndex = imgStr.lastIndexOf(".");
+        String imageName = imgStr.substring(0, endIndex);
+
+        try {
+            cellScores.save(CellScores.getFile(direct, imageName));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     // rotate the result image to the orientation when its taken
     private void rotateResultImage(){
 
@@ -1182,15 +1140,20 @@ public class CameraActivity extends AppCompatActivity {
         public void handleMessage(Message msg) {
             super.handleMessage(msg);
 
-            retakeImage();
+            retakeImage(msg.what);
         }
     };
 
-    private void retakeImage() {
+    /*
+     *   @param preScreenResult: PreScreen reason code of a thin smear frame the pre-screen rejected, PreScreen.OK for
+     *   the other rejects
+     * */
+    private void retakeImage(int preScreenResult) {
 
         takenFromCam = false;
 
-        String string = getResources().getString(R.string.seg_failed);
+        int reason = PreScreen.getReasonString(preScreenResult);
+        String string = getResources().getString(reason != 0 ? reason : R.string.seg_failed);
         Toast.makeText(getApplicationContext(), string, Toast.LENGTH_LONG).show();
 
         initAll();
@@ -1265,6 +1228,13 @@ public class CameraActivity extends AppCompatActivity {
         super.onStop();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        segContext.release();
+    }
+
     public static Camera getCamera() {
         Camera cam = null;
         try {
@@ -36,7 +36,7 @@ import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 
-import gov.nih.nlm.malaria_screener.imageProcessing.SVM_Classifier;
+import gov.nih.nlm.malaria_screener.imageProcessing.CellTable;
 import gov.nih.nlm.malaria_screener.imageProcessing.TensorFlowClassifier;
 
 /**
@@ -47,15 +47,17 @@ public final class UtilsCustom {
 
     private static final String TAG = "MyDebug";
 
-    public static TensorFlowClassifier tensorFlowClassifier_thin;
-    public static TensorFlowClassifier tensorFlowClassifier_thick;
+    // thin & thick smear DL models and the SVM are loaded by ModelRegistry
     //public static Classifier_Lite tensorFlowClassifier_thin_lite;
     //public static Classifier_Lite tensorFlowClassifier_thick_lite;
-    public static SVM_Classifier svm_classifier;
+    public static String svm_model_file = "svm_thin.svmb"; // binary SVM model in assets, rebuilt by tools/convert_svm_model.sh
 
     public static Mat oriSizeMat;
     public static Bitmap canvasBitmap;
 
+    // label the cells at segmentation resolution and scale only their boxes & masks, false blows the whole mask up to the original size first
+    public static boolean cells_low_res_labels = true;
+
     //for blur detection
     public static Mat rectMat;
     public static TensorFlowClassifier tensorFlowClassifier_fMeasure_thin;
@@ -65,14 +67,49 @@ public final class UtilsCustom {
     public static double Th_thick = 0.5;
 
     // Cell global variables
-    public static ArrayList<Integer> results = new ArrayList<>();   // pred label for each patch
-    public static ArrayList<Float> confs_patch = new ArrayList<>();       // confidence for each patch
+    public static ArrayList<Integer> results = new ArrayList<>();   // pred label for each patch, thick smear
+    public static ArrayList<Float> confs_patch = new ArrayList<>();       // confidence for each patch, thick smear
+    public static ArrayList<Float> probs_patch = new ArrayList<>();       // infected probability for each patch before thresholding, thick smear
     public static ArrayList<Float> pos_confs_im = new ArrayList<>();       // image confidence
 
-    public static int[][] cellLocation;
-    public static int cellCount = 0;
-
-    public static int batch_size = 8;
+    public static CellTable cellTable = new CellTable(); // thin smear cells: location, bounding box, area, pred label & confidence
+
+    public static int batch_size = 8; // used for classifiers that were not tuned
+    public static boolean batch_size_autotune = true; // benchmark the batch size of each model once, see BatchSizeTuner
+
+    // thin smear DL: run chip extraction and inference on two threads, batches in flight are bounded by the queue size
+    public static boolean pipeline_inference = true;
+    public static int pipeline_queue_size = 2;
+
+    // network runtime of the thin smear DL model, InferenceBackend.TF_MOBILE, TFLITE or TFLITE_INT8 (Settings), INT8 also applies to thick smears
+    public static int inference_backend = 0;
+    // float TF Lite only has the older malaria_thinsmear_44 network, not the retrained production model, so it gives
+    // other results (its class order & threshold behaviour were not checked against the .pb): debug & benchmark only,
+    // not offered in Settings and TF Mobile is used instead while this is false
+    public static boolean tflite_float_debug = false;
+    public static int tflite_threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    public static boolean backend_benchmark = false; // log TF Mobile vs TF Lite timings once, see InferenceBenchmark
+
+    // thin smear DL chips are cut and resized to the network input size in one INTER_AREA step
+    public static boolean chip_direct_resize = true;
+
+    // thin smear segmentation: 0 Java reference, 1 native (processThinImage), 2 run both and log the differences
+    public static final int SEG_JAVA = 0;
+    public static final int SEG_NATIVE = 1;
+    public static final int SEG_COMPARE = 2;
+    public static int seg_mode = SEG_NATIVE;
+
+    // thin smear pre-screen (PreScreen): its thresholds are not calibrated yet, so it only logs by default
+    public static final int PRE_SCREEN_OFF = 0;
+    public static final int PRE_SCREEN_LOG = 1;
+    public static final int PRE_SCREEN_REJECT = 2; // ask for a retake when a frame fails
+    public static int pre_screen_mode = PRE_SCREEN_LOG;
+
+    // tiled thin smear segmentation, tile size 0 segments the whole image at once. Only the Java segmentation tiles
+    // (seg_mode SEG_JAVA or SEG_COMPARE), the native default ignores both settings
+    public static int seg_tile_size = 0;
+    public static int seg_threads = Runtime.getRuntime().availableProcessors();
+    public static boolean seg_tiling_benchmark = false; // log tiled segmentation time with 1, 2, 4 & 8 threads
 
     //for blur detection
     public static int TF_input_width = 115;
@@ -53,6 +53,7 @@ import gov.nih.nlm.malaria_screener.custom.CustomAdapter_ImageGalleryDB;
 import gov.nih.nlm.malaria_screener.custom.RowItem_Image;
 import gov.nih.nlm.malaria_screener.custom.TouchImageView;
 import gov.nih.nlm.malaria_screener.frontEnd.EnterManualCounts;
+import gov.nih.nlm.malaria_screener.imageProcessing.CellScores;
 
 
 public class ImageGallery extends AppCompatActivity implements CustomAdapter_ImageGalleryDB.OnPhotoCallback {
@@ -130,6 +131,10 @@ public class ImageGallery extends AppCompatActivity implements CustomAdapter_Ima
 
                 String imagePath = allImageListing[i].getAbsolutePath();
 
+                if (CellScores.isScoreFile(allImageListing[i])) {
+                    continue;
+                }
+
                 if ((imagePath.indexOf("result") == -1) && (imagePath.indexOf("mask") == -1)) { // pick out the original image by checking the image name
                     originalImagePath.add(imagePath);
 
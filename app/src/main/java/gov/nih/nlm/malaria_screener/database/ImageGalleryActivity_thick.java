@@ -52,6 +52,7 @@ import gov.nih.nlm.malaria_screener.custom.CustomAdapter_ImageGalleryDB;
 import gov.nih.nlm.malaria_screener.custom.RowItem_Image;
 import gov.nih.nlm.malaria_screener.custom.TouchImageView;
 import gov.nih.nlm.malaria_screener.frontEnd.EnterManualCounts_thick;
+import gov.nih.nlm.malaria_screener.imageProcessing.CellScores;
 
 public class ImageGalleryActivity_thick extends AppCompatActivity implements CustomAdapter_ImageGalleryDB.OnPhotoCallback {
 
@@ -128,6 +129,10 @@ public class ImageGalleryActivity_thick extends AppCompatActivity implements Cus
 
                 String imagePath = allImageListing[i].getAbsolutePath();
 
+                if (CellScores.isScoreFile(allImageListing[i])) {
+                    continue;
+                }
+
                 if ((imagePath.indexOf("result") == -1) && (imagePath.indexOf("mask") == -1)) { // pick out the original image by checking the image name
                     originalImagePath.add(imagePath);
 
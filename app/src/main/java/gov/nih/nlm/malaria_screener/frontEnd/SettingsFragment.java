@@ -27,8 +27,13 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.util.ArrayList;
+
 import gov.nih.nlm.malaria_screener.R;
 import gov.nih.nlm.malaria_screener.custom.SeekBarPreference;
+import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
+import gov.nih.nlm.malaria_screener.imageProcessing.InferenceBackend;
+import gov.nih.nlm.malaria_screener.imageProcessing.ModelRegistry;
 
 /**
  * Created by yuh5 on 11/8/2016.
@@ -38,8 +43,10 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     private static final String TAG = "MyDebug";
 
     CharSequence[] cs_entry, clssifier_entry = {"Deep Learning", "SVM"};
+    CharSequence[] backend_entry = {"TensorFlow Mobile", "TensorFlow Lite (CPU, debug)", "TensorFlow Lite INT8 (CPU)"}; // index is InferenceBackend.TF_MOBILE / TFLITE / TFLITE_INT8
     public static final String KEY_PREF_WB = "whitebalance";
     public static final String KEY_PREF_CLASSIFIER = "classifier";
+    public static final String KEY_PREF_BACKEND = "inference_backend";
 
     SharedPreferences sharedPreferences;
 
@@ -78,6 +85,24 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             listPreference_classifier.setSummary(clssifier_entry[Integer.valueOf(sharedPreferences.getString("classifier", "0"))]);
         }
 
+        ListPreference listPreference_backend = (ListPreference) findPreference(KEY_PREF_BACKEND);
+
+        if (listPreference_backend!=null){
+            // float TF Lite runs another network, only listed in debug builds, see UtilsCustom.tflite_float_debug
+            // INT8 only if the quantized model ships, see tools/quantize_classifier.py
+            ArrayList<CharSequence> entries = new ArrayList<>();
+            ArrayList<CharSequence> entryValues = new ArrayList<>();
+            for (int i=0;i<backend_entry.length;i++){
+                if (isBackendAvailable(i)) {
+                    entries.add(backend_entry[i]);
+                    entryValues.add(Integer.toString(i));
+                }
+            }
+            listPreference_backend.setEntries(entries.toArray(new CharSequence[0]));
+            listPreference_backend.setEntryValues(entryValues.toArray(new CharSequence[0]));
+            listPreference_backend.setSummary(getBackendName(sharedPreferences.getString(KEY_PREF_BACKEND, "0")));
+        }
+
     }
 
     @Override
@@ -109,6 +134,33 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
             int index = Integer.valueOf(sharedPreferences.getString(key, "0"));
             connectionPref.setSummary(clssifier_entry[index]);
 
+        } else if (key.equals(KEY_PREF_BACKEND)){
+            Preference connectionPref = findPreference(key);
+            // Set summary to be the user-description for the selected value
+            connectionPref.setSummary(getBackendName(sharedPreferences.getString(key, "0")));
+
         }
     }
+
+    private boolean isBackendAvailable(int backend) {
+
+        if (backend == InferenceBackend.TFLITE) {
+            return UtilsCustom.tflite_float_debug;
+        } else if (backend == InferenceBackend.TFLITE_INT8) {
+            return ModelRegistry.hasQuantizedModel(getActivity().getAssets());
+        }
+
+        return true;
+    }
+
+    // name of the backend that is actually used for the preference value, ModelRegistry falls back to TF Mobile
+    private CharSequence getBackendName(String value) {
+
+        int index = Integer.valueOf(value);
+        if (!isBackendAvailable(index)) {
+            index = InferenceBackend.TF_MOBILE;
+        }
+
+        return backend_entry[index];
+    }
 }
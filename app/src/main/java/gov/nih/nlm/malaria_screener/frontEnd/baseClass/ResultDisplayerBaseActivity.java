@@ -47,6 +47,7 @@ import java.io.FileOutputStream;
 import gov.nih.nlm.malaria_screener.R;
 import gov.nih.nlm.malaria_screener.custom.TouchImageView;
 import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
+import gov.nih.nlm.malaria_screener.imageProcessing.CellScores;
 
 public abstract class ResultDisplayerBaseActivity extends AppCompatActivity {
 
@@ -164,6 +165,11 @@ public abstract class ResultDisplayerBaseActivity extends AppCompatActivity {
             file_res.delete();
         }
 
+        File file_scores = CellScores.getFile(new File(Environment.getExternalStorageDirectory(), "NLM_Malaria_Screener/New"), imageName);
+        if (file_scores.exists()) {
+            file_scores.delete();
+        }
+
     }
 
     public void releaseMemory(){
@@ -0,0 +1,110 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/*
+ *   Picks the inference batch size of a TensorFlowClassifier on the device it runs on.
+ *
+ *   The first time a model is loaded a few batch sizes are timed on blank input and the one with the lowest time
+ *   per image is stored in SharedPreferences, keyed by model name and input size. Later launches read the stored
+ *   value, a different model file name is benchmarked again.
+ * */
+public class BatchSizeTuner {
+
+    private static final String TAG = "MyDebug";
+
+    private static final String PREFS_NAME = "batch_size_tuner";
+
+    public static final int[] CANDIDATES = {1, 2, 4, 8, 16, 32};
+
+    // images run through the model per candidate, after one warm up batch
+    private static final int IMAGES_PER_CANDIDATE = 64;
+
+    /*
+     *   Sets the batch size of the classifier, benchmarks it first if there is no stored value for this model.
+     *   Runs inference, don't call it on the UI thread.
+     *   @return the batch size
+     * */
+    public static int tune(Context context, TensorFlowClassifier classifier) {
+
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String key = getKey(classifier);
+
+        int batchSize = prefs.getInt(key, 0);
+
+        if (batchSize <= 0) {
+            batchSize = benchmark(classifier);
+            prefs.edit().putInt(key, batchSize).apply();
+        }
+
+        classifier.setBatchSize(batchSize);
+
+        Log.d(TAG, "Batch size " + key + ": " + batchSize);
+
+        return batchSize;
+    }
+
+    // forget all stored values, the next tune() benchmarks again
+    public static void reset(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private static String getKey(TensorFlowClassifier classifier) {
+        return classifier.getModelName() + "_" + classifier.getWidth() + "x" + classifier.getHeight();
+    }
+
+    private static int benchmark(TensorFlowClassifier classifier) {
+
+        int imageLength = classifier.getWidth() * classifier.getHeight() * 3;
+
+        int bestSize = CANDIDATES[0];
+        double bestTime = Double.MAX_VALUE;
+
+        for (int size : CANDIDATES) {
+
+            float[] pixels = new float[size * imageLength];
+
+            // warm up, the first run of a new input shape is slower
+            classifier.infer(pixels, size);
+
+            int runs = (IMAGES_PER_CANDIDATE + size - 1) / size;
+
+            long startTime = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                classifier.infer(pixels, size);
+            }
+            double timePerImage = (System.nanoTime() - startTime) / 1e6 / (runs * size);
+
+            Log.d(TAG, "Batch size " + size + ": " + timePerImage + " ms per image");
+
+            if (timePerImage < bestTime) {
+                bestTime = timePerImage;
+                bestSize = size;
+            }
+        }
+
+        return bestSize;
+    }
+
+}
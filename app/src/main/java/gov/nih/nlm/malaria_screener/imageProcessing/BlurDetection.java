@@ -25,11 +25,9 @@ import android.util.Log;
 
 import org.opencv.android.Utils;
 import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
 import org.opencv.core.Rect;
-import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
@@ -50,9 +48,9 @@ public class BlurDetection {
 
     static int height = UtilsCustom.TF_input_height;
     static int width = UtilsCustom.TF_input_width;
-    static int batchSize = 2;
+    static int batchSize = 2; // used until the classifier is tuned
 
-    static int[] intPixels = new int[width * height];
+    static TensorPacker tensorPacker = new TensorPacker(width, height);
 
     static int chipIndex = 1;
 
@@ -119,23 +117,20 @@ public class BlurDetection {
             UtilsCustom.results_fm.clear();
             UtilsCustom.conf_fm.clear(); // for conf results
 
-            float[] floatPixels = new float[width * height * 3 * batchSize];
-
-            float[] floatPixels_last;
+            batchSize = tensorFlowClassifier.getBatchSize(batchSize);
 
             int NumOfImage = cellChip.size();
 
             int iteration = NumOfImage / batchSize;
             int lastBatchSize = NumOfImage % batchSize;
 
-            floatPixels_last = new float[width * height * 3 * lastBatchSize];
-
             // normal batches
+            float[] floatPixels = tensorPacker.obtain(batchSize);
             for (int i = 0; i < iteration; i++) {
 
                 for (int n = 0; n < batchSize; n++) {
 
-                    floatPixels = putInPixels(i, n, floatPixels);
+                    tensorPacker.pack(cellChip.get(i * batchSize + n), floatPixels, n);
                 }
 
                 tensorFlowClassifier.recongnize_fm_batch(floatPixels, batchSize);
@@ -143,9 +138,10 @@ public class BlurDetection {
             }
 
             // last batch
+            float[] floatPixels_last = tensorPacker.obtain(lastBatchSize, true);
             for (int n = 0; n < lastBatchSize; n++) {
 
-                floatPixels_last = putInPixels(iteration, n, floatPixels_last);
+                tensorPacker.pack(cellChip.get(iteration * batchSize + n), floatPixels_last, n);
             }
 
             tensorFlowClassifier.recongnize_fm_batch(floatPixels_last, lastBatchSize);
@@ -169,40 +165,6 @@ public class BlurDetection {
             }
     }
 
-    private static float[] putInPixels(int i, int n, float[] floatPixels) {
-
-        Bitmap chip_bitmap;
-        Bitmap chip_bitmap_test;
-
-        Mat singlechip;
-
-        singlechip = cellChip.get(i * batchSize + n);
-
-        singlechip.convertTo(singlechip, CvType.CV_8U);
-
-        Imgproc.resize(singlechip, singlechip, new Size(width, height), 0, 0, Imgproc.INTER_CUBIC);
-
-        chip_bitmap = Bitmap.createBitmap(singlechip.cols(), singlechip.rows(), Bitmap.Config.ARGB_8888);
-
-        Utils.matToBitmap(singlechip, chip_bitmap);
-
-        // added for test
-       /* chip_bitmap_test = Bitmap.createBitmap(singlechip.cols(), singlechip.rows(), Bitmap.Config.RGB_565);
-        Utils.matToBitmap(singlechip, chip_bitmap_test);
-        outputChipFiles(chip_bitmap_test);*/
-        // added for test end
-
-        chip_bitmap.getPixels(intPixels, 0, chip_bitmap.getWidth(), 0, 0, chip_bitmap.getWidth(), chip_bitmap.getHeight());
-
-        for (int j = 0; j < intPixels.length; ++j) {
-            floatPixels[n * width * height * 3 + j * 3 + 0] = ((intPixels[j] >> 16) & 0xFF) / 255.0f; //R
-            floatPixels[n * width * height * 3 + j * 3 + 1] = ((intPixels[j] >> 8) & 0xFF) / 255.0f;  //G
-            floatPixels[n * width * height * 3 + j * 3 + 2] = (intPixels[j] & 0xFF) / 255.0f;         //B
-        }
-
-        return floatPixels;
-    }
-
     private static void outputChipFiles(Bitmap bitmap) {
 
         /*Bitmap bitmap = Bitmap.createBitmap(chipMat.cols(), chipMat.rows(), Bitmap.Config.ARGB_8888);
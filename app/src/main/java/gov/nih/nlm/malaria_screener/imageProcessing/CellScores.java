@@ -0,0 +1,325 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import gov.nih.nlm.malaria_screener.R;
+import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
+
+/*
+ *   Raw classifier output of one image: centroid and infected probability of every cell (thin smear) or parasite
+ *   candidate (thick smear), before any threshold is applied.
+ *
+ *   Saved next to the result image as <image name>_cells.bin, so counts, image confidence and the overlay can be
+ *   recomputed at another threshold without segmentation or inference. A cell is infected by the same rule as in
+ *   the classifier that scored it: probability above the threshold for DL, at or above it for the SVM (SVM_Classifier
+ *   calls cells below Th normal). The classifier is stored in the file. Centroids are in pixels of the original size
+ *   image.
+ * */
+public class CellScores {
+
+    public static final int THIN = 0;
+    public static final int THICK = 1;
+
+    // classifier that produced the probabilities, same values as UtilsCustom.whichClassifier
+    public static final int DL = 0;
+    public static final int SVM = 1;
+
+    public static final String FILE_SUFFIX = "_cells.bin";
+
+    private static final int MAGIC = 0x43454C53; // "CELS"
+    private static final int VERSION = 1;
+
+    private final int type;
+    private final int classifier;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int wbcCount; // thick smear only
+
+    private final int[] x;
+    private final int[] y;
+    private final float[] probability;
+
+    public CellScores(int type, int classifier, int imageWidth, int imageHeight, int wbcCount, int[] x, int[] y, float[] probability) {
+
+        if (x.length != probability.length || y.length != probability.length) {
+            throw new IllegalArgumentException("Centroids and probabilities differ in length: " + x.length + ", " + y.length + ", " + probability.length);
+        }
+
+        this.type = type;
+        this.classifier = classifier;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.wbcCount = wbcCount;
+        this.x = x;
+        this.y = y;
+        this.probability = probability;
+    }
+
+    /*
+     *   Copies the classified cells of a thin smear image.
+     *   @param classifier: DL or SVM
+     * */
+    public static CellScores fromCellTable(CellTable cellTable, int classifier, int imageWidth, int imageHeight) {
+
+        int num = cellTable.getResultCount();
+
+        int[] x = new int[num];
+        int[] y = new int[num];
+        float[] probability = new float[num];
+
+        for (int i = 0; i < num; i++) {
+            x[i] = cellTable.getCenterCol(i);
+            y[i] = cellTable.getCenterRow(i);
+            probability[i] = cellTable.getProbability(i);
+        }
+
+        return new CellScores(THIN, classifier, imageWidth, imageHeight, 0, x, y, probability);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getClassifier() {
+        return classifier;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public int getWBCCount() {
+        return wbcCount;
+    }
+
+    public int size() {
+        return probability.length;
+    }
+
+    public int getX(int i) {
+        return x[i];
+    }
+
+    public int getY(int i) {
+        return y[i];
+    }
+
+    public float getProbability(int i) {
+        return probability[i];
+    }
+
+    public boolean isInfected(int i, double threshold) {
+
+        if (classifier == SVM) {
+            // SVM_Classifier compares the double probability, the stored float rounds to the same side or onto Th
+            return probability[i] >= (float) threshold;
+        }
+
+        return probability[i] > threshold;
+    }
+
+    public int getInfectedCount(double threshold) {
+
+        int count = 0;
+        for (int i = 0; i < probability.length; i++) {
+            if (isInfected(i, threshold)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /*
+     *   Image confidence as computed after processing: median (thin) or mean (thick) of the infected probabilities,
+     *   0 if no cell is infected.
+     * */
+    public float getImageConfidence(double threshold) {
+
+        ArrayList<Float> confs_pos = new ArrayList<>();
+        float sum = 0;
+
+        for (int i = 0; i < probability.length; i++) {
+            if (isInfected(i, threshold)) {
+                confs_pos.add(probability[i]);
+                sum += probability[i];
+            }
+        }
+
+        if (confs_pos.isEmpty()) {
+            return 0;
+        } else if (type == THIN) {
+            return UtilsCustom.cal_median(confs_pos);
+        } else {
+            return sum / (float) confs_pos.size();
+        }
+    }
+
+    /*
+     *   Draws the infected cells at the threshold the way the processors do, scaled to the size of the canvas.
+     *   The canvas is expected to hold the image in its original orientation.
+     * */
+    public void drawOverlay(Canvas canvas, Context context, double threshold) {
+
+        float scale = (float) canvas.getWidth() / imageWidth;
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+        if (type == THIN) {
+            paint.setStrokeWidth(5);
+        } else {
+            paint.setStrokeWidth(6 * scale);
+            paint.setStyle(Paint.Style.STROKE);
+        }
+
+        int infectedNum = 0;
+
+        for (int i = 0; i < probability.length; i++) {
+
+            if (!isInfected(i, threshold)) {
+                continue;
+            }
+            infectedNum++;
+
+            float cx = x[i] * scale;
+            float cy = y[i] * scale;
+
+            paint.setColor(getLevelColor(context, probability[i]));
+
+            if (type == THIN) {
+                canvas.drawCircle(cx, cy, 2, paint);
+                canvas.drawText(String.valueOf(infectedNum), cx - 7, cy - 7, paint);
+            } else {
+                canvas.drawCircle(cx, cy, 25 * scale, paint);
+            }
+        }
+    }
+
+    // color of the confidence level, same levels as in the result images
+    public static int getLevelColor(Context context, float conf) {
+
+        int color;
+
+        if (conf > 0.5 && conf <= 0.6) {             // level 1
+            color = R.color.level_1;
+        } else if (conf > 0.6 && conf <= 0.7) {      // level 2
+            color = R.color.level_2;
+        } else if (conf > 0.7 && conf <= 0.8) {      // level 3
+            color = R.color.level_3;
+        } else if (conf > 0.8 && conf <= 0.9) {      // level 4
+            color = R.color.level_4;
+        } else if (conf > 0.9 && conf <= 1.0) {      // level 5
+            color = R.color.level_5;
+        } else {
+            color = R.color.level_0;
+        }
+
+        return context.getResources().getColor(color);
+    }
+
+    public static File getFile(File dir, String imageName) {
+        return new File(dir, imageName + FILE_SUFFIX);
+    }
+
+    // score files sit next to the images of the slide, galleries and uploaders skip them
+    public static boolean isScoreFile(File file) {
+        return file.getName().endsWith(FILE_SUFFIX);
+    }
+
+    public void save(File file) throws IOException {
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(type);
+            out.writeInt(classifier);
+            out.writeInt(imageWidth);
+            out.writeInt(imageHeight);
+            out.writeInt(wbcCount);
+            out.writeInt(probability.length);
+
+            for (int i = 0; i < probability.length; i++) {
+                out.writeInt(x[i]);
+                out.writeInt(y[i]);
+                out.writeFloat(probability[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static CellScores load(File file) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a cell score file: " + file);
+            }
+
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported cell score file version " + version + ": " + file);
+            }
+
+            int type = in.readInt();
+            int classifier = in.readInt();
+            int imageWidth = in.readInt();
+            int imageHeight = in.readInt();
+            int wbcCount = in.readInt();
+            int num = in.readInt();
+
+            int[] x = new int[num];
+            int[] y = new int[num];
+            float[] probability = new float[num];
+
+            for (int i = 0; i < num; i++) {
+                x[i] = in.readInt();
+                y[i] = in.readInt();
+                probability[i] = in.readFloat();
+            }
+
+            return new CellScores(type, classifier, imageWidth, imageHeight, wbcCount, x, y, probability);
+        } finally {
+            in.close();
+        }
+    }
+
+}
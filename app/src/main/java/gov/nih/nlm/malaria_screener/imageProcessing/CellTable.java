@@ -0,0 +1,205 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import java.util.Arrays;
+
+/*
+ *   Per-cell records of one thin smear image, stored column-wise in primitive arrays.
+ *
+ *   Rows are added by segmentation (Cells) in chip order, the classifiers then fill result and confidence of the
+ *   same rows in the same order with addResult(). Coordinates are in pixels of the original size image.
+ *   The raw infected probability is kept next to the thresholded result, see CellScores.
+ *   The arrays are kept and only grow, so the table can be reused for every image.
+ *
+ *   Not synchronized: with the inference pipeline the results are added on the consumer thread while cells are still
+ *   added, so the table is sized with ensureCapacity() before, add() must not grow the arrays under addResult().
+ * */
+public class CellTable {
+
+    public static final int NORMAL = 0;
+    public static final int INFECTED = 1;
+
+    private int size = 0;
+    private int resultCount = 0;
+
+    private int[] label = new int[0];
+    private int[] centerRow = new int[0];
+    private int[] centerCol = new int[0];
+    private int[] boxX = new int[0];
+    private int[] boxY = new int[0];
+    private int[] boxW = new int[0];
+    private int[] boxH = new int[0];
+    private int[] area = new int[0];
+
+    private int[] result = new int[0];
+    private float[] confidence = new float[0];
+    private float[] probability = new float[0];
+
+    public void clear() {
+        size = 0;
+        resultCount = 0;
+    }
+
+    public void clearResults() {
+        resultCount = 0;
+    }
+
+    /*
+     *   Makes room for capacity cells without growing, call it before add() when results come from another thread.
+     * */
+    public void ensureCapacity(int capacity) {
+
+        if (capacity > label.length) {
+            grow(capacity);
+        }
+    }
+
+    /*
+     *   @return row index of the new cell
+     * */
+    public int add(int cellLabel, int x, int y, int w, int h, int cellArea) {
+
+        if (size == label.length) {
+            grow(Math.max(256, size * 2));
+        }
+
+        label[size] = cellLabel;
+        boxX[size] = x;
+        boxY[size] = y;
+        boxW[size] = w;
+        boxH[size] = h;
+        centerRow[size] = y + h / 2;
+        centerCol[size] = x + w / 2;
+        area[size] = cellArea;
+        result[size] = NORMAL;
+        confidence[size] = 0;
+        probability[size] = 0;
+
+        return size++;
+    }
+
+    /*
+     *   Sets result and confidence of the next cell without a result.
+     *   @param cellResult: NORMAL or INFECTED
+     *   @param conf: confidence of the predicted class
+     *   @param infectedProb: probability of the infected class before thresholding
+     * */
+    public void addResult(int cellResult, float conf, float infectedProb) {
+
+        if (resultCount == size) {
+            throw new IllegalStateException("More results than cells: " + size);
+        }
+
+        result[resultCount] = cellResult;
+        confidence[resultCount] = conf;
+        probability[resultCount] = infectedProb;
+        resultCount++;
+    }
+
+    public void setResult(int i, int cellResult, float conf) {
+        result[i] = cellResult;
+        confidence[i] = conf;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getResultCount() {
+        return resultCount;
+    }
+
+    public int getInfectedCount() {
+
+        int count = 0;
+        for (int i = 0; i < resultCount; i++) {
+            if (result[i] == INFECTED) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    public int getLabel(int i) {
+        return label[i];
+    }
+
+    public int getCenterRow(int i) {
+        return centerRow[i];
+    }
+
+    public int getCenterCol(int i) {
+        return centerCol[i];
+    }
+
+    public int getBoxX(int i) {
+        return boxX[i];
+    }
+
+    public int getBoxY(int i) {
+        return boxY[i];
+    }
+
+    public int getBoxWidth(int i) {
+        return boxW[i];
+    }
+
+    public int getBoxHeight(int i) {
+        return boxH[i];
+    }
+
+    public int getArea(int i) {
+        return area[i];
+    }
+
+    public int getResult(int i) {
+        return result[i];
+    }
+
+    public boolean isInfected(int i) {
+        return result[i] == INFECTED;
+    }
+
+    public float getConfidence(int i) {
+        return confidence[i];
+    }
+
+    public float getProbability(int i) {
+        return probability[i];
+    }
+
+    private void grow(int capacity) {
+
+        label = Arrays.copyOf(label, capacity);
+        centerRow = Arrays.copyOf(centerRow, capacity);
+        centerCol = Arrays.copyOf(centerCol, capacity);
+        boxX = Arrays.copyOf(boxX, capacity);
+        boxY = Arrays.copyOf(boxY, capacity);
+        boxW = Arrays.copyOf(boxW, capacity);
+        boxH = Arrays.copyOf(boxH, capacity);
+        area = Arrays.copyOf(area, capacity);
+        result = Arrays.copyOf(result, capacity);
+        confidence = Arrays.copyOf(confidence, capacity);
+        probability = Arrays.copyOf(probability, capacity);
+    }
+
+}
@@ -51,29 +51,37 @@ public class Cells {
     //
     public static final String TAG = "MyDebug";
 
-    private List<Mat> featureVecs = new ArrayList<>();
-
     private Mat featureTable = new Mat();
 
     private ArrayList<Mat> cellChip = new ArrayList<>();
 
     private int CCAreaTh = 2500;
 
+    private ChipExtractor chipExtractor = new ChipExtractor(7);
+    private HistogramFeatures histogramFeatures = new HistogramFeatures();
+
+    // set to true to also compute the SVM features with the old per chip version and log both timings
+    public static boolean FEATURE_BENCHMARK = false;
+
     private double ori_height = 2988;
     private double ori_width = 5312;
 
     private SVM_Classifier svm_classifier;
+    private TensorFlowClassifier tensorFlowClassifier;
 
-    private int batchSize = UtilsCustom.batch_size;
+    private int batchSize;
 
     private int height;
     private int width;
 
     public void runCells(Mat mask, Mat WBC_Mask) {
 
-        long startTime = System.currentTimeMillis();
-
-        this.svm_classifier = UtilsCustom.svm_classifier;
+        // waits for the model if it is still loading
+        if (UtilsCustom.whichClassifier == 0) {
+            this.tensorFlowClassifier = ModelRegistry.getThinClassifier();
+        } else if (UtilsCustom.whichClassifier == 1) {
+            this.svm_classifier = ModelRegistry.getSVMClassifier();
+        }
 
         //------------------------------------
 
@@ -82,6 +90,147 @@ public class Cells {
 
         double scale = (ori_height * ori_width) / (new_height * new_width);
 
+        CellTable cellTable = UtilsCustom.cellTable;
+        cellTable.clear();
+
+        // DL: classify batches on another thread while the chips are extracted
+        InferencePipeline pipeline = null;
+        if (UtilsCustom.whichClassifier == 0 && UtilsCustom.pipeline_inference) {
+            pipeline = startPipeline();
+        }
+
+        long startTime3 = System.currentTimeMillis();
+
+        // SVM: histogram features straight from the chip pixels, DL: chip Mats
+        boolean useSVM = UtilsCustom.whichClassifier == 1;
+
+        int chipNum;
+        boolean extracted = false;
+        try {
+            chipNum = extractChips(mask, WBC_Mask, scale, useSVM, pipeline);
+            extracted = true;
+        } finally {
+            // don't leave the consumer thread waiting for batches that never come
+            if (pipeline != null && !extracted) {
+                pipeline.abort();
+            }
+        }
+
+        long endTime3 = System.currentTimeMillis();
+        long totalTime3 = endTime3 - startTime3;
+        Log.d(TAG, "cell chip loop Time 2: " + totalTime3);
+
+        if (pipeline != null) {
+            pipeline.finish();
+
+            long totalTime_pipeline = System.currentTimeMillis() - startTime3;
+            Log.d(TAG, "cell chip loop + Deep learning Time, pipelined: " + totalTime_pipeline);
+        }
+
+        if (useSVM) {
+            // feature table Nx48
+            featureTable = histogramFeatures.toMat();
+
+            if (FEATURE_BENCHMARK) {
+                compareFeatureTable(chipNum);
+            }
+
+            // re-scale for different image size, should be deleted after normalization is applied
+            // training image size
+            featureTable.convertTo(featureTable, CvType.CV_64F, scale);
+        }
+
+        runClassification(pipeline != null);
+
+//        if (picFile!=null) {
+//            forSave.convertTo(forSave, CvType.CV_8U);
+//            bitmap = Bitmap.createBitmap(forSave.cols(), forSave.rows(), Bitmap.Config.ARGB_8888);
+//            UtilsCustom.matToBitmap(forSave, bitmap);
+//
+//        }
+
+        //release memory
+        for (Mat chip : cellChip) {
+            chip.release();
+        }
+        cellChip.clear();
+        chipExtractor.release();
+
+    }
+
+    /*
+     *   Finds the cells, adds them to the cell table and extracts their chips: histogram features for the SVM, chips
+     *   for DL that go to the pipeline if there is one, cellChip otherwise.
+     *   @return number of chips
+     * */
+    private int extractChips(Mat mask, Mat WBC_Mask, double scale, boolean useSVM, InferencePipeline pipeline) {
+
+        CellTable cellTable = UtilsCustom.cellTable;
+
+        int chipNum; // skip WBC regions and small connected components
+        if (UtilsCustom.cells_low_res_labels) {
+            chipNum = extractChipsLowRes(mask, WBC_Mask, scale);
+        } else {
+            chipNum = extractChipsFullRes(mask, WBC_Mask, scale);
+        }
+
+        // the pipeline consumer writes results into the table while the loop adds cells, it must not grow meanwhile
+        cellTable.ensureCapacity(cellTable.size() + chipNum);
+
+        if (useSVM) {
+            histogramFeatures.reset(chipNum);
+        }
+
+        // DL: sample the chips at network input size, full resolution chips are not kept
+        boolean directResize = !useSVM && UtilsCustom.chip_direct_resize;
+        if (directResize) {
+            height = tensorFlowClassifier.getHeight();
+            width = tensorFlowClassifier.getWidth();
+        }
+
+        for (int k = 0; k < chipNum; k++) {
+
+            Rect box = chipExtractor.getBoundingBox(k);
+            cellTable.add(chipExtractor.getLabel(k), box.x, box.y, box.width, box.height, chipExtractor.getArea(k));
+
+            if (useSVM) {
+                byte[] chipPixels = chipExtractor.getChipPixels(UtilsCustom.oriSizeMat, k);
+                histogramFeatures.compute(chipPixels, box.width * box.height, k);
+            } else if (directResize) {
+                byte[] chipPixels = chipExtractor.getResizedChipPixels(UtilsCustom.oriSizeMat, k, width, height);
+
+                if (pipeline != null) {
+                    pipeline.add(chipPixels);
+                } else {
+                    Mat newChip = new Mat(height, width, CvType.CV_8UC3);
+                    newChip.put(0, 0, chipPixels);
+                    cellChip.add(newChip);
+                }
+            } else {
+                Mat newChip = chipExtractor.getChip(UtilsCustom.oriSizeMat, k);
+
+                if (pipeline != null) {
+                    pipeline.add(newChip);
+                    newChip.release();
+                } else {
+                    cellChip.add(newChip);
+                }
+            }
+
+            cellCount++;
+        }
+
+        return chipNum;
+    }
+
+    /*
+     *   Blows the segmentation mask up to the original size and labels the cells there.
+     *   @return number of chips in chipExtractor
+     * */
+    private int extractChipsFullRes(Mat mask, Mat WBC_Mask, double scale) {
+
+        long startTime = System.currentTimeMillis();
+
         //blow up the mask to original size----------------------------------------------
 
         // turn mask from 0-255 to 0-1
@@ -114,8 +263,6 @@ public class Cells {
         newMask.release();
         centroids.release();
 
-        StringBuilder cellLoca = new StringBuilder();
-
         int stats_JP[] = new int[(int) stats.total()];
         stats.get(0, 0, stats_JP);
         stats.release();
@@ -127,203 +274,210 @@ public class Cells {
         long startTime1 = System.currentTimeMillis();
 
         // WBC: pick out WBC regions--------------------------------------------------------------
+        // labels stay CV_32S so that more than 255 cells don't saturate
         Mat labels_small = new Mat();
-        Mat labelC = labels.clone();
-        labelC.convertTo(labelC, WBC_Mask.type());
-        Imgproc.resize(labelC, labels_small, new Size(WBC_Mask.cols(), WBC_Mask.rows()), 0, 0, Imgproc.INTER_NEAREST);
-        labelC.release();
-
-        Mat numMat = Mat.zeros(labels_small.size(), labels_small.type());
-        Mat singleCellMask = new Mat();
-        Mat And_res = new Mat();
-        int OverlapwWBC_index[] = new int[ccNum - 1];
-
-
-        for (int i = 1; i < ccNum; i++) {
-
-            numMat.setTo(new Scalar(i)); //30ms
-            Core.compare(labels_small, numMat, singleCellMask, Core.CMP_EQ); //70ms
-            Core.divide(singleCellMask, singleCellMask, singleCellMask); //50ms
+        Imgproc.resize(labels, labels_small, new Size(WBC_Mask.cols(), WBC_Mask.rows()), 0, 0, Imgproc.INTER_NEAREST);
 
-            Core.bitwise_and(singleCellMask, WBC_Mask, And_res);
-            singleCellMask.release();
-            int nonZero = Core.countNonZero(And_res);
-            And_res.release();
-
-            if (nonZero > 0) {
-                OverlapwWBC_index[i - 1] = 1;
-            }
-
-        }
+        boolean OverlapwWBC[] = findWBCOverlap(labels_small, WBC_Mask, ccNum);
 
         WBC_Mask.release();
         labels_small.release();
-        numMat.release();
         long endTime1 = System.currentTimeMillis();
         long totalTime1 = endTime1 - startTime1;
         Log.d(TAG, "WBC Time 2: " + totalTime1);
         //--------------------------------------------------------------
 
+        int chipNum = chipExtractor.extract(labels, stats_JP, OverlapwWBC, CCAreaTh / scale);
+        labels.release();
 
-        long startTime3 = System.currentTimeMillis();
+        return chipNum;
+    }
 
-        for (int i = 1; i < ccNum; i++) { //start at 1 because first rect in stats is whole image
+    /*
+     *   Labels the cells at segmentation resolution, only the bounding boxes and masks of the cells are scaled to the
+     *   original size by chipExtractor.
+     *   @return number of chips in chipExtractor
+     * */
+    private int extractChipsLowRes(Mat mask, Mat WBC_Mask, double scale) {
 
-            if (OverlapwWBC_index[i - 1] == 1) { // skip WBC region
-                continue;
-            } else {
+        long startTime = System.currentTimeMillis();
 
-                int minCol = stats_JP[i * 5];
-                int minRow = stats_JP[i * 5 + 1];
-                int w = stats_JP[i * 5 + 2];
-                int h = stats_JP[i * 5 + 3];
-                //int area = stats_JP[i * 5 + 4];
+        // turn mask from 0-255 to 0-1
+        Core.divide(mask, mask, mask);
+        mask.convertTo(mask, CvType.CV_8U);
 
-                Rect roi = new Rect(minCol, minRow, w, h);
+        Mat labels = new Mat();
+        Mat stats = new Mat();
+        Mat centroids = new Mat();
+        int ccNum = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids, 4, CvType.CV_32S);
+        mask.release();
+        centroids.release();
 
-                // get mask of current CC
-                Mat labelChip = new Mat(labels, roi);
-                labelChip.convertTo(labelChip, CvType.CV_64F);
-                double labelChip_copy[] = new double[(int) labelChip.total()];
-                labelChip.get(0, 0, labelChip_copy);
+        int stats_JP[] = new int[(int) stats.total()];
+        stats.get(0, 0, stats_JP);
+        stats.release();
 
-                // get rid of small connected component
-                if (labelChip.total() <= CCAreaTh / scale) {
-                    continue;
-                }
+        // WBC mask has the size of the segmentation mask
+        Mat labels_small = labels;
+        if (labels.rows() != WBC_Mask.rows() || labels.cols() != WBC_Mask.cols()) {
+            labels_small = new Mat();
+            Imgproc.resize(labels, labels_small, new Size(WBC_Mask.cols(), WBC_Mask.rows()), 0, 0, Imgproc.INTER_NEAREST);
+        }
 
-                // clean the label of other cells
-                for (int index = 0; index < labelChip_copy.length; index++) {
+        boolean OverlapwWBC[] = findWBCOverlap(labels_small, WBC_Mask, ccNum);
 
-                    if (labelChip_copy[index] != i && labelChip_copy[index] != 0) {
-                        labelChip_copy[index] = 0;
-                    }
-                }
+        WBC_Mask.release();
+        if (labels_small != labels) {
+            labels_small.release();
+        }
+
+        int chipNum = chipExtractor.extractScaled(labels, stats_JP, OverlapwWBC, CCAreaTh / scale, UtilsCustom.oriSizeMat.rows(), UtilsCustom.oriSizeMat.cols());
+        labels.release();
 
-                Mat cleanedChip = Mat.zeros(labelChip.size(), labelChip.type());
-                cleanedChip.put(0, 0, labelChip_copy);
-                labelChip.release();
+        long totalTime = System.currentTimeMillis() - startTime;
+        Log.d(TAG, "label at segmentation resolution Time: " + totalTime);
 
-                Core.divide(cleanedChip, cleanedChip, cleanedChip);
-                // dilate to include cell boundary in extracted patches
-                Mat kernel7x7 = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(7, 7));
-                Imgproc.dilate(cleanedChip, cleanedChip, kernel7x7);
-                cleanedChip.convertTo(cleanedChip, CvType.CV_8U);
+        return chipNum;
+    }
 
-                cellLoca.append(minRow + h / 2);
-                cellLoca.append(",");
-                cellLoca.append(minCol + w / 2);
-                cellLoca.append("\n");
+    /*
+     *   Single pass over the label image, marks every label that has at least one pixel under the WBC mask.
+     *   @param labels: CV_32S labels, same size as WBC_Mask
+     *   @param WBC_Mask: CV_8U mask, non-zero on WBC
+     *   @return table indexed by label, entry 0 is the background
+     * */
+    static boolean[] findWBCOverlap(Mat labels, Mat WBC_Mask, int ccNum) {
 
-                Mat chip = new Mat(UtilsCustom.oriSizeMat, roi);
+        int labels_JP[] = new int[(int) labels.total()];
+        labels.get(0, 0, labels_JP);
 
-                Vector<Mat> chipRGB = new Vector<Mat>();
-                Mat newChip = new Mat();
-                Core.split(chip, chipRGB);
-                Core.multiply(chipRGB.get(0), cleanedChip, chipRGB.get(0));
-                Core.multiply(chipRGB.get(1), cleanedChip, chipRGB.get(1));
-                Core.multiply(chipRGB.get(2), cleanedChip, chipRGB.get(2));
-                Core.merge(chipRGB, newChip);
-                cleanedChip.release();
-                chip.release();
+        byte WBC_JP[] = new byte[(int) WBC_Mask.total()];
+        WBC_Mask.get(0, 0, WBC_JP);
 
-                Mat featureVec = computeFeatureVector(newChip);
+        return findWBCOverlap(labels_JP, WBC_JP, ccNum);
+    }
 
-                cellChip.add(newChip);
+    static boolean[] findWBCOverlap(int[] labels, byte[] WBC_Mask, int ccNum) {
 
-                featureVecs.add(featureVec);
+        boolean overlap[] = new boolean[ccNum];
 
-                cellCount++;
+        for (int p = 0; p < labels.length; p++) {
+            if (WBC_Mask[p] != 0) {
+                overlap[labels[p]] = true;
             }
-
         }
-        labels.release();
-        long endTime3 = System.currentTimeMillis();
-        long totalTime3 = endTime3 - startTime3;
-        Log.d(TAG, "cell chip loop Time 2: " + totalTime3);
 
-        UtilsCustom.cellCount = cellCount;
+        overlap[0] = false;
 
-        String locationStr = cellLoca.toString();
-
-        String[] locaStr = locationStr.split("\n");
-        UtilsCustom.cellLocation = new int[locaStr.length][2];
+        return overlap;
+    }
 
-        for (int i = 0; i < locaStr.length; i++) {
-            String[] temp1 = locaStr[i].split(",");
-            for (int j = 0; j < temp1.length; j++) {
-                UtilsCustom.cellLocation[i][j] = Integer.parseInt(temp1[j]);
-            }
+    private InferencePipeline startPipeline() {
+
+        height = tensorFlowClassifier.getHeight();
+        width = tensorFlowClassifier.getWidth();
+        batchSize = tensorFlowClassifier.getBatchSize(UtilsCustom.batch_size);
+
+        UtilsCustom.cellTable.clearResults();
+
+        InferencePipeline pipeline;
+        if (tensorFlowClassifier.acceptsBytes()) {
+            // quantized model, the chip pixels are fed without conversion to float
+            pipeline = new InferencePipeline(new TensorPacker(width, height), batchSize, UtilsCustom.pipeline_queue_size,
+                    new InferencePipeline.ByteBatchConsumer() {
+                        @Override
+                        public void consume(byte[] pixels, int dims) {
+                            tensorFlowClassifier.recongnize_batch(pixels, dims);
+                        }
+                    });
+        } else {
+            pipeline = new InferencePipeline(new TensorPacker(width, height), batchSize, UtilsCustom.pipeline_queue_size,
+                    new InferencePipeline.BatchConsumer() {
+                        @Override
+                        public void consume(float[] pixels, int dims) {
+                            tensorFlowClassifier.recongnize_batch(pixels, dims);
+                        }
+                    });
         }
+        pipeline.start();
 
-        // feature table Nx48
-        Core.vconcat(featureVecs, featureTable);
+        return pipeline;
+    }
 
-        // re-scale for different image size, should be deleted after normalization is applied
-        // training image size
-        featureTable.convertTo(featureTable, CvType.CV_64F);
-        Mat scaleMat = Mat.zeros(featureTable.size(), CvType.CV_64F);
-        scaleMat.setTo(new Scalar(scale));
-        Core.multiply(featureTable, scaleMat, featureTable);
+    // same batches as runClassification() with 8 bit pixels, for quantized models
+    private void classifyBytes(TensorPacker tensorPacker, int iteration, int lastBatchSize) {
 
-        runClassification();
+        byte[] bytePixels = tensorPacker.obtainBytes(batchSize, false);
+        for (int i = 0; i < iteration; i++) {
 
-//        if (picFile!=null) {
-//            forSave.convertTo(forSave, CvType.CV_8U);
-//            bitmap = Bitmap.createBitmap(forSave.cols(), forSave.rows(), Bitmap.Config.ARGB_8888);
-//            UtilsCustom.matToBitmap(forSave, bitmap);
-//
-//        }
+            for (int n = 0; n < batchSize; n++) {
+                tensorPacker.packBytes(cellChip.get(i * batchSize + n), bytePixels, n);
+            }
 
-        //release memory
-        cellChip.clear();
+            tensorFlowClassifier.recongnize_batch(bytePixels, batchSize);
+        }
+
+        if (lastBatchSize != 0) {
+            byte[] bytePixels_last = tensorPacker.obtainBytes(lastBatchSize, true);
+            for (int n = 0; n < lastBatchSize; n++) {
+                tensorPacker.packBytes(cellChip.get(iteration * batchSize + n), bytePixels_last, n);
+            }
 
+            tensorFlowClassifier.recongnize_batch(bytePixels_last, lastBatchSize);
+        }
     }
 
-    private void runClassification() {
+    /*
+     *   @param classified: true when the DL results were already produced by the inference pipeline
+     * */
+    private void runClassification(boolean classified) {
 
-        if (UtilsCustom.whichClassifier == 0) { // Deep Learning
+        if (UtilsCustom.whichClassifier == 0 && !classified) { // Deep Learning
 
-            height = UtilsCustom.tensorFlowClassifier_thin.getHeight();
-            width = UtilsCustom.tensorFlowClassifier_thin.getWidth();
+            height = tensorFlowClassifier.getHeight();
+            width = tensorFlowClassifier.getWidth();
+            batchSize = tensorFlowClassifier.getBatchSize(UtilsCustom.batch_size);
 
             long startTimeNN = System.currentTimeMillis();
 
-            UtilsCustom.results.clear();
-            UtilsCustom.confs_patch.clear();
-
-            float[] floatPixels = new float[width * height * 3 * batchSize];
+            UtilsCustom.cellTable.clearResults();
 
-            float[] floatPixels_last;
+            TensorPacker tensorPacker = new TensorPacker(width, height);
 
             int NumOfImage = cellChip.size();
 
             int iteration = NumOfImage / batchSize;
             int lastBatchSize = NumOfImage % batchSize;
 
-            floatPixels_last = new float[width * height * 3 * lastBatchSize];
+            if (tensorFlowClassifier.acceptsBytes()) {
+                classifyBytes(tensorPacker, iteration, lastBatchSize);
+            } else {
 
-            // normal batches
-            for (int i = 0; i < iteration; i++) {
+                // normal batches
+                float[] floatPixels = tensorPacker.obtain(batchSize);
+                for (int i = 0; i < iteration; i++) {
 
-                for (int n = 0; n < batchSize; n++) {
+                    for (int n = 0; n < batchSize; n++) {
 
-                    floatPixels = putInPixels(i, n, batchSize, floatPixels);
-                }
+                        tensorPacker.pack(cellChip.get(i * batchSize + n), floatPixels, n);
+                    }
 
-                UtilsCustom.tensorFlowClassifier_thin.recongnize_batch(floatPixels, batchSize);
+                    tensorFlowClassifier.recongnize_batch(floatPixels, batchSize);
 
-            }
+                }
 
-            // last batch
-            if (lastBatchSize != 0) {
-                for (int n = 0; n < lastBatchSize; n++) {
+                // last batch
+                if (lastBatchSize != 0) {
+                    float[] floatPixels_last = tensorPacker.obtain(lastBatchSize, true);
+                    for (int n = 0; n < lastBatchSize; n++) {
 
-                    floatPixels_last = putInPixels(iteration, n, batchSize, floatPixels_last);
-                }
+                        tensorPacker.pack(cellChip.get(iteration * batchSize + n), floatPixels_last, n);
+                    }
 
-                UtilsCustom.tensorFlowClassifier_thin.recongnize_batch(floatPixels_last, lastBatchSize);
+                    tensorFlowClassifier.recongnize_batch(floatPixels_last, lastBatchSize);
+                }
             }
+            tensorPacker.release();
 
             long endTime_NN = System.currentTimeMillis();
             long totalTime_NN = endTime_NN - startTimeNN;
@@ -392,33 +546,35 @@ public class Cells {
         return chip_bitmap;
     }*/
 
-    private float[] putInPixels(int i, int n, int batchSize, float[] floatPixels) {
-
-        Bitmap chip_bitmap;
-        Mat singlechip;
-        int[] intPixels = new int[width * height];
-
-        singlechip = cellChip.get(i * batchSize + n);
+    private void compareFeatureTable(int chipNum) {
 
-        singlechip.convertTo(singlechip, CvType.CV_8U);
+        long startTime = System.currentTimeMillis();
 
-        Imgproc.resize(singlechip, singlechip, new Size(width, height), 0, 0, Imgproc.INTER_CUBIC);
+        List<Mat> featureVecs = new ArrayList<>();
+        for (int k = 0; k < chipNum; k++) {
+            Mat chip = chipExtractor.getChip(UtilsCustom.oriSizeMat, k);
+            featureVecs.add(computeFeatureVector(chip));
+            chip.release();
+        }
 
-        chip_bitmap = Bitmap.createBitmap(singlechip.cols(), singlechip.rows(), Bitmap.Config.ARGB_8888);
-        Utils.matToBitmap(singlechip, chip_bitmap);
+        Mat featureTable_old = new Mat();
+        Core.vconcat(featureVecs, featureTable_old);
+        for (Mat featureVec : featureVecs) {
+            featureVec.release();
+        }
 
-        chip_bitmap.getPixels(intPixels, 0, chip_bitmap.getWidth(), 0, 0, chip_bitmap.getWidth(), chip_bitmap.getHeight());
+        long totalTime = System.currentTimeMillis() - startTime;
 
-        for (int j = 0; j < intPixels.length; ++j) {
-            floatPixels[n * width * height * 3 + j * 3 + 0] = ((intPixels[j] >> 16) & 0xFF) / 255.0f; //R
-            floatPixels[n * width * height * 3 + j * 3 + 1] = ((intPixels[j] >> 8) & 0xFF) / 255.0f;  //G
-            floatPixels[n * width * height * 3 + j * 3 + 2] = (intPixels[j] & 0xFF) / 255.0f;         //B
-        }
+        Mat diff = new Mat();
+        Core.compare(featureTable, featureTable_old, diff, Core.CMP_NE);
+        int diffNum = Core.countNonZero(diff);
+        diff.release();
+        featureTable_old.release();
 
-        return floatPixels;
+        Log.d(TAG, "SVM features " + chipNum + " cells, per chip: " + totalTime + " ms, different values: " + diffNum);
     }
 
-    // compute feature vector for each chip/cell
+    // compute feature vector for each chip/cell, reference for HistogramFeatures
     private Mat computeFeatureVector(Mat roi) {
 
         Mat chip = roi;
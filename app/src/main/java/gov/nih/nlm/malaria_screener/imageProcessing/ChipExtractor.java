@@ -0,0 +1,446 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/*
+ *   Extracts the masked RGB chip of every cell from the CV_32S label image.
+ *
+ *   The label image is read one row at a time into a reused row buffer and every labelled pixel is written into the
+ *   mask of its cell. All masks live in one byte arena indexed by offset, so the label image is walked once instead
+ *   of once per cell. Bounding boxes, areas and the arena are kept between images and only grow when needed.
+ *
+ *   extractScaled() takes labels at segmentation resolution instead: the bounding boxes are scaled to the output
+ *   resolution and each mask is filled by nearest neighbour lookup of its own box only, so no full resolution label
+ *   image is needed.
+ * */
+public class ChipExtractor {
+
+    private final int dilateRadius;
+
+    private int cellNum = 0;
+
+    // per cell, in label order
+    private int[] cellLabels = new int[0];
+    private int[] boxX = new int[0];
+    private int[] boxY = new int[0];
+    private int[] boxW = new int[0];
+    private int[] boxH = new int[0];
+    private int[] areas = new int[0];
+    private int[] offsets = new int[0];
+
+    private byte[] maskArena = new byte[0];
+
+    private int[] rowBuffer = new int[0];
+    private int[] labelBuffer = new int[0];
+    private int[] columnMap = new int[0];
+    private byte[] dilateBuffer = new byte[0];
+    private byte[] chipBuffer = new byte[0];
+    private byte[] resizedBuffer = new byte[0];
+    private Mat resized = new Mat();
+
+    /*
+     *   @param dilateSize: size of the square structuring element the cell masks are dilated with, 1 for none
+     * */
+    public ChipExtractor(int dilateSize) {
+        this.dilateRadius = dilateSize / 2;
+    }
+
+    /*
+     *   @param labels: CV_32S label image
+     *   @param stats: stats of connectedComponentsWithStats, 5 values per label, label 0 is the background
+     *   @param skip: labels to leave out, indexed by label
+     *   @param minBoxArea: labels with a bounding box area <= minBoxArea are left out
+     *   @return number of extracted cells
+     * */
+    public int extract(Mat labels, int[] stats, boolean[] skip, double minBoxArea) {
+
+        int ccNum = stats.length / 5;
+
+        // bounding boxes and mask offsets of the kept labels
+        int[] slot = new int[ccNum];
+        ensureCellCapacity(ccNum);
+
+        cellNum = 0;
+        int arenaSize = 0;
+
+        for (int i = 1; i < ccNum; i++) {
+
+            int w = stats[i * 5 + 2];
+            int h = stats[i * 5 + 3];
+
+            if (skip[i] || w * h <= minBoxArea) {
+                slot[i] = -1;
+                continue;
+            }
+
+            slot[i] = cellNum;
+
+            cellLabels[cellNum] = i;
+            boxX[cellNum] = stats[i * 5];
+            boxY[cellNum] = stats[i * 5 + 1];
+            boxW[cellNum] = w;
+            boxH[cellNum] = h;
+            areas[cellNum] = 0;
+            offsets[cellNum] = arenaSize;
+
+            arenaSize += w * h;
+            cellNum++;
+        }
+
+        if (maskArena.length < arenaSize) {
+            maskArena = new byte[arenaSize];
+        } else {
+            Arrays.fill(maskArena, 0, arenaSize, (byte) 0);
+        }
+
+        // single pass over the label image
+        int rows = labels.rows();
+        int cols = labels.cols();
+
+        if (rowBuffer.length < cols) {
+            rowBuffer = new int[cols];
+        }
+
+        for (int r = 0; r < rows; r++) {
+
+            labels.get(r, 0, rowBuffer);
+
+            for (int c = 0; c < cols; c++) {
+
+                int label = rowBuffer[c];
+                if (label <= 0) {
+                    continue;
+                }
+
+                int k = slot[label];
+                if (k < 0) {
+                    continue;
+                }
+
+                maskArena[offsets[k] + (r - boxY[k]) * boxW[k] + (c - boxX[k])] = 1;
+                areas[k]++;
+            }
+        }
+
+        // dilate to include cell boundary in extracted patches
+        if (dilateRadius > 0) {
+            for (int k = 0; k < cellNum; k++) {
+                dilateMask(k);
+            }
+        }
+
+        return cellNum;
+    }
+
+    /*
+     *   @param labels: CV_32S label image at segmentation resolution
+     *   @param stats: stats of connectedComponentsWithStats on labels
+     *   @param skip: labels to leave out, indexed by label
+     *   @param minBoxArea: labels with a bounding box area <= minBoxArea at output resolution are left out
+     *   @param rows: rows of the output (original) image
+     *   @param cols: cols of the output (original) image
+     *   @return number of extracted cells, boxes and masks are at output resolution
+     * */
+    public int extractScaled(Mat labels, int[] stats, boolean[] skip, double minBoxArea, int rows, int cols) {
+
+        int ccNum = stats.length / 5;
+
+        int labelRows = labels.rows();
+        int labelCols = labels.cols();
+
+        double scaleX = (double) cols / labelCols;
+        double scaleY = (double) rows / labelRows;
+
+        ensureCellCapacity(ccNum);
+
+        cellNum = 0;
+        int arenaSize = 0;
+
+        for (int i = 1; i < ccNum; i++) {
+
+            if (skip[i]) {
+                continue;
+            }
+
+            int x0 = (int) Math.floor(stats[i * 5] * scaleX);
+            int y0 = (int) Math.floor(stats[i * 5 + 1] * scaleY);
+            int x1 = Math.min(cols, (int) Math.ceil((stats[i * 5] + stats[i * 5 + 2]) * scaleX));
+            int y1 = Math.min(rows, (int) Math.ceil((stats[i * 5 + 1] + stats[i * 5 + 3]) * scaleY));
+
+            int w = x1 - x0;
+            int h = y1 - y0;
+
+            if (w * h <= minBoxArea) {
+                continue;
+            }
+
+            cellLabels[cellNum] = i;
+            boxX[cellNum] = x0;
+            boxY[cellNum] = y0;
+            boxW[cellNum] = w;
+            boxH[cellNum] = h;
+            areas[cellNum] = 0;
+            offsets[cellNum] = arenaSize;
+
+            arenaSize += w * h;
+            cellNum++;
+        }
+
+        if (maskArena.length < arenaSize) {
+            maskArena = new byte[arenaSize];
+        }
+
+        int labelLength = labelRows * labelCols;
+        if (labelBuffer.length < labelLength) {
+            labelBuffer = new int[labelLength];
+        }
+        labels.get(0, 0, labelBuffer);
+
+        // source column of every output column, same mapping as INTER_NEAREST
+        if (columnMap.length < cols) {
+            columnMap = new int[cols];
+        }
+        for (int c = 0; c < cols; c++) {
+            columnMap[c] = Math.min(labelCols - 1, (int) (c / scaleX));
+        }
+
+        for (int k = 0; k < cellNum; k++) {
+
+            int label = cellLabels[k];
+            int w = boxW[k];
+            int offset = offsets[k];
+            int area = 0;
+
+            for (int r = 0; r < boxH[k]; r++) {
+
+                int labelRow = Math.min(labelRows - 1, (int) ((boxY[k] + r) / scaleY)) * labelCols;
+                int maskRow = offset + r * w;
+
+                for (int c = 0; c < w; c++) {
+                    if (labelBuffer[labelRow + columnMap[boxX[k] + c]] == label) {
+                        maskArena[maskRow + c] = 1;
+                        area++;
+                    } else {
+                        maskArena[maskRow + c] = 0;
+                    }
+                }
+            }
+
+            areas[k] = area;
+        }
+
+        // dilate to include cell boundary in extracted patches
+        if (dilateRadius > 0) {
+            for (int k = 0; k < cellNum; k++) {
+                dilateMask(k);
+            }
+        }
+
+        return cellNum;
+    }
+
+    /*
+     *   @param rgb: 3 channel 8 bit image at output resolution
+     *   @return new CV_8UC3 chip of cell k, pixels outside of the dilated mask are 0
+     * */
+    public Mat getChip(Mat rgb, int k) {
+
+        byte[] pixels = getChipPixels(rgb, k);
+
+        Mat chip = new Mat(boxH[k], boxW[k], CvType.CV_8UC3);
+        chip.put(0, 0, pixels);
+
+        return chip;
+    }
+
+    /*
+     *   Same as getChip without creating a Mat.
+     *   @return interleaved 3 channel pixels of the chip, boxW * boxH * 3 bytes at the start of a buffer that is
+     *           reused by the next call
+     * */
+    public byte[] getChipPixels(Mat rgb, int k) {
+
+        int w = boxW[k];
+        int h = boxH[k];
+        int length = w * h;
+
+        if (chipBuffer.length < length * 3) {
+            chipBuffer = new byte[length * 3];
+        }
+
+        Mat roi = new Mat(rgb, new Rect(boxX[k], boxY[k], w, h));
+        roi.get(0, 0, chipBuffer);
+        roi.release();
+
+        int offset = offsets[k];
+        for (int p = 0; p < length; p++) {
+            if (maskArena[offset + p] == 0) {
+                chipBuffer[p * 3] = 0;
+                chipBuffer[p * 3 + 1] = 0;
+                chipBuffer[p * 3 + 2] = 0;
+            }
+        }
+
+        return chipBuffer;
+    }
+
+    /*
+     *   Chip of cell k at network input size: the box is cut from rgb and resized with INTER_AREA in one step, the
+     *   cell mask is sampled at the centre of the source area of every output pixel and applied at the target size.
+     *   @return interleaved 3 channel pixels, width * height * 3 bytes at the start of a buffer that is reused by the
+     *           next call
+     * */
+    public byte[] getResizedChipPixels(Mat rgb, int k, int width, int height) {
+
+        int w = boxW[k];
+        int h = boxH[k];
+
+        Mat roi = new Mat(rgb, new Rect(boxX[k], boxY[k], w, h));
+        Imgproc.resize(roi, resized, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+        roi.release();
+
+        int length = width * height;
+        if (resizedBuffer.length < length * 3) {
+            resizedBuffer = new byte[length * 3];
+        }
+        resized.get(0, 0, resizedBuffer);
+
+        int offset = offsets[k];
+        double scaleX = (double) w / width;
+        double scaleY = (double) h / height;
+
+        for (int r = 0; r < height; r++) {
+            int maskRow = offset + Math.min(h - 1, (int) ((r + 0.5) * scaleY)) * w;
+            for (int c = 0; c < width; c++) {
+                if (maskArena[maskRow + Math.min(w - 1, (int) ((c + 0.5) * scaleX))] == 0) {
+                    int p = (r * width + c) * 3;
+                    resizedBuffer[p] = 0;
+                    resizedBuffer[p + 1] = 0;
+                    resizedBuffer[p + 2] = 0;
+                }
+            }
+        }
+
+        return resizedBuffer;
+    }
+
+    public int getCellNum() {
+        return cellNum;
+    }
+
+    public int getLabel(int k) {
+        return cellLabels[k];
+    }
+
+    public Rect getBoundingBox(int k) {
+        return new Rect(boxX[k], boxY[k], boxW[k], boxH[k]);
+    }
+
+    // pixel count of cell k before dilation
+    public int getArea(int k) {
+        return areas[k];
+    }
+
+    /*
+     *   Square dilation as a horizontal then a vertical running max, restricted to the bounding box like
+     *   Imgproc.dilate on the chip. The mask is 0/1, so the max of a window is kept as the count of set pixels in it,
+     *   which is updated by one pixel entering and one leaving per step: O(1) per pixel whatever the radius.
+     * */
+    private void dilateMask(int k) {
+
+        int w = boxW[k];
+        int h = boxH[k];
+        int offset = offsets[k];
+        int radius = dilateRadius;
+
+        if (dilateBuffer.length < w * h) {
+            dilateBuffer = new byte[w * h];
+        }
+
+        // horizontal, mask -> buffer
+        for (int r = 0; r < h; r++) {
+            int row = offset + r * w;
+
+            int count = 0;
+            for (int c = 0; c <= Math.min(w - 1, radius); c++) {
+                count += maskArena[row + c];
+            }
+
+            for (int c = 0; c < w; c++) {
+                dilateBuffer[r * w + c] = (byte) (count > 0 ? 1 : 0);
+
+                if (c + radius + 1 < w) {
+                    count += maskArena[row + c + radius + 1];
+                }
+                if (c - radius >= 0) {
+                    count -= maskArena[row + c - radius];
+                }
+            }
+        }
+
+        // vertical, buffer -> mask
+        for (int c = 0; c < w; c++) {
+
+            int count = 0;
+            for (int r = 0; r <= Math.min(h - 1, radius); r++) {
+                count += dilateBuffer[r * w + c];
+            }
+
+            for (int r = 0; r < h; r++) {
+                maskArena[offset + r * w + c] = (byte) (count > 0 ? 1 : 0);
+
+                if (r + radius + 1 < h) {
+                    count += dilateBuffer[(r + radius + 1) * w + c];
+                }
+                if (r - radius >= 0) {
+                    count -= dilateBuffer[(r - radius) * w + c];
+                }
+            }
+        }
+    }
+
+    public void release() {
+        resized.release();
+    }
+
+    private void ensureCellCapacity(int capacity) {
+
+        if (cellLabels.length >= capacity) {
+            return;
+        }
+
+        cellLabels = new int[capacity];
+        boxX = new int[capacity];
+        boxY = new int[capacity];
+        boxW = new int[capacity];
+        boxH = new int[capacity];
+        areas = new int[capacity];
+        offsets = new int[capacity];
+    }
+
+}
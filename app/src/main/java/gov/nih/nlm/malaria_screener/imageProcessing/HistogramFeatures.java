@@ -0,0 +1,146 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+
+/*
+ *   48 bin colour histogram feature of the cell chips for the SVM, computed on primitive arrays for all cells of an
+ *   image into one N x 48 table.
+ *
+ *   Same feature as the per chip split/divide/minMaxLoc/calcHist version: per channel the normalized colour
+ *   c / (R + G + B) over the pixels with a non-zero first channel, 16 uniform bins between the min and max of the
+ *   cell, the max itself falls outside the last bin like in calcHist.
+ * */
+public class HistogramFeatures {
+
+    public static final int BINS = 16;
+    public static final int LENGTH = BINS * 3;
+
+    private float[] table = new float[0];
+    private int cellNum = 0;
+
+    private float[] normalized = new float[0];
+
+    /*
+     *   Starts a new table of cellNum rows, all 0.
+     * */
+    public void reset(int cellNum) {
+
+        this.cellNum = cellNum;
+
+        if (table.length < cellNum * LENGTH) {
+            table = new float[cellNum * LENGTH];
+        } else {
+            Arrays.fill(table, 0, cellNum * LENGTH, 0);
+        }
+    }
+
+    /*
+     *   @param chip: interleaved 3 channel chip pixels, background 0
+     *   @param pixelNum: number of pixels of the chip
+     *   @param row: row of the cell in the table
+     * */
+    public void compute(byte[] chip, int pixelNum, int row) {
+
+        if (normalized.length < pixelNum * 3) {
+            normalized = new float[pixelNum * 3];
+        }
+
+        // normalized colours of the foreground pixels, packed, and their range per channel
+        float min[] = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+        float max[] = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        int count = 0;
+
+        for (int p = 0; p < pixelNum; p++) {
+
+            int c0 = chip[p * 3] & 0xFF;
+            if (c0 == 0) {
+                continue;
+            }
+            int c1 = chip[p * 3 + 1] & 0xFF;
+            int c2 = chip[p * 3 + 2] & 0xFF;
+            float sum = c0 + c1 + c2;
+
+            float n0 = c0 / sum;
+            float n1 = c1 / sum;
+            float n2 = c2 / sum;
+
+            normalized[count * 3] = n0;
+            normalized[count * 3 + 1] = n1;
+            normalized[count * 3 + 2] = n2;
+            count++;
+
+            if (n0 < min[0]) min[0] = n0;
+            if (n0 > max[0]) max[0] = n0;
+            if (n1 < min[1]) min[1] = n1;
+            if (n1 > max[1]) max[1] = n1;
+            if (n2 < min[2]) min[2] = n2;
+            if (n2 > max[2]) max[2] = n2;
+        }
+
+        int offset = row * LENGTH;
+
+        for (int c = 0; c < 3; c++) {
+
+            // an empty range gives an empty histogram, as calcHist does
+            if (count == 0 || !(max[c] > min[c])) {
+                continue;
+            }
+
+            double scale = BINS / ((double) max[c] - (double) min[c]);
+            double shift = -scale * min[c];
+            int histOffset = offset + c * BINS;
+
+            for (int i = 0; i < count; i++) {
+                double x = normalized[i * 3 + c] * scale + shift;
+                // floor, negative values are outside the first bin
+                if (x >= 0 && x < BINS) {
+                    table[histOffset + (int) x]++;
+                }
+            }
+        }
+    }
+
+    /*
+     *   @return cellNum x 48 CV_32F feature table
+     * */
+    public Mat toMat() {
+
+        Mat featureTable = new Mat(cellNum, LENGTH, CvType.CV_32FC1);
+        if (cellNum > 0) {
+            featureTable.put(0, 0, table); // only the first cellNum rows are copied
+        }
+
+        return featureTable;
+    }
+
+    public float[] getTable() {
+        return table;
+    }
+
+    public int getCellNum() {
+        return cellNum;
+    }
+
+}
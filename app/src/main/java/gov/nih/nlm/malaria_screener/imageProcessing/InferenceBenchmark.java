@@ -0,0 +1,99 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Random;
+
+import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
+
+/*
+ *   Side by side timing of the TF Mobile and TF Lite backends on the same network, malaria_thinsmear_44 as frozen
+ *   graph and as .tflite. Both get the same random batches, the time per image and the largest output difference
+ *   are logged for a few batch sizes. Enabled with UtilsCustom.backend_benchmark, runs once per app start.
+ * */
+public class InferenceBenchmark {
+
+    private static final String TAG = "MyDebug";
+
+    private static final String MODEL_PB = "malaria_thinsmear_44.h5.pb";
+    private static final String MODEL_TFLITE = "malaria_thinsmear_44.tflite";
+    private static final String INPUT_LAYER = "conv2d_20_input";
+    private static final String OUTPUT_LAYER = "output_node0";
+    private static final int INPUT_SIZE = 44;
+
+    private static final int[] BATCH_SIZES = {1, 8, 32};
+
+    // images per batch size, after one warm up batch
+    private static final int IMAGES = 256;
+
+    public static void run(AssetManager assets) throws IOException {
+
+        InferenceBackend tfMobile = new TFMobileBackend(assets, MODEL_PB, INPUT_SIZE, INPUT_SIZE, INPUT_LAYER, OUTPUT_LAYER, TensorFlowClassifier.NUM_CLASSES);
+        InferenceBackend tfLite = new TFLiteBackend(assets, MODEL_TFLITE, INPUT_SIZE, INPUT_SIZE, TensorFlowClassifier.NUM_CLASSES, UtilsCustom.tflite_threads);
+
+        int imageLength = INPUT_SIZE * INPUT_SIZE * 3;
+        Random random = new Random(0);
+
+        for (int batchSize : BATCH_SIZES) {
+
+            float[] pixels = new float[batchSize * imageLength];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = random.nextFloat();
+            }
+
+            double time_mobile = timePerImage(tfMobile, pixels, batchSize);
+            double time_lite = timePerImage(tfLite, pixels, batchSize);
+
+            float[] output_mobile = tfMobile.infer(pixels, batchSize);
+            float[] output_lite = tfLite.infer(pixels, batchSize);
+
+            float diff_max = 0;
+            for (int i = 0; i < output_mobile.length; i++) {
+                diff_max = Math.max(diff_max, Math.abs(output_mobile[i] - output_lite[i]));
+            }
+
+            Log.d(TAG, "Backend benchmark, batch size " + batchSize + ", TF Mobile: " + time_mobile + " ms per image, TF Lite: "
+                    + time_lite + " ms per image, max output difference: " + diff_max);
+        }
+
+        tfMobile.close();
+        tfLite.close();
+    }
+
+    private static double timePerImage(InferenceBackend backend, float[] pixels, int batchSize) {
+
+        // warm up, the first run of a new input shape is slower
+        backend.infer(pixels, batchSize);
+
+        int runs = (IMAGES + batchSize - 1) / batchSize;
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            backend.infer(pixels, batchSize);
+        }
+
+        return (System.nanoTime() - startTime) / 1e6 / (runs * batchSize);
+    }
+
+}
@@ -0,0 +1,276 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ *   Overlaps chip extraction with CNN inference. The producer packs chips into batches with add() and puts full
+ *   batches into a bounded queue, a consumer thread takes them and runs the classifier. Batches are consumed in the
+ *   order they are added, so the results come out in chip order as before.
+ *
+ *   Only queueCapacity + 2 batch arrays exist at any time. When the queue is full add() blocks, so the chips
+ *   don't need to be kept until the end of extraction.
+ *
+ *   With a ByteBatchConsumer the batches hold the 8 bit chip pixels instead of floats, for quantized models.
+ * */
+public class InferencePipeline {
+
+    private static final String TAG = "MyDebug";
+
+    public interface BatchConsumer {
+        void consume(float[] pixels, int dims);
+    }
+
+    public interface ByteBatchConsumer {
+        void consume(byte[] pixels, int dims);
+    }
+
+    private static class Batch {
+        final Object pixels; // float[] or byte[]
+        final int dims;
+
+        Batch(Object pixels, int dims) {
+            this.pixels = pixels;
+            this.dims = dims;
+        }
+    }
+
+    private static final Batch END = new Batch(null, 0);
+
+    private final TensorPacker tensorPacker;
+    private final int batchSize;
+    private final int chipLength;
+    private final BatchConsumer consumer;
+    private final ByteBatchConsumer byteConsumer;
+
+    private final BlockingQueue<Batch> ready;
+    private final BlockingQueue<Object> free;
+
+    private Object current;
+    private int currentNum = 0;
+    private int chipNum = 0;
+
+    private Thread consumerThread;
+    private volatile Throwable error;
+    private volatile boolean aborted = false;
+
+    private long consumeTime = 0;
+
+    public InferencePipeline(TensorPacker tensorPacker, int batchSize, int queueCapacity, BatchConsumer consumer) {
+        this(tensorPacker, batchSize, queueCapacity, consumer, null);
+    }
+
+    public InferencePipeline(TensorPacker tensorPacker, int batchSize, int queueCapacity, ByteBatchConsumer byteConsumer) {
+        this(tensorPacker, batchSize, queueCapacity, null, byteConsumer);
+    }
+
+    private InferencePipeline(TensorPacker tensorPacker, int batchSize, int queueCapacity, BatchConsumer consumer, ByteBatchConsumer byteConsumer) {
+
+        this.tensorPacker = tensorPacker;
+        this.batchSize = batchSize;
+        this.chipLength = tensorPacker.getWidth() * tensorPacker.getHeight() * 3;
+        this.consumer = consumer;
+        this.byteConsumer = byteConsumer;
+
+        ready = new ArrayBlockingQueue<>(queueCapacity + 1); // + 1 for END
+        free = new ArrayBlockingQueue<>(queueCapacity + 2);
+        for (int i = 0; i < queueCapacity + 2; i++) {
+            free.add(newBatchArray(batchSize * chipLength));
+        }
+    }
+
+    public void start() {
+
+        consumerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consumeAll();
+            }
+        }, "InferencePipeline");
+        consumerThread.start();
+    }
+
+    /*
+     *   Packs the chip into the current batch and queues the batch when it is full. The chip can be released
+     *   right after this returns.
+     * */
+    public void add(Mat chip) {
+
+        if (byteConsumer != null) {
+            tensorPacker.packBytes(chip, (byte[]) nextSlot(), currentNum);
+        } else {
+            tensorPacker.pack(chip, (float[]) nextSlot(), currentNum);
+        }
+        slotFilled();
+    }
+
+    /*
+     *   Same as add(Mat) for interleaved 3 channel pixels that are already at the input size of the classifier.
+     * */
+    public void add(byte[] chipPixels) {
+
+        if (byteConsumer != null) {
+            tensorPacker.packBytes(chipPixels, 3, (byte[]) nextSlot(), currentNum);
+        } else {
+            tensorPacker.pack(chipPixels, 3, (float[]) nextSlot(), currentNum);
+        }
+        slotFilled();
+    }
+
+    private Object newBatchArray(int length) {
+        return byteConsumer != null ? new byte[length] : new float[length];
+    }
+
+    private Object nextSlot() {
+
+        if (current == null) {
+            current = take(free);
+        }
+
+        return current;
+    }
+
+    private void slotFilled() {
+
+        currentNum++;
+        chipNum++;
+
+        if (currentNum == batchSize) {
+            put(new Batch(current, batchSize));
+            current = null;
+            currentNum = 0;
+        }
+    }
+
+    /*
+     *   Queues the last, smaller batch, waits until all batches are consumed and releases the tensor packer.
+     * */
+    public void finish() {
+
+        if (currentNum != 0) {
+            // the feed has to be exactly dims chips long
+            Object last = newBatchArray(currentNum * chipLength);
+            System.arraycopy(current, 0, last, 0, currentNum * chipLength);
+            put(new Batch(last, currentNum));
+        }
+        current = null;
+        currentNum = 0;
+
+        put(END);
+
+        try {
+            consumerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Inference pipeline interrupted", e);
+        }
+
+        tensorPacker.release();
+
+        Log.d(TAG, "Inference pipeline chips: " + chipNum + ", inference Time: " + consumeTime);
+
+        if (error != null) {
+            throw new RuntimeException("Inference failed", error);
+        }
+    }
+
+    /*
+     *   Stops the consumer after a failure on the producer side, e.g. an exception in the chip loop, instead of
+     *   finish(). Batches still queued are dropped and the results are incomplete. Safe to call after finish().
+     * */
+    public void abort() {
+
+        if (consumerThread == null || !consumerThread.isAlive()) {
+            return;
+        }
+
+        aborted = true;
+        current = null;
+        currentNum = 0;
+
+        // drop the queued batches, then END always fits in, also when the producer was interrupted
+        ready.clear();
+        ready.offer(END);
+
+        try {
+            consumerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        tensorPacker.release();
+
+        Log.d(TAG, "Inference pipeline aborted after chips: " + chipNum);
+    }
+
+    private void consumeAll() {
+
+        while (true) {
+            Batch batch = take(ready);
+            if (batch == END) {
+                return;
+            }
+
+            // keep draining after an error so that the producer never blocks, finish() reports it
+            if (error == null && !aborted) {
+                try {
+                    long startTime = System.currentTimeMillis();
+                    if (byteConsumer != null) {
+                        byteConsumer.consume((byte[]) batch.pixels, batch.dims);
+                    } else {
+                        consumer.consume((float[]) batch.pixels, batch.dims);
+                    }
+                    consumeTime += System.currentTimeMillis() - startTime;
+                } catch (Throwable t) {
+                    error = t;
+                }
+            }
+
+            if (batch.dims == batchSize) {
+                free.offer(batch.pixels);
+            }
+        }
+    }
+
+    private void put(Batch batch) {
+        try {
+            ready.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Inference pipeline interrupted", e);
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Inference pipeline interrupted", e);
+        }
+    }
+
+}
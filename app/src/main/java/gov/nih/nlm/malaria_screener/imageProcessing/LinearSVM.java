@@ -0,0 +1,131 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+/*
+ *   Linear SVM with its support vectors folded into one weight vector.
+ *
+ *   For the linear kernel the decision value of the Matlab model
+ *       f(x) = sum_k alpha_k * <sv_k, (x + shift) .* scale> + bias
+ *   is the same as <w, x> + b with w_j = scale_j * sum_k alpha_k * sv_kj and b = bias + <w, shift>. compile() does
+ *   this once when the model is loaded, classifying a cell is then one dot product over the features.
+ * */
+public class LinearSVM {
+
+    private final double[] weight;
+    private final double bias;
+
+    private LinearSVM(double[] weight, double bias) {
+        this.weight = weight;
+        this.bias = bias;
+    }
+
+    /*
+     *   @param supportVector: support vectors x features
+     *   @param alpha: alpha times label of every support vector
+     *   @param scaleFactor, shift: per feature normalization, applied as (x + shift) * scaleFactor
+     * */
+    public static LinearSVM compile(double[][] supportVector, double[] alpha, double[] scaleFactor, double[] shift, double bias) {
+
+        int length = scaleFactor.length;
+
+        if (supportVector.length != alpha.length) {
+            throw new IllegalArgumentException("Support vectors and alphas differ in length: " + supportVector.length + ", " + alpha.length);
+        }
+
+        double[] w = new double[length];
+        for (int k = 0; k < supportVector.length; k++) {
+
+            double[] sv = supportVector[k];
+            double a = alpha[k];
+
+            for (int j = 0; j < length; j++) {
+                w[j] += a * sv[j];
+            }
+        }
+
+        return fold(w, scaleFactor, shift, bias);
+    }
+
+    /*
+     *   Same as above with the support vectors in one row major array of svNum x length.
+     * */
+    public static LinearSVM compile(double[] supportVector, double[] alpha, double[] scaleFactor, double[] shift, int length, double bias) {
+
+        if (supportVector.length != alpha.length * length) {
+            throw new IllegalArgumentException("Support vectors and alphas differ in length: " + supportVector.length / length + ", " + alpha.length);
+        }
+
+        double[] w = new double[length];
+        for (int k = 0; k < alpha.length; k++) {
+
+            int offset = k * length;
+            double a = alpha[k];
+
+            for (int j = 0; j < length; j++) {
+                w[j] += a * supportVector[offset + j];
+            }
+        }
+
+        return fold(w, scaleFactor, shift, bias);
+    }
+
+    private static LinearSVM fold(double[] w, double[] scaleFactor, double[] shift, double bias) {
+
+        double b = bias;
+        for (int j = 0; j < w.length; j++) {
+            w[j] *= scaleFactor[j];
+            b += w[j] * shift[j];
+        }
+
+        return new LinearSVM(w, b);
+    }
+
+    public int getLength() {
+        return weight.length;
+    }
+
+    public double getBias() {
+        return bias;
+    }
+
+    /*
+     *   Decision values of all cells.
+     *   @param features: cellNum x getLength() feature table, row major
+     *   @param f: output, decision value of every cell, >= 0 is the positive class
+     * */
+    public void score(double[] features, int cellNum, double[] f) {
+
+        int length = weight.length;
+
+        for (int i = 0; i < cellNum; i++) {
+
+            int offset = i * length;
+            double sum = bias;
+
+            for (int j = 0; j < length; j++) {
+                sum += weight[j] * features[offset + j];
+            }
+
+            f[i] = sum;
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
+
+/*
+ *   Loads the classifier models in the background and hands them to the processors.
+ *
+ *   prepare() is called when the smear type and classifier of the session are known: it starts loading the models
+ *   the session needs, concurrently, and releases the others. The processors get a model with getThinClassifier(),
+ *   getThickClassifier() or getSVMClassifier(), which wait until the model is loaded and load it first if it was
+ *   not requested yet. The thin smear DL model runs on the backend chosen in Settings (UtilsCustom.inference_backend),
+ *   it is loaded again when the backend changes. Float TF Lite has only the older malaria_thinsmear_44 network and
+ *   is used only with UtilsCustom.tflite_float_debug, TF Mobile otherwise. The INT8 backend also applies to the thick
+ *   smear model, the quantized models are written to assets by tools/quantize_classifier.py and the float models are
+ *   used if they are missing.
+ * */
+public class ModelRegistry {
+
+    private static final String TAG = "MyDebug";
+
+    public static final int THIN = 0;
+    public static final int THICK = 1;
+    public static final int SVM = 2;
+
+    private static final int MODEL_NUM = 3;
+
+    // thin smear DL model
+    private static final String MODEL_THIN = "malaria_thinsmear_44_retrainSudan_20P_4000C_separate.pb";
+    private static final int INPUT_SIZE_THIN = 44;
+    private static final String INPUT_LAYER_THIN = "conv2d_1_input";
+    private static final String OUTPUT_LAYER_THIN = "dense_1/Softmax";
+    private static final String MODEL_THIN_LITE = "malaria_thinsmear_44.tflite"; // no TF Lite version of the retrained model yet
+    private static final String MODEL_THIN_INT8 = "malaria_thinsmear_44_retrainSudan_20P_4000C_separate_int8.tflite";
+
+    // thick smear DL model
+    private static final String MODEL_THICK = "ThickSmearModel.h5.pb";
+    private static final int INPUT_SIZE_THICK = 44;
+    private static final String INPUT_LAYER_THICK = "conv2d_1_input";
+    private static final String OUTPUT_LAYER_THICK = "output_node0";
+    private static final String MODEL_THICK_INT8 = "ThickSmearModel_int8.tflite";
+
+    private static Context context;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    private static final Future<?>[] models = new Future<?>[MODEL_NUM];
+    private static final int[] backends = new int[MODEL_NUM]; // InferenceBackend type of each loaded model
+
+    private static boolean benchmarkStarted = false;
+
+    /*
+     *   Starts loading the models needed for the smear type & classifier and releases the others.
+     *   @param smearType: "Thin" or "Thick"
+     *   @param whichClassifier: 0 DL, 1 SVM, only used for thin smears
+     * */
+    public static synchronized void prepare(Context context, String smearType, int whichClassifier) {
+
+        ModelRegistry.context = context.getApplicationContext();
+
+        boolean[] needed = new boolean[MODEL_NUM];
+        if (smearType.equals("Thick")) {
+            needed[THICK] = true;
+        } else if (whichClassifier == 1) {
+            needed[SVM] = true;
+        } else {
+            needed[THIN] = true;
+        }
+
+        for (int model = 0; model < MODEL_NUM; model++) {
+            if (needed[model]) {
+                if (models[model] != null && backends[model] != getBackendType(model)) {
+                    release(model);
+                }
+                request(model);
+            } else {
+                release(model);
+            }
+        }
+
+        if (UtilsCustom.backend_benchmark && !benchmarkStarted) {
+            benchmarkStarted = true;
+
+            final AssetManager assets = ModelRegistry.context.getAssets();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        InferenceBenchmark.run(assets);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     *   Starts loading the model if it is not loaded or loading yet.
+     * */
+    public static synchronized Future<?> request(final int model) {
+
+        if (models[model] == null) {
+
+            if (context == null) {
+                throw new IllegalStateException("ModelRegistry.prepare() was not called");
+            }
+
+            final int backend = getBackendType(model);
+            backends[model] = backend;
+            models[model] = executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return load(model, backend);
+                }
+            });
+        }
+
+        return models[model];
+    }
+
+    /*
+     *   Drops the model, TF models are closed once they are loaded. Processors that still hold the model must be done
+     *   with it, release is only called when the session changes.
+     * */
+    public static synchronized void release(int model) {
+
+        final Future<?> future = models[model];
+        if (future == null) {
+            return;
+        }
+        models[model] = null;
+
+        // wait for the load on the executor, don't block the caller
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Object loaded = future.get();
+                    if (loaded instanceof TensorFlowClassifier) {
+                        ((TensorFlowClassifier) loaded).close();
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        Log.d(TAG, "Model released: " + model);
+    }
+
+    public static TensorFlowClassifier getThinClassifier() {
+        return (TensorFlowClassifier) get(THIN);
+    }
+
+    public static TensorFlowClassifier getThickClassifier() {
+        return (TensorFlowClassifier) get(THICK);
+    }
+
+    public static SVM_Classifier getSVMClassifier() {
+        return (SVM_Classifier) get(SVM);
+    }
+
+    /*
+     *   @return true if the quantized thin smear model is in assets, without it the INT8 backend runs TF Mobile
+     * */
+    public static boolean hasQuantizedModel(AssetManager assets) {
+
+        try {
+            assets.openFd(MODEL_THIN_INT8).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static synchronized boolean isReady(int model) {
+        return models[model] != null && models[model].isDone();
+    }
+
+    /*
+     *   Waits until the model is loaded, don't call it on the UI thread.
+     * */
+    private static Object get(int model) {
+
+        Future<?> future = request(model);
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading model " + model, e);
+        } catch (ExecutionException e) {
+            // load again next time
+            synchronized (ModelRegistry.class) {
+                if (models[model] == future) {
+                    models[model] = null;
+                }
+            }
+            throw new RuntimeException("Failed to load model " + model, e.getCause());
+        }
+    }
+
+    // backend the model is loaded with at the current settings, float TF Lite is only available for the thin smear model
+    private static int getBackendType(int model) {
+
+        if (model == THIN && UtilsCustom.inference_backend == InferenceBackend.TFLITE) {
+            // other network than the TF Mobile model, see UtilsCustom.tflite_float_debug
+            return UtilsCustom.tflite_float_debug ? InferenceBackend.TFLITE : InferenceBackend.TF_MOBILE;
+        } else if (model == THIN) {
+            return UtilsCustom.inference_backend;
+        } else if (model == THICK && UtilsCustom.inference_backend == InferenceBackend.TFLITE_INT8) {
+            return InferenceBackend.TFLITE_INT8;
+        }
+
+        return InferenceBackend.TF_MOBILE;
+    }
+
+    private static Object load(int model, int backend) throws IOException {
+
+        long startTime = System.currentTimeMillis();
+
+        Object loaded = null;
+
+        if (backend == InferenceBackend.TFLITE_INT8) {
+            loaded = loadQuantizedClassifier(model == THIN ? MODEL_THIN_INT8 : MODEL_THICK_INT8, model == THIN ? INPUT_SIZE_THIN : INPUT_SIZE_THICK);
+        }
+
+        if (loaded != null) {
+            // quantized model
+        } else if (model == THIN && backend == InferenceBackend.TFLITE) {
+            loaded = loadTFLiteClassifier(MODEL_THIN_LITE, INPUT_SIZE_THIN);
+        } else if (model == THIN) {
+            loaded = loadTensorFlowClassifier(MODEL_THIN, INPUT_SIZE_THIN, INPUT_LAYER_THIN, OUTPUT_LAYER_THIN);
+        } else if (model == THICK) {
+            loaded = loadTensorFlowClassifier(MODEL_THICK, INPUT_SIZE_THICK, INPUT_LAYER_THICK, OUTPUT_LAYER_THICK);
+        } else {
+            loaded = loadSVMClassifier();
+        }
+
+        long totalTime = System.currentTimeMillis() - startTime;
+        Log.d(TAG, "Load model " + model + " Time: " + totalTime);
+
+        return loaded;
+    }
+
+    private static TensorFlowClassifier loadTensorFlowClassifier(String modelName, int inputSize, String inputLayer, String outputLayer) throws IOException {
+
+        TensorFlowClassifier classifier = TensorFlowClassifier.create(context.getAssets(), modelName, inputSize, inputSize, inputLayer, outputLayer);
+
+        return tune(classifier);
+    }
+
+    private static TensorFlowClassifier loadTFLiteClassifier(String modelName, int inputSize) throws IOException {
+
+        InferenceBackend backend = new TFLiteBackend(context.getAssets(), modelName, inputSize, inputSize, TensorFlowClassifier.NUM_CLASSES, UtilsCustom.tflite_threads);
+        TensorFlowClassifier classifier = TensorFlowClassifier.create(backend, modelName, inputSize, inputSize);
+
+        return tune(classifier);
+    }
+
+    /*
+     *   @return null if the quantized model is not in assets, it is not shipped unless it passed the agreement check
+     *   of tools/quantize_classifier.py
+     * */
+    private static TensorFlowClassifier loadQuantizedClassifier(String modelName, int inputSize) throws IOException {
+
+        InferenceBackend backend;
+        try {
+            backend = new QuantizedTFLiteBackend(context.getAssets(), modelName, inputSize, inputSize, TensorFlowClassifier.NUM_CLASSES, UtilsCustom.tflite_threads);
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No quantized model " + modelName + ", using the float model");
+            return null;
+        }
+        TensorFlowClassifier classifier = TensorFlowClassifier.create(backend, modelName, inputSize, inputSize);
+
+        return tune(classifier);
+    }
+
+    private static TensorFlowClassifier tune(TensorFlowClassifier classifier) {
+
+        // batch size per device and model, benchmarked on first launch only
+        if (UtilsCustom.batch_size_autotune) {
+            BatchSizeTuner.tune(context, classifier);
+        }
+
+        return classifier;
+    }
+
+    private static SVM_Classifier loadSVMClassifier() {
+
+        SVM_Classifier svm_classifier = SVM_Classifier.create(context);
+
+        try {
+            svm_classifier.readSVMModelFile(context.getAssets(), UtilsCustom.svm_model_file);
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            // fall back to the Matlab text export in res/raw
+            int classNum = 2;
+            for (int index = 0; index < classNum; index++) {
+                svm_classifier.readSVMTextFile(index);
+            }
+        }
+
+        return svm_classifier;
+    }
+
+}
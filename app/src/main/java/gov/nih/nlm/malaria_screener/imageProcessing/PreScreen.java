@@ -0,0 +1,204 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import gov.nih.nlm.malaria_screener.R;
+
+/*
+ *   Cheap checks on a heavily downsampled green channel to reject unusable frames before segmentation:
+ *   dynamic range, field of view fraction and cell coverage inside the field of view. Runs in a few ms.
+ *
+ *   The thresholds below are first guesses, set by hand so that black, blank and out of slide frames from the
+ *   development phone fail and normal thin smear captures pass. They are not calibrated against reference slides,
+ *   so frames are only rejected when UtilsCustom.pre_screen_mode is PRE_SCREEN_REJECT, by default the result is
+ *   only logged.
+ * */
+public class PreScreen {
+
+    private static final String TAG = "MyDebug";
+
+    public static final int OK = 0;
+    public static final int LOW_DYNAMIC_RANGE = 1;   // black, blank or saturated frame
+    public static final int NO_FIELD_OF_VIEW = 2;    // the illuminated field of view is (almost) missing
+    public static final int NO_CELLS = 3;            // field of view without any cells
+
+    private static final int WIDTH = 128; // width of the downsampled frame
+
+    // not calibrated, see above
+    private static final int MIN_DYNAMIC_RANGE = 30;       // 1st to 99th percentile of green, gray levels
+    private static final double MIN_FOV_FRACTION = 0.15;   // share of the frame that is illuminated
+    private static final double MIN_CELL_CONTRAST = 15;    // mean difference between cells & background, gray levels
+    private static final double MIN_CELL_FRACTION = 0.01;  // share of the field of view covered by cells
+
+    /*
+     *   @param image: 3 channel BGR frame
+     *   @return OK or the reason to retake the image
+     * */
+    public static int run(Mat image) {
+
+        long startTime = System.currentTimeMillis();
+
+        int height = Math.max(1, Math.round((float) image.rows() * WIDTH / image.cols()));
+        Mat small = new Mat();
+        Imgproc.resize(image, small, new Size(WIDTH, height), 0, 0, Imgproc.INTER_AREA);
+        Mat green = new Mat();
+        Core.extractChannel(small, green, 1);
+        small.release();
+
+        byte green_JP[] = new byte[(int) green.total()];
+        green.get(0, 0, green_JP);
+        green.release();
+
+        int result = screen(green_JP);
+
+        long endTime = System.currentTimeMillis();
+        long totalTime = endTime - startTime;
+        Log.d(TAG, "PreScreen Time: " + totalTime + ", result: " + result);
+
+        return result;
+    }
+
+    /*
+     *   @return string resource telling the user why the frame was rejected, 0 for OK
+     * */
+    public static int getReasonString(int result) {
+
+        switch (result) {
+            case LOW_DYNAMIC_RANGE:
+                return R.string.pre_screen_low_range;
+            case NO_FIELD_OF_VIEW:
+                return R.string.pre_screen_no_fov;
+            case NO_CELLS:
+                return R.string.pre_screen_no_cells;
+            default:
+                return 0;
+        }
+    }
+
+    private static int screen(byte[] green) {
+
+        int total = green.length;
+
+        int[] hist = new int[256];
+        for (byte value : green) {
+            hist[value & 0xFF]++;
+        }
+
+        // dynamic range
+        int p1 = percentile(hist, total, 0.01);
+        int p99 = percentile(hist, total, 0.99);
+        if (p99 - p1 < MIN_DYNAMIC_RANGE) {
+            return LOW_DYNAMIC_RANGE;
+        }
+
+        // field of view: everything clearly above the dark border around the illuminated circle
+        int fovTh = p1 + (p99 - p1) / 5;
+        int[] fovHist = new int[256];
+        int fovTotal = 0;
+        for (int v = fovTh + 1; v < 256; v++) {
+            fovHist[v] = hist[v];
+            fovTotal += hist[v];
+        }
+        if ((double) fovTotal / total < MIN_FOV_FRACTION) {
+            return NO_FIELD_OF_VIEW;
+        }
+
+        // cells are darker than the background in green, split the field of view with Otsu
+        int cellTh = otsu(fovHist, fovTotal);
+
+        long cellSum = 0;
+        long bgSum = 0;
+        int cellNum = 0;
+        for (int v = 0; v < 256; v++) {
+            if (v <= cellTh) {
+                cellSum += (long) v * fovHist[v];
+                cellNum += fovHist[v];
+            } else {
+                bgSum += (long) v * fovHist[v];
+            }
+        }
+        int bgNum = fovTotal - cellNum;
+
+        if (cellNum == 0 || bgNum == 0) {
+            return NO_CELLS;
+        }
+
+        double contrast = (double) bgSum / bgNum - (double) cellSum / cellNum;
+        double cellFraction = (double) cellNum / fovTotal;
+        if (contrast < MIN_CELL_CONTRAST || cellFraction < MIN_CELL_FRACTION) {
+            return NO_CELLS;
+        }
+
+        return OK;
+    }
+
+    private static int percentile(int[] hist, int total, double p) {
+
+        double count = 0;
+        for (int v = 0; v < 256; v++) {
+            count += hist[v];
+            if (count >= p * total) {
+                return v;
+            }
+        }
+
+        return 255;
+    }
+
+    private static int otsu(int[] hist, int total) {
+
+        double sum = 0;
+        for (int t = 0; t < 256; t++) sum += t * hist[t];
+
+        double sumB = 0;
+        int wB = 0;
+        double varMax = 0;
+        int threshold = 0;
+
+        for (int t = 0; t < 256; t++) {
+            wB += hist[t];
+            if (wB == 0) continue;
+
+            int wF = total - wB;
+            if (wF == 0) break;
+
+            sumB += t * hist[t];
+
+            double mB = sumB / wB;
+            double mF = (sum - sumB) / wF;
+
+            double varBetween = (double) wB * wF * (mB - mF) * (mB - mF);
+            if (varBetween > varMax) {
+                varMax = varBetween;
+                threshold = t;
+            }
+        }
+
+        return threshold;
+    }
+
+}
@@ -0,0 +1,203 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ *   Post-training INT8 quantized TensorFlow Lite model, see tools/quantize_classifier.py.
+ *
+ *   The model takes a uint8 (or int8) input tensor, so the 8 bit chip pixels are fed with inferBytes() without any
+ *   float conversion: the input quantization is applied with a 256 entry lookup table, which is the identity for the
+ *   usual scale 1/255 & zero point 0 and then the pixels are copied as they are. infer() with float input still works
+ *   for callers that only have floats, e.g. BatchSizeTuner. Float or quantized outputs are both supported.
+ * */
+public class QuantizedTFLiteBackend implements InferenceBackend {
+
+    private static final String TAG = "MyDebug";
+
+    private final Interpreter interpreter;
+
+    private final int width;
+    private final int height;
+    private final int numClasses;
+
+    private final byte[] inputLUT = new byte[256];
+    private final boolean identityInput;
+    private final float inputScale;
+    private final int inputZeroPoint;
+    private final int inputMin;
+    private final int inputMax;
+
+    private final boolean quantizedOutput;
+    private final boolean signedOutput;
+    private final float outputScale;
+    private final int outputZeroPoint;
+
+    private int currentDims = 0;
+    private ByteBuffer inputBuffer;
+    private ByteBuffer outputBuffer;
+    private byte[] inputBytes = new byte[0];
+
+    public QuantizedTFLiteBackend(AssetManager assetManager, String modelName, int width, int height, int numClasses, int numThreads) throws IOException {
+
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(numThreads);
+        options.setUseXNNPACK(true);
+
+        this.interpreter = new Interpreter(TFLiteBackend.loadModelFile(assetManager, modelName), options);
+
+        this.width = width;
+        this.height = height;
+        this.numClasses = numClasses;
+
+        Tensor input = interpreter.getInputTensor(0);
+        boolean signedInput = input.dataType() == DataType.INT8;
+        if (!signedInput && input.dataType() != DataType.UINT8) {
+            interpreter.close();
+            throw new IOException("Not a quantized input: " + modelName + ", " + input.dataType());
+        }
+
+        inputScale = input.quantizationParams().getScale();
+        inputZeroPoint = input.quantizationParams().getZeroPoint();
+        inputMin = signedInput ? -128 : 0;
+        inputMax = signedInput ? 127 : 255;
+
+        // pixel v is v / 255 in the float model
+        boolean identity = true;
+        for (int v = 0; v < 256; v++) {
+            int q = quantize(v / 255.0f);
+            inputLUT[v] = (byte) q;
+            identity &= q == v;
+        }
+        identityInput = identity;
+
+        Tensor output = interpreter.getOutputTensor(0);
+        quantizedOutput = output.dataType() == DataType.UINT8 || output.dataType() == DataType.INT8;
+        signedOutput = output.dataType() == DataType.INT8;
+        outputScale = quantizedOutput ? output.quantizationParams().getScale() : 1;
+        outputZeroPoint = quantizedOutput ? output.quantizationParams().getZeroPoint() : 0;
+
+        Log.d(TAG, "Quantized model " + modelName + ", input scale: " + inputScale + ", zero point: " + inputZeroPoint
+                + ", pixels fed as they are: " + identityInput + ", quantized output: " + quantizedOutput);
+    }
+
+    /*
+     *   @param pixels: dims x height x width x 3 interleaved RGB pixels, see TensorPacker.packBytes
+     * */
+    public float[] inferBytes(byte[] pixels, int dims) {
+
+        prepare(dims);
+
+        int length = dims * height * width * 3;
+
+        inputBuffer.rewind();
+        if (identityInput) {
+            inputBuffer.put(pixels, 0, length);
+        } else {
+            if (inputBytes.length < length) {
+                inputBytes = new byte[length];
+            }
+            for (int i = 0; i < length; i++) {
+                inputBytes[i] = inputLUT[pixels[i] & 0xFF];
+            }
+            inputBuffer.put(inputBytes, 0, length);
+        }
+
+        return run(dims);
+    }
+
+    @Override
+    public float[] infer(float[] pixels, int dims) {
+
+        prepare(dims);
+
+        int length = dims * height * width * 3;
+
+        inputBuffer.rewind();
+        for (int i = 0; i < length; i++) {
+            inputBuffer.put((byte) quantize(pixels[i]));
+        }
+
+        return run(dims);
+    }
+
+    @Override
+    public int getType() {
+        return TFLITE_INT8;
+    }
+
+    @Override
+    public void close() {
+        interpreter.close();
+    }
+
+    private int quantize(float x) {
+        int q = Math.round(x / inputScale) + inputZeroPoint;
+        return Math.max(inputMin, Math.min(inputMax, q));
+    }
+
+    private void prepare(int dims) {
+
+        if (dims != currentDims) {
+            interpreter.resizeInput(0, new int[]{dims, height, width, 3});
+            interpreter.allocateTensors();
+
+            int outputLength = quantizedOutput ? dims * numClasses : dims * numClasses * 4;
+
+            inputBuffer = ByteBuffer.allocateDirect(dims * height * width * 3).order(ByteOrder.nativeOrder());
+            outputBuffer = ByteBuffer.allocateDirect(outputLength).order(ByteOrder.nativeOrder());
+            currentDims = dims;
+        }
+    }
+
+    private float[] run(int dims) {
+
+        inputBuffer.rewind();
+        outputBuffer.rewind();
+
+        interpreter.run(inputBuffer, outputBuffer);
+
+        float[] output = new float[numClasses * dims];
+        outputBuffer.rewind();
+
+        if (quantizedOutput) {
+            for (int i = 0; i < output.length; i++) {
+                byte q = outputBuffer.get();
+                int value = signedOutput ? q : q & 0xFF;
+                output[i] = (value - outputZeroPoint) * outputScale;
+            }
+        } else {
+            outputBuffer.asFloatBuffer().get(output);
+        }
+
+        return output;
+    }
+
+}
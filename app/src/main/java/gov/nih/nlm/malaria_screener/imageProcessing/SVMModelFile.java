@@ -0,0 +1,237 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ *   Binary SVM model file (.svmb), written by tools/SVMModelConverter.java from the Matlab text exports in res/raw,
+ *   see tools/convert_svm_model.sh.
+ *
+ *   Layout, little endian:
+ *       int32   magic "SVMB", version, class number, feature length
+ *       per class: int32 support vector number, float64 bias
+ *       per class: float32 alpha[svNum], scale factor[length], shift[length], support vectors[svNum * length]
+ *   The file is stored uncompressed in the APK (see noCompress in build.gradle) so it can be memory-mapped.
+ * */
+public class SVMModelFile {
+
+    public static final int MAGIC = 0x424D5653; // "SVMB"
+    public static final int VERSION = 1;
+
+    private final int length;
+    private final double[] bias;
+    private final float[][] alpha;
+    private final float[][] scaleFactor;
+    private final float[][] shift;
+    private final float[][] supportVector; // row major, svNum x length
+
+    public SVMModelFile(int length, double[] bias, float[][] alpha, float[][] scaleFactor, float[][] shift, float[][] supportVector) {
+        this.length = length;
+        this.bias = bias;
+        this.alpha = alpha;
+        this.scaleFactor = scaleFactor;
+        this.shift = shift;
+        this.supportVector = supportVector;
+    }
+
+    public static MappedByteBuffer map(AssetManager assets, String fileName) throws IOException {
+
+        AssetFileDescriptor fd = assets.openFd(fileName);
+        FileInputStream inputStream = new FileInputStream(fd.getFileDescriptor());
+
+        try {
+            FileChannel channel = inputStream.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getDeclaredLength());
+        } finally {
+            inputStream.close();
+            fd.close();
+        }
+    }
+
+    public static SVMModelFile read(ByteBuffer buffer) throws IOException {
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.remaining() < 16 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not an SVM model file");
+        }
+
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported SVM model file version: " + version);
+        }
+
+        int classNum = buffer.getInt();
+        int length = buffer.getInt();
+        if (classNum <= 0 || length <= 0) {
+            throw new IOException("Invalid SVM model file header: " + classNum + " classes, length " + length);
+        }
+        if (buffer.remaining() < (long) classNum * 12) {
+            throw new IOException("SVM model file size doesn't match its header");
+        }
+
+        int[] svNum = new int[classNum];
+        double[] bias = new double[classNum];
+        for (int c = 0; c < classNum; c++) {
+            svNum[c] = buffer.getInt();
+            bias[c] = buffer.getDouble();
+            if (svNum[c] < 0) {
+                throw new IOException("Invalid SVM model file header: " + svNum[c] + " support vectors");
+            }
+        }
+
+        long floatNum = 0;
+        for (int c = 0; c < classNum; c++) {
+            floatNum += (long) svNum[c] * (length + 1) + 2 * length;
+        }
+        if (buffer.remaining() != floatNum * 4) {
+            throw new IOException("SVM model file size doesn't match its header");
+        }
+
+        float[][] alpha = new float[classNum][];
+        float[][] scaleFactor = new float[classNum][];
+        float[][] shift = new float[classNum][];
+        float[][] supportVector = new float[classNum][];
+
+        FloatBuffer floats = buffer.asFloatBuffer();
+        for (int c = 0; c < classNum; c++) {
+            alpha[c] = new float[svNum[c]];
+            scaleFactor[c] = new float[length];
+            shift[c] = new float[length];
+            supportVector[c] = new float[svNum[c] * length];
+
+            floats.get(alpha[c]);
+            floats.get(scaleFactor[c]);
+            floats.get(shift[c]);
+            floats.get(supportVector[c]);
+        }
+
+        return new SVMModelFile(length, bias, alpha, scaleFactor, shift, supportVector);
+    }
+
+    public void write(File file) throws IOException {
+
+        int classNum = bias.length;
+
+        int size = 16 + classNum * 12;
+        for (int c = 0; c < classNum; c++) {
+            size += (alpha[c].length * (length + 1) + 2 * length) * 4;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(classNum);
+        buffer.putInt(length);
+
+        for (int c = 0; c < classNum; c++) {
+            buffer.putInt(alpha[c].length);
+            buffer.putDouble(bias[c]);
+        }
+
+        for (int c = 0; c < classNum; c++) {
+            putFloats(buffer, alpha[c]);
+            putFloats(buffer, scaleFactor[c]);
+            putFloats(buffer, shift[c]);
+            putFloats(buffer, supportVector[c]);
+        }
+        buffer.flip();
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public int getClassNum() {
+        return bias.length;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public double getBias(int c) {
+        return bias[c];
+    }
+
+    public LinearSVM compile(int c) {
+        return LinearSVM.compile(toDouble(supportVector[c]), toDouble(alpha[c]), toDouble(scaleFactor[c]), toDouble(shift[c]), length, bias[c]);
+    }
+
+    public double[][] getSupportVectors(int c) {
+
+        int svNum = alpha[c].length;
+        double[][] sv = new double[svNum][length];
+
+        for (int k = 0; k < svNum; k++) {
+            for (int j = 0; j < length; j++) {
+                sv[k][j] = supportVector[c][k * length + j];
+            }
+        }
+
+        return sv;
+    }
+
+    public double[] getAlpha(int c) {
+        return toDouble(alpha[c]);
+    }
+
+    public double[] getScaleFactor(int c) {
+        return toDouble(scaleFactor[c]);
+    }
+
+    public double[] getShift(int c) {
+        return toDouble(shift[c]);
+    }
+
+    private static double[] toDouble(float[] src) {
+
+        double[] dst = new double[src.length];
+        for (int i = 0; i < src.length; i++) {
+            dst[i] = src[i];
+        }
+
+        return dst;
+    }
+
+    private static void putFloats(ByteBuffer buffer, float[] values) {
+        buffer.asFloatBuffer().put(values);
+        buffer.position(buffer.position() + values.length * 4);
+    }
+
+}
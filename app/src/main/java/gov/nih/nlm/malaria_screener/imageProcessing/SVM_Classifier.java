@@ -20,6 +20,7 @@ limitations under the License.
 package gov.nih.nlm.malaria_screener.imageProcessing;
 
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.util.Log;
 
 import org.opencv.core.Core;
@@ -58,6 +59,13 @@ public class SVM_Classifier {
     double[] labelSVM;
     double[] distSVM;
 
+    // support vectors folded into one weight vector per class, see LinearSVM
+    LinearSVM linearSVM1;
+    LinearSVM linearSVM2;
+
+    // also run the support vector path (runSVM) and log how many labels differ from the compiled models
+    public static boolean BENCHMARK = false;
+
     public static SVM_Classifier create(Context context) {
 
         // initialize a classifier
@@ -76,29 +84,24 @@ public class SVM_Classifier {
         // read matlab SVM data struct and classify cells with it ***
         int classNum = 2;
 
-        double[][] all_labels = new double[cellNum][classNum];
-        double[][] all_dists = new double[cellNum][classNum];
+        double[][] all_dists; // decision value of each cell for each class
 
         long startTime = System.currentTimeMillis();
 
-        for (int index = 0; index < classNum; index++) {
-
-            // predict
-            Mat testT = featureTable.clone();
-            runSVM(testT, index);
-
-            for (int j = 0; j < cellNum; j++) {
-                all_labels[j][index] = labelSVM[j];
-                all_dists[j][index] = distSVM[j] * labelSVM[j];
-
-            }
-
+        if (linearSVM1 != null && linearSVM2 != null) {
+            all_dists = runCompiled(featureTable, cellNum);
+        } else {
+            all_dists = runSupportVectors(featureTable, cellNum);
         }
 
         long endTime = System.currentTimeMillis();
         long totalTime = endTime - startTime;
         Log.d(TAG, "SVM Time: " + totalTime);
 
+        if (BENCHMARK && linearSVM1 != null && linearSVM2 != null) {
+            compareSupportVectors(featureTable, cellNum, all_dists);
+        }
+
         double[] classLabels = new double[cellNum];
         double[] classDists = new double[cellNum];
 
@@ -131,14 +134,15 @@ public class SVM_Classifier {
             }
         }
 
-        // Note: classLabels in SVM is 1(normal) & 2(infected). However, to keep it same with TensorFlow classifier I change it to 0&1 while putting them in UtilsCustom.results
-        UtilsCustom.results.clear();
+        // Note: classLabels in SVM is 1(normal) & 2(infected). However, to keep it same with TensorFlow classifier I change it to 0&1 while putting them in UtilsCustom.cellTable
+        // classDists is the probability of infected, the confidence of the predicted class is stored like for the TensorFlow classifier
+        UtilsCustom.cellTable.clearResults();
         for (int i = 0; i < classLabels.length; i++) {
 
             if (classLabels[i] == 1) {
-                UtilsCustom.results.add(0);
+                UtilsCustom.cellTable.addResult(CellTable.NORMAL, (float) (1 - classDists[i]), (float) classDists[i]);
             } else if (classLabels[i] == 2) {
-                UtilsCustom.results.add(1);
+                UtilsCustom.cellTable.addResult(CellTable.INFECTED, (float) classDists[i], (float) classDists[i]);
             }
         }
 
@@ -147,6 +151,77 @@ public class SVM_Classifier {
 
     }
 
+    private double[][] runCompiled(Mat featureTable, int cellNum) {
+
+        Mat features64F = featureTable;
+        if (featureTable.type() != CvType.CV_64FC1) {
+            features64F = new Mat();
+            featureTable.convertTo(features64F, CvType.CV_64F);
+        }
+
+        double[] features = new double[cellNum * linearSVM1.getLength()];
+        features64F.get(0, 0, features);
+
+        if (features64F != featureTable) {
+            features64F.release();
+        }
+
+        double[][] all_dists = new double[cellNum][2];
+        double[] f = new double[cellNum];
+
+        linearSVM1.score(features, cellNum, f);
+        for (int j = 0; j < cellNum; j++) {
+            all_dists[j][0] = f[j];
+        }
+
+        linearSVM2.score(features, cellNum, f);
+        for (int j = 0; j < cellNum; j++) {
+            all_dists[j][1] = f[j];
+        }
+
+        return all_dists;
+    }
+
+    private double[][] runSupportVectors(Mat featureTable, int cellNum) {
+
+        double[][] all_dists = new double[cellNum][2];
+
+        for (int index = 0; index < 2; index++) {
+
+            // predict
+            Mat testT = featureTable.clone();
+            runSVM(testT, index);
+            testT.release();
+
+            for (int j = 0; j < cellNum; j++) {
+                all_dists[j][index] = distSVM[j] * labelSVM[j];
+            }
+        }
+
+        return all_dists;
+    }
+
+    private void compareSupportVectors(Mat featureTable, int cellNum, double[][] all_dists) {
+
+        long startTime = System.currentTimeMillis();
+
+        double[][] all_dists_sv = runSupportVectors(featureTable, cellNum);
+
+        long totalTime = System.currentTimeMillis() - startTime;
+
+        int diff_label = 0;
+        double diff_max = 0;
+        for (int j = 0; j < cellNum; j++) {
+            if ((all_dists[j][0] > all_dists[j][1]) != (all_dists_sv[j][0] > all_dists_sv[j][1])) {
+                diff_label++;
+            }
+            diff_max = Math.max(diff_max, Math.abs(all_dists[j][0] - all_dists_sv[j][0]));
+            diff_max = Math.max(diff_max, Math.abs(all_dists[j][1] - all_dists_sv[j][1]));
+        }
+
+        Log.d(TAG, "SVM support vector Time: " + totalTime + ", different labels: " + diff_label + ", max decision value difference: " + diff_max);
+    }
+
     private void runSVM(Mat mat, int num) {
 
         Mat Xnew = Mat.zeros(mat.rows(), 48, CvType.CV_64FC1);
@@ -282,6 +357,41 @@ public class SVM_Classifier {
 
     }
 
+    /*
+     *   Loads both classes from the binary model file in assets (see SVMModelFile), much faster than the text files.
+     * */
+    public void readSVMModelFile(AssetManager assets, String fileName) throws IOException {
+
+        long startTime = System.currentTimeMillis();
+
+        SVMModelFile model = SVMModelFile.read(SVMModelFile.map(assets, fileName));
+
+        if (model.getClassNum() != 2 || model.getLength() != 48) {
+            throw new IOException("Unexpected SVM model: " + model.getClassNum() + " classes, " + model.getLength() + " features");
+        }
+
+        bias1 = model.getBias(0);
+        bias2 = model.getBias(1);
+        linearSVM1 = model.compile(0);
+        linearSVM2 = model.compile(1);
+
+        // the support vector path is only used for comparison
+        if (BENCHMARK) {
+            supportVector1 = model.getSupportVectors(0);
+            alpha1 = model.getAlpha(0);
+            scaleFactor1 = model.getScaleFactor(0);
+            shift1 = model.getShift(0);
+
+            supportVector2 = model.getSupportVectors(1);
+            alpha2 = model.getAlpha(1);
+            scaleFactor2 = model.getScaleFactor(1);
+            shift2 = model.getShift(1);
+        }
+
+        long totalTime = System.currentTimeMillis() - startTime;
+        Log.d(TAG, "Read SVM model file Time: " + totalTime);
+    }
+
     // this function separately read
     public void readSVMTextFile(int num) {
 
@@ -394,6 +504,13 @@ public class SVM_Classifier {
 
         }
 
+        // fold the support vectors into one weight vector
+        if (num == 0) {
+            linearSVM1 = LinearSVM.compile(supportVector1, alpha1, scaleFactor1, shift1, bias1);
+        } else {
+            linearSVM2 = LinearSVM.compile(supportVector2, alpha2, scaleFactor2, shift2, bias2);
+        }
+
 
     }
 }
@@ -0,0 +1,92 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing.Segmentation;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ *   Helpers for binary masks kept as CV_8U with values 0 & 1, so they can be combined with bitwise ops
+ *   instead of being converted to float and multiplied.
+ * */
+public final class BinaryMask {
+
+    private BinaryMask() {
+    }
+
+    // dst = src (cmpop) value ? 1 : 0
+    public static void compare(Mat src, double value, int cmpop, Mat dst) {
+
+        Core.compare(src, new Scalar(value), dst, cmpop);
+        binarize(dst, dst);
+    }
+
+    // dst = src != 0 ? 1 : 0, src must be CV_8U
+    public static void binarize(Mat src, Mat dst) {
+
+        Imgproc.threshold(src, dst, 0, 1, Imgproc.THRESH_BINARY);
+    }
+
+    // dst = src != 0 ? 0 : 1, src must be CV_8U
+    public static void invert(Mat src, Mat dst) {
+
+        Imgproc.threshold(src, dst, 0, 1, Imgproc.THRESH_BINARY_INV);
+    }
+
+    // bwareaopen: remove the 8-connected components with at most maxArea pixels, one labelling pass, src must be CV_8U
+    public static void removeSmallComponents(Mat src, double maxArea, Mat dst) {
+
+        Mat labels = new Mat();
+        Mat stats = new Mat();
+        Mat centroids = new Mat();
+        int num = Imgproc.connectedComponentsWithStats(src, labels, stats, centroids, 8, CvType.CV_32S);
+        centroids.release();
+
+        int statsCols = stats.cols();
+        int stats_JP[] = new int[(int) stats.total()];
+        stats.get(0, 0, stats_JP);
+        stats.release();
+
+        boolean keep[] = new boolean[num];
+        for (int i = 1; i < num; i++) {
+            keep[i] = stats_JP[i * statsCols + Imgproc.CC_STAT_AREA] > maxArea;
+        }
+
+        int labels_JP[] = new int[(int) labels.total()];
+        labels.get(0, 0, labels_JP);
+        labels.release();
+
+        byte mask_JP[] = new byte[labels_JP.length];
+        src.get(0, 0, mask_JP);
+
+        for (int i = 0; i < mask_JP.length; i++) {
+            if (!keep[labels_JP[i]]) {
+                mask_JP[i] = 0;
+            }
+        }
+
+        dst.create(src.size(), CvType.CV_8UC1);
+        dst.put(0, 0, mask_JP);
+    }
+
+}
@@ -24,7 +24,13 @@ import android.util.Log;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
 import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by yuh5 on 3/24/2016.
@@ -37,6 +43,9 @@ public class Histogram {
 
     private boolean retakeIm = false;
 
+    private double minVal;
+    private double maxVal;
+
     public void runHistogram(Mat im, int bins){
 
         int[] hist = new int[bins];
@@ -83,6 +92,70 @@ public class Histogram {
         setVauleMat.release();
     }
 
+    // Same bins and retake check as runHistogram(), but for a CV_8U image. Counts the 256 gray levels natively
+    // and bins each level once, instead of copying every pixel into a double[].
+    public void runHistogram_8bit(Mat im, int bins){
+
+        int[] hist = new int[bins];
+
+        List<Mat> images = new ArrayList<>();
+        images.add(im);
+        Mat grayHist = new Mat();
+        Imgproc.calcHist(images, new MatOfInt(0), new Mat(), grayHist, new MatOfInt(256), new MatOfFloat(0, 256));
+        images.clear();
+
+        float grayHist_JP[] = new float[256];
+        grayHist.get(0, 0, grayHist_JP);
+        grayHist.release();
+
+        int min = 0;
+        while (min < 255 && grayHist_JP[min] == 0) {
+            min++;
+        }
+        int max = 255;
+        while (max > 0 && grayHist_JP[max] == 0) {
+            max--;
+        }
+        minVal = min;
+        maxVal = max;
+
+        double range = (maxVal - minVal)/256;
+
+        Log.d(TAG, "res.maxVal: " + maxVal);
+        Log.d(TAG, "res.minVal: " + minVal);
+
+        for (int v = 0; v < 256; v++) {
+
+            if (grayHist_JP[v] == 0) {
+                continue;
+            }
+
+            int count = (int) grayHist_JP[v];
+            int h = (int)(v/range);
+
+            if(h==256){
+                hist[h-1] += count;
+            } else if(h>256){
+                retakeIm = true;
+            } else {
+                hist[h] += count;
+            }
+        }
+
+        histMat = Mat.zeros(1, bins, CvType.CV_32SC1);
+
+        histMat.put(0,0,hist);
+        histMat.convertTo(histMat, CvType.CV_32F);
+    }
+
+    public double getMinVal(){
+        return minVal;
+    }
+
+    public double getMaxVal(){
+        return maxVal;
+    }
+
     public boolean getRetakeFlag(){
         return retakeIm;
     }
@@ -0,0 +1,221 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing.Segmentation;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ *   Multi-scale Laplacian of Gaussian filter bank. The separable Gaussian and second derivative kernels are built
+ *   once per sigma, all scales are computed in CV_32F and run concurrently.
+ *
+ *   For each sigma the passes and border modes of the original calculate_loG are kept: Ixx = dGxx * Gy * I and
+ *   Iyy = Gx * dGyy * I with zero borders, then a second Gaussian smoothing, along y with BORDER_REFLECT_101 and along
+ *   x with zero borders. The second smoothing is linear, so it is applied once to Ixx + Iyy instead of to each. The
+ *   border modes matter: they change the response up to 6*sigma from the image border, 3*sigma more than the band of
+ *   width 3*sigma that is set to 0 as before.
+ * */
+public class LoGFilterBank {
+
+    private final int[] sigmas;
+
+    private final Mat[] gaussKernels;
+    private final Mat[] dGxxKernels;
+    private final Mat identityKernel;
+    private final int[] padWidths;
+
+    private ExecutorService executor;
+
+    public LoGFilterBank(int[] sigmas) {
+
+        this.sigmas = sigmas.clone();
+
+        gaussKernels = new Mat[sigmas.length];
+        dGxxKernels = new Mat[sigmas.length];
+        padWidths = new int[sigmas.length];
+
+        identityKernel = new Mat(1, 1, CvType.CV_32FC1);
+        identityKernel.put(0, 0, new float[]{1});
+
+        for (int i = 0; i < sigmas.length; i++) {
+            buildKernels(i);
+        }
+
+        executor = Executors.newFixedThreadPool(sigmas.length);
+    }
+
+    private void buildKernels(int index) {
+
+        int sigma = sigmas[index];
+
+        int G_length = (int) Math.floor((sigma * 6 + 1) / 2);
+        int length = sigma * 3 * 2 + 1;
+
+        double sigma2 = Math.pow(sigma, 2);
+        double sigma4 = Math.pow(sigma, 4);
+        double D = Math.sqrt(2 * Math.PI) * sigma;
+
+        float gauss_copy[] = new float[length];
+        float dGxx_copy[] = new float[length];
+
+        for (int i = 0; i < length; i++) {
+            double x = i - G_length;
+            double x2 = Math.pow(x, 2);
+
+            double gauss = Math.exp(x2 / sigma2 * -0.5) / D;
+            gauss_copy[i] = (float) gauss;
+            dGxx_copy[i] = (float) ((x2 - sigma2) / sigma4 * gauss);
+        }
+
+        gaussKernels[index] = new Mat(1, length, CvType.CV_32FC1);
+        gaussKernels[index].put(0, 0, gauss_copy);
+
+        dGxxKernels[index] = new Mat(1, length, CvType.CV_32FC1);
+        dGxxKernels[index].put(0, 0, dGxx_copy);
+
+        padWidths[index] = length / 2;
+    }
+
+    public int[] getSigmas() {
+        return sigmas.clone();
+    }
+
+    /*
+     *   @param im: input image, converted to CV_32F if needed
+     *   @return one CV_32F LoG response per sigma, in the order of the sigmas
+     * */
+    public List<Mat> apply(Mat im) {
+
+        final Mat im32F;
+        if (im.depth() == CvType.CV_32F) {
+            im32F = im;
+        } else {
+            im32F = new Mat();
+            im.convertTo(im32F, CvType.CV_32F);
+        }
+
+        List<Future<Mat>> futures = new ArrayList<>();
+        for (int i = 0; i < sigmas.length; i++) {
+            final int index = i;
+            futures.add(executor.submit(new Callable<Mat>() {
+                @Override
+                public Mat call() {
+                    return calculate_loG(im32F, index);
+                }
+            }));
+        }
+
+        List<Mat> responses = new ArrayList<>();
+        try {
+            for (Future<Mat> future : futures) {
+                responses.add(future.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("LoG filtering failed", e);
+        } finally {
+            if (im32F != im) {
+                im32F.release();
+            }
+        }
+
+        return responses;
+    }
+
+    // pixel-wise minimum of the responses over all scales, CV_32F
+    public Mat applyMin(Mat im) {
+
+        List<Mat> responses = apply(im);
+
+        Mat Lmin = responses.get(0);
+        for (int i = 1; i < responses.size(); i++) {
+            Core.min(Lmin, responses.get(i), Lmin);
+            responses.get(i).release();
+        }
+
+        return Lmin;
+    }
+
+    private Mat calculate_loG(Mat im, int index) {
+
+        Mat G = gaussKernels[index];
+        Mat dGxx = dGxxKernels[index];
+        Point anchor = new Point(-1, -1);
+
+        Mat Ixx = new Mat();
+        sepFilter(im, Ixx, dGxx, G, anchor, Core.BORDER_CONSTANT);
+
+        Mat Iyy = new Mat();
+        sepFilter(im, Iyy, G, dGxx, anchor, Core.BORDER_CONSTANT);
+
+        Core.add(Ixx, Iyy, Ixx);
+        Iyy.release();
+
+        // second Gaussian smoothing, the y pass used the default border of filter2D in calculate_loG
+        sepFilter(Ixx, Ixx, identityKernel, G, anchor, Core.BORDER_REFLECT_101);
+        sepFilter(Ixx, Ixx, G, identityKernel, anchor, Core.BORDER_CONSTANT);
+
+        padBorders(Ixx, padWidths[index], 0);
+
+        return Ixx;
+    }
+
+    private static void sepFilter(Mat src, Mat dst, Mat kernelX, Mat kernelY, Point anchor, int borderType) {
+        Imgproc.sepFilter2D(src, dst, CvType.CV_32F, kernelX, kernelY, anchor, 0, borderType);
+    }
+
+    private void padBorders(Mat I, int w, double value) {
+
+        int rows = I.rows();
+        int cols = I.cols();
+
+        w = Math.min(w, Math.min(rows, cols));
+
+        // pad left, right, top, down
+        new Mat(I, new Rect(0, 0, w, rows)).setTo(new Scalar(value));
+        new Mat(I, new Rect(cols - w, 0, w, rows)).setTo(new Scalar(value));
+        new Mat(I, new Rect(0, 0, cols, w)).setTo(new Scalar(value));
+        new Mat(I, new Rect(0, rows - w, cols, w)).setTo(new Scalar(value));
+    }
+
+    public void release() {
+
+        executor.shutdown();
+
+        for (int i = 0; i < sigmas.length; i++) {
+            gaussKernels[i].release();
+            dGxxKernels[i].release();
+        }
+        identityKernel.release();
+    }
+
+}
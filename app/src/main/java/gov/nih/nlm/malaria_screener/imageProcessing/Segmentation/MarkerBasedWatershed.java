@@ -19,6 +19,7 @@ limitations under the License.
 
 package gov.nih.nlm.malaria_screener.imageProcessing.Segmentation;
 
+import android.os.Debug;
 import android.util.Log;
 
 import org.opencv.core.Core;
@@ -28,8 +29,6 @@ import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
-import org.opencv.core.Size;
-import org.opencv.imgproc.CLAHE;
 import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
@@ -49,8 +48,23 @@ public class MarkerBasedWatershed {
     public Mat output_WBCMask; // white blood cell mask
     public Mat watershed_result;
 
+    private final SegmentationContext segContext;
+
+    // tiled segmentation, tile size 0 runs on the full image
+    private int tileSize = 0;
+    private int tileThreads = 1;
+
+    private long nativeHeapPeak = 0;
+
+    public MarkerBasedWatershed(SegmentationContext segContext) {
+        this.segContext = segContext;
+    }
+
     public void runMarkerBasedWatershed(Mat mat_img, float resizeValue) {
 
+        int rows = mat_img.rows();
+        int cols = mat_img.cols();
+
         Vector<Mat> channels = new Vector<Mat>();
         Core.split(mat_img, channels); // b g r
         Mat green = channels.get(1);
@@ -64,28 +78,27 @@ public class MarkerBasedWatershed {
 
         } else {
 
-            stretch_im.convertTo(stretch_im, CvType.CV_64F);
+            Mat stretch_im64F = segContext.obtain(rows, cols, CvType.CV_64FC1);
+            stretch_im.convertTo(stretch_im64F, CvType.CV_64F);
+            stretch_im.release();
 
             // im_r % normalize the range to [0,1]
-            Mat norm_im = new Mat();
-            Core.normalize(stretch_im, norm_im, 0, 1, Core.NORM_MINMAX);
-            norm_im.convertTo(norm_im, CvType.CV_64F);
+            Mat norm_im = segContext.obtain(rows, cols, CvType.CV_64FC1);
+            Core.normalize(stretch_im64F, norm_im, 0, 1, Core.NORM_MINMAX);
+            segContext.recycle(stretch_im64F);
             // negate the image: FG will be light; BG will be dark.
-            Mat ones = Mat.ones(stretch_im.rows(), stretch_im.cols(), CvType.CV_64FC1);
-            stretch_im.release();
-
-            Core.subtract(ones, norm_im, norm_im);
+            norm_im.convertTo(norm_im, -1, -1, 1);
 
             // % 90% and up is assumed to be the border in the negative image
-            Mat mask_border = Mat.zeros(norm_im.rows(), norm_im.cols(), CvType.CV_32FC1);
-            Mat all09 = Mat.zeros(norm_im.rows(), norm_im.cols(), CvType.CV_64FC1);
+            // binary masks are kept as CV_8U with values 0 & 1 from here on
+            Mat mask_border = segContext.obtain(rows, cols, CvType.CV_8UC1);
             // im_r < 0.9
-            all09.setTo(new Scalar(0.8)); // need better method to determine this TH
-            Core.compare(norm_im, all09, mask_border, Core.CMP_LT);
-            Core.divide(mask_border, mask_border, mask_border);
+            BinaryMask.compare(norm_im, 0.8, Core.CMP_LT, mask_border); // need better method to determine this TH
+            logNativeHeap("mask_border");
 
             // imfill  switch to old imfill now 09/11/2017                              // findContours change pixels values
-            Mat mask_border_clone = mask_border.clone();
+            Mat mask_border_clone = segContext.obtain(rows, cols, CvType.CV_8UC1);
+            mask_border.copyTo(mask_border_clone);
             List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
             Imgproc.findContours(mask_border_clone, contours, new Mat(), Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_NONE);
 
@@ -96,7 +109,7 @@ public class MarkerBasedWatershed {
             }
 
             // imfill
-            Mat kernel5x5 = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(5, 5));
+            Mat kernel5x5 = segContext.getStructuringElement(Imgproc.CV_SHAPE_RECT, 5, 5);
 //            mask_border.convertTo(mask_border, CvType.CV_64F);
 //            Core.subtract(ones, mask_border, mask_border);
 //            Imgproc.morphologyEx(mask_border, mask_border, Imgproc.MORPH_OPEN, kernel5x5);
@@ -105,18 +118,14 @@ public class MarkerBasedWatershed {
             // imerode
             Imgproc.erode(mask_border, mask_border, kernel5x5);
 
-            //release memory
-            all09.release();
-            kernel5x5.release();
-
             long startTime = System.currentTimeMillis();
 
             // WBC -----------------------------------------------------------------------------------------------------------------
             //Mat mask_border_bi = new Mat();
-            mask_border.convertTo(mask_border_clone, CvType.CV_8U);
+            mask_border.copyTo(mask_border_clone);
             ArrayList<MatOfPoint> mask_border_contours = new ArrayList<MatOfPoint>();
             Imgproc.findContours(mask_border_clone, mask_border_contours, new Mat(), Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_NONE);
-            mask_border_clone.release();
+            segContext.recycle(mask_border_clone);
 
             double maxArea = 0;
             int maxAreaIdx = 0;
@@ -141,52 +150,39 @@ public class MarkerBasedWatershed {
 
             Mat im_d = new Mat();
             Mat im_e = new Mat();
-            Mat kernel3x3_1 = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(3, 3));
+            Mat kernel3x3_1 = segContext.getStructuringElement(Imgproc.CV_SHAPE_RECT, 3, 3);
             Imgproc.dilate(Image_cropped, im_d, kernel3x3_1);
             Imgproc.erode(Image_cropped, im_e, kernel3x3_1);
-            kernel3x3_1.release();
             Mat R = new Mat();
             Core.subtract(im_d, im_e, R);
             Image_cropped.release();
             im_d.release();
             im_e.release();
 
-            Mat kernel4x4 = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(4, 4));
+            Mat kernel4x4 = segContext.getStructuringElement(Imgproc.MORPH_ELLIPSE, 4, 4);
             //Imgproc.morphologyEx(cropped, cropped, Imgproc.MORPH_ERODE, kernel4x4);
             Imgproc.erode(cropped, cropped, kernel4x4);
-            kernel4x4.release();
 
             cropped.convertTo(cropped, R.type());
             Core.multiply(R, cropped, R);
             cropped.release();
 
-            Mat twentiesMat = Mat.ones(R.size(), R.type());
-            twentiesMat.setTo(new Scalar(20));
-            Mat R_compare = new Mat();
-            Core.compare(R, twentiesMat, R_compare, Core.CMP_GT);
-            Core.divide(R_compare, R_compare, R_compare);
+            // R where R > 20, 0 elsewhere
             Mat R_res = new Mat();
-            Core.multiply(R, R_compare, R_res);
-            twentiesMat.release();
-            R_compare.release();
+            Imgproc.threshold(R, R_res, 20, 0, Imgproc.THRESH_TOZERO);
 
             Scalar sum = Core.sumElems(R_res);
             int countNon0 = Core.countNonZero(R_res);
             double value = 1.7 * sum.val[0] / countNon0;
-            Mat valueMat = Mat.ones(R.size(), R.type());
-            valueMat.setTo(new Scalar(value));
             Mat WBCMask = new Mat();
-            Core.compare(R, valueMat, WBCMask, Core.CMP_GT);
-            Core.divide(WBCMask, WBCMask, WBCMask);
+            BinaryMask.compare(R, Math.rint(value), Core.CMP_GT, WBCMask); // R is 8 bit, threshold is rounded the same way as before
             R.release();
             R_res.release();
-            valueMat.release();
 
             //imdilate
-            Mat kernel1x1 = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(2, 2));
+            Mat kernel1x1 = segContext.getStructuringElement(Imgproc.MORPH_ELLIPSE, 2, 2);
             //Imgproc.morphologyEx(WBCMask, WBCMask, Imgproc.MORPH_DILATE, kernel1x1);
             Imgproc.dilate(WBCMask, WBCMask, kernel1x1);
-            kernel1x1.release();
 
             // imfill
 //            Mat ones_R = Mat.ones(RMask.size(), RMask.type());
@@ -216,45 +212,18 @@ public class MarkerBasedWatershed {
             marker.release();
             im2.release();
 
-            Mat kernel2x2 = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(2, 2));
+            Mat kernel2x2 = segContext.getStructuringElement(Imgproc.MORPH_ELLIPSE, 2, 2);
             //Imgproc.morphologyEx(WBCMask, WBCMask, Imgproc.MORPH_ERODE, kernel2x2);
             Imgproc.erode(WBCMask, WBCMask, kernel2x2);
-            kernel2x2.release();
 
             // bwareaopen
-            List<MatOfPoint> contoursWBC1 = new ArrayList<MatOfPoint>();
-            //Mat RMask_Contours = WBCMask.clone();
-            WBCMask_clone = WBCMask.clone();
-            Imgproc.findContours(WBCMask_clone, contoursWBC1, new Mat(), Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_NONE);
-
-            Mat WBCMask4draw = new Mat();
-            Vector<Mat> ch_RMask = new Vector<Mat>();
-            ch_RMask.add(WBCMask);
-            ch_RMask.add(WBCMask);
-            ch_RMask.add(WBCMask);
-            Core.merge(ch_RMask, WBCMask4draw);
-            ch_RMask.clear();
-
             double radius = 20;
             double RBC_avgArea = Math.PI * Math.pow(radius, 2);
             RBC_avgArea = Math.round(RBC_avgArea);
             // size adjust
             RBC_avgArea = RBC_avgArea / resizeValue;
 
-            for (int i = 0; i < contoursWBC1.size(); i++) {
-                double area = Imgproc.contourArea(contoursWBC1.get(i));
-
-                if (area <= RBC_avgArea) {
-                    Imgproc.drawContours(WBCMask4draw, contoursWBC1, i, new Scalar(0, 0, 0), -1);
-                }
-            }
-            contoursWBC1.clear();
-
-            Vector<Mat> ch_RMask_out = new Vector<Mat>();
-            Core.split(WBCMask4draw, ch_RMask_out);
-            Core.divide(ch_RMask_out.get(0), ch_RMask_out.get(0), WBCMask);
-            WBCMask4draw.release();
-            ch_RMask_out.clear();
+            BinaryMask.removeSmallComponents(WBCMask, RBC_avgArea, WBCMask);
 
             List<MatOfPoint> contours_WBCMask_4output = new ArrayList<MatOfPoint>();
             WBCMask_clone = WBCMask.clone();
@@ -267,13 +236,14 @@ public class MarkerBasedWatershed {
             WBCMask.release();
             for (int i = 0; i < contours_WBCMask_4output.size(); i++) {
 
-                Imgproc.drawContours(RMask_unCropped, contours_WBCMask_4output, i, new Scalar(1, 1, 1), -1);
+                Imgproc.drawContours(RMask_unCropped, contours_WBCMask_4output, i, new Scalar(1), -1);
             }
 
             output_WBCMask = RMask_unCropped;
             long endTime = System.currentTimeMillis();
             long totalTime = endTime - startTime;
             Log.d(TAG, "WBC Time 1: " + totalTime);
+            logNativeHeap("WBC");
 
             //--------------------------------------------------------------------------------------------------------------------------------------
 
@@ -285,560 +255,287 @@ public class MarkerBasedWatershed {
             double Th = otsuThreshold.threshold / 255;
             otsuThreshold = null;
 
-            Mat mask_alpha = new Mat();
-            Mat ThMat = Mat.zeros(norm_im.rows(), norm_im.cols(), CvType.CV_64FC1);
-            ThMat.setTo(new Scalar(Th));
-            Core.compare(norm_im, ThMat, mask_alpha, Core.CMP_GT);
-            Core.divide(mask_alpha, mask_alpha, mask_alpha);
-            ThMat.release();
-
-            mask_alpha.convertTo(mask_alpha, CvType.CV_64F);
-            mask_border.convertTo(mask_border, CvType.CV_64F);
-            Core.multiply(mask_alpha, mask_border, mask_alpha);
-            mask_border.release();
+            Mat mask_alpha = segContext.obtain(rows, cols, CvType.CV_8UC1);
+            BinaryMask.compare(norm_im, Th, Core.CMP_GT, mask_alpha);
+            Core.bitwise_and(mask_alpha, mask_border, mask_alpha);
+            segContext.recycle(mask_border);
             //-------------------------------------------------------------
 
             // -------------------------- discard small blobs and noise-------------------------
-            List<MatOfPoint> contours_mask_alpha = new ArrayList<MatOfPoint>();
-            // 1 - mask_alpha
-            Core.subtract(ones, mask_alpha, mask_alpha);
-
             double in_min_area_size = 150;
 
-            mask_alpha.convertTo(mask_alpha, CvType.CV_8U);
-            Mat mask4Contours = mask_alpha.clone();
-            Imgproc.findContours(mask4Contours, contours_mask_alpha, new Mat(), Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_NONE);
-            mask4Contours.release();
-
 //            if (contours1.size()>1500){
 //                retakeIm = true;
 //            } else {
 
-            // scale up to 255 for drawContours
-            mask_alpha.convertTo(mask_alpha, CvType.CV_32F);
-            Mat all255 = Mat.zeros(mask_alpha.rows(), mask_alpha.cols(), CvType.CV_32FC1);
-            all255.setTo(new Scalar(255));
-            Core.multiply(mask_alpha, all255, mask_alpha);
-
-            Mat contour3C = new Mat();
-            Vector<Mat> ch_contour = new Vector<Mat>();
-            ch_contour.add(mask_alpha);
-            ch_contour.add(mask_alpha);
-            ch_contour.add(mask_alpha);
-            Core.merge(ch_contour, contour3C);
-            ch_contour.clear();
-
             long startTime1 = System.currentTimeMillis();
 
-            // bwareaopen 1
-            for (int i = 0; i < contours_mask_alpha.size(); i++) {
-                double area = Imgproc.contourArea(contours_mask_alpha.get(i));
+            // bwareaopen on 1 - mask_alpha fills the small holes, save a mask_alpha for bwdist
+            Mat mask_alpha_Ones = segContext.obtain(rows, cols, CvType.CV_8UC1);
+            BinaryMask.invert(mask_alpha, mask_alpha_Ones);
+            BinaryMask.removeSmallComponents(mask_alpha_Ones, in_min_area_size, mask_alpha_Ones);
+            BinaryMask.invert(mask_alpha_Ones, mask_alpha_Ones);
 
-                if (area <= in_min_area_size) {
-                    Imgproc.drawContours(contour3C, contours_mask_alpha, i, new Scalar(0, 0, 0), -1);
-                }
-            }
+            // bwareaopen on mask_alpha discards the small blobs, holes are kept
+            BinaryMask.removeSmallComponents(mask_alpha, in_min_area_size, mask_alpha);
 
             long endTime1 = System.currentTimeMillis();
             long totalTime1 = endTime1 - startTime1;
-            Log.d(TAG, "drawContours Time 1: " + totalTime1);
-
-            Vector<Mat> ch = new Vector<Mat>();
-            Core.split(contour3C, ch);
-            // 1 - mask_alpha
-            Core.subtract(all255, ch.get(0), mask_alpha);
-            all255.release();
-            ch.clear();
-
-            // save a mask_alpha for bwdist
-            Mat mask_alpha_Ones = new Mat();
-            Core.divide(mask_alpha, mask_alpha, mask_alpha_Ones); // little difference from matlab, and type differece btw int and double cause error as well
-            // convert to int to avoid the error described above
-            mask_alpha.convertTo(mask_alpha, CvType.CV_8U);
-
-            //Log.i(TAG, "mask_alpha: " + mask_alpha);
-
-            //Mat contour3C_new = new Mat();
-            Vector<Mat> ch_contour1 = new Vector<Mat>();
-            ch_contour1.add(mask_alpha);
-            ch_contour1.add(mask_alpha);
-            ch_contour1.add(mask_alpha);
-            Core.merge(ch_contour1, contour3C);
-            ch_contour1.clear();
-
-            long startTime2 = System.currentTimeMillis();
-
-            // bwareaopen 2
-            for (int i = 0; i < contours_mask_alpha.size(); i++) {
-                double area = Imgproc.contourArea(contours_mask_alpha.get(i));
-
-                if (area <= in_min_area_size) {
-                    Imgproc.drawContours(contour3C, contours_mask_alpha, i, new Scalar(0, 0, 0), -1);
-                }
-            }
-            contours_mask_alpha.clear();
-
-            long endTime2 = System.currentTimeMillis();
-            long totalTime2 = endTime2 - startTime2;
-            Log.d(TAG, "drawContours Time 2: " + totalTime2);
-
-            //Mat out_mask_alpha = new Mat();
-            Vector<Mat> ch_out = new Vector<Mat>();
-            Core.split(contour3C, ch_out);
-            Core.divide(ch_out.get(0), ch_out.get(0), mask_alpha);
-            contour3C.release();
-            ch_out.clear();
+            Log.d(TAG, "bwareaopen Time: " + totalTime1);
+            logNativeHeap("mask_alpha");
             //--------------------------------------------------------------------------------
 
-            Mat Gx = Imgproc.getGaussianKernel(5, 1, CvType.CV_64FC1);
-            Mat Gy = Imgproc.getGaussianKernel(5, 1, CvType.CV_64FC1);
-            Mat G = new Mat();
-            Core.gemm(Gx, Gy.t(), 1, new Mat(), 0, G);
-
-            Core.flip(G, G, 1);
-            Mat I = new Mat();
+            Mat G = segContext.getGaussianKernel();
+            Mat I = segContext.obtain(rows, cols, CvType.CV_64FC1);
             int anchor = G.cols() - 2 - 1;
             Imgproc.filter2D(norm_im, I, norm_im.depth(), G, new Point(anchor, anchor), 0, Core.BORDER_CONSTANT);
-            norm_im.release();
-
-            CLAHE clahe = Imgproc.createCLAHE(2.56, new Size(8, 8)); // 2.56 to 256, as 0.01 to 1 in Matlab, this might not be accurate
-            Mat I_0to255 = new Mat();
-            Core.normalize(I, I_0to255, 0, 255, Core.NORM_MINMAX);
-            I_0to255.convertTo(I_0to255, CvType.CV_8U);
-            Mat I2 = new Mat();
-            clahe.apply(I_0to255, I2);
-            clahe = null;
-            I2.convertTo(I2, CvType.CV_64F);
-            Core.normalize(I2, I2, 0, 1, Core.NORM_MINMAX);
-            I_0to255.release();
-
-            long sTime = System.currentTimeMillis();
-
-            int[] in_sigma = new int[]{5, 6, 9};
-
-            Mat L = Mat.zeros(I.rows(), I.cols(), CvType.CV_64FC3);
-            I.release();
-            Vector<Mat> ch4L = new Vector<Mat>();
-            for (int i = 0; i < 3; i++) {
-                ch4L.add(calculate_loG(I2, in_sigma[i]));
-            }
-            Core.merge(ch4L, L);
-            I2.release();
-            L.release();
-
-            long eTime = System.currentTimeMillis();
-            long tTime = eTime - sTime;
-            Log.d(TAG, "long Time: " + tTime);
-
-
-            // find blob responses across scales.
-            Mat Lmin = new Mat();
-            //Mat temp = new Mat();
-            Core.min(ch4L.get(0), ch4L.get(1), Lmin);
-            Core.min(Lmin, ch4L.get(2), Lmin);
-            Lmin.convertTo(Lmin, CvType.CV_64FC1);
-            ch4L.clear();
+            segContext.recycle(norm_im);
+
+            Mat I_0to255 = segContext.obtain(rows, cols, CvType.CV_8UC1);
+            Core.normalize(I, I_0to255, 0, 255, Core.NORM_MINMAX, CvType.CV_8U);
+            segContext.recycle(I);
+            Mat I2_8U = segContext.obtain(rows, cols, CvType.CV_8UC1);
+            segContext.getCLAHE().apply(I_0to255, I2_8U);
+            segContext.recycle(I_0to255);
+            Mat I2 = segContext.obtain(rows, cols, CvType.CV_64FC1);
+            Core.normalize(I2_8U, I2, 0, 1, Core.NORM_MINMAX, CvType.CV_64F);
+            segContext.recycle(I2_8U);
 
             // use distance transform to weigh the blob responses, don't do 1 - mask_alpha like Matlab cause bwdist is opposite(find dist to )
-            Mat D = new Mat();
-            mask_alpha_Ones.convertTo(mask_alpha_Ones, CvType.CV_8U);
+            Mat D = segContext.obtain(rows, cols, CvType.CV_32FC1);
             Imgproc.distanceTransform(mask_alpha_Ones, D, Imgproc.CV_DIST_L2, 5);
-            mask_alpha_Ones.release();
-
-            // D < 5
-            Mat all5 = Mat.zeros(D.rows(), D.cols(), CvType.CV_64FC1);
-            all5.setTo(new Scalar(5));
-            Mat D_compare = new Mat();
-            D.convertTo(D, CvType.CV_64F);
-            Core.compare(D, all5, D_compare, Core.CMP_GT);
-            Core.divide(D_compare, D_compare, D_compare);
-            D_compare.convertTo(D_compare, CvType.CV_64F);
-            Core.multiply(D_compare, D, D);
+            segContext.recycle(mask_alpha_Ones);
+
+            // D < 5 set to 0
+            Imgproc.threshold(D, D, 5, 0, Imgproc.THRESH_TOZERO);
             //outMat = D.clone();
-            all5.release();
-            D_compare.release();
-
-            Mat Lm2 = new Mat();
-            Core.multiply(D, Lmin, Lm2);
-            D.release();
-            Lmin.release();
-            //outMat = Lm2.clone();
-
-            Mat kernel_ones = Mat.ones(3, 3, CvType.CV_32FC1);
-            Core.flip(kernel_ones, kernel_ones, 1);
-            int anchor1 = kernel_ones.cols() - 1 - 1;
-            Imgproc.filter2D(Lm2, Lm2, Lm2.depth(), kernel_ones, new Point(anchor1, anchor1), 0, Core.BORDER_CONSTANT);
-
-            // produce markers
-            Mat markers = imregionalmin(Lm2);
-            Lm2.release();
-
-            //Mat out_markers = new Mat();
-            Mat kernel3x3 = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(3, 3));
-            Imgproc.dilate(markers, markers, kernel3x3);
-
-            // resize the image to 1/3 for seg
-//                int resizeValue = 3;
-//                Mat oneThird = new Mat();
-//                Imgproc.resize(oriSizeMat, oneThird, new Size(oriSizeMat.cols() / resizeValue, oriSizeMat.rows() / resizeValue), 0, 0, Imgproc.INTER_CUBIC);
-//
-//                Mat out_mask_alpha_Resized = new Mat(); //there is diff between Inter_cubic and Inter_nearest, not sure which one is the best or if it even matters
-//                Imgproc.resize(out_mask_alpha, out_mask_alpha_Resized, new Size(oneThird.cols(), oneThird.rows()), 0, 0, Imgproc.INTER_CUBIC);
-//
-//                Mat out_markers_Resized = new Mat();
-//                Imgproc.resize(out_markers, out_markers_Resized, new Size(oneThird.cols(), oneThird.rows()), 0, 0, Imgproc.INTER_NEAREST);
+
+            mat_img.convertTo(mat_img, CvType.CV_8U); // change for size
 
             long st = System.currentTimeMillis();
 
-            // segment watershed
-            //SegmentWatershed segmentWatershed = new SegmentWatershed(oneThird, out_mask_alpha_Resized, out_markers_Resized);
-            SegmentWatershed segmentWatershed = new SegmentWatershed();
-            segmentWatershed.runSegmentWatershed(mat_img, mask_alpha, markers);
-            mask_alpha.release();
+            Mat WS_result;
+            if (tileSize > 0 && (rows > tileSize || cols > tileSize)) {
+                // run the rest on overlapping tiles and stitch the cells back together, see TiledWatershed for how it
+                // can differ from the untiled run
+                WS_result = TiledWatershed.run(this, mat_img, I2, D, mask_alpha, tileSize, segContext.getTilePool(tileThreads));
+            } else {
+                WS_result = segmentCells(mat_img, I2, D, mask_alpha);
+
+                // get chips
+                Core.compare(WS_result, new Scalar(1), WS_result, Core.CMP_GT);
+            }
+            segContext.recycle(I2);
+            segContext.recycle(D);
+            segContext.recycle(mask_alpha);
 
             long et = System.currentTimeMillis();
             long tT = et - st;
-            Log.d(TAG, "SegmentWatershed Time: " + tT);
+            Log.d(TAG, "Watershed Time (tile size " + tileSize + ", threads " + tileThreads + "): " + tT);
+            logNativeHeap("SegmentWatershed");
 
-            Mat WS_result = segmentWatershed.result.clone();
-            segmentWatershed.result.release();
-            segmentWatershed=null;
+            watershed_result = WS_result;
 
-            WS_result.convertTo(WS_result, CvType.CV_32S);
-//                oneThird.convertTo(oneThird, CvType.CV_8U);
-//                Imgproc.watershed(oneThird, WS_result);
-            mat_img.convertTo(mat_img, CvType.CV_8U); // change for size
+            Log.d(TAG, "Native heap peak: " + nativeHeapPeak / 1024 + " KB");
 
-            Imgproc.watershed(mat_img, WS_result);
+            //release memory
+        }
 
-            // get chips
+    }
 
-            // add for the second resize
-//                Mat newOnes = Mat.ones(oneThird.size(), CvType.CV_8U);
-//                newOnes.convertTo(newOnes, watershed_result.type());
-//                Core.compare(watershed_result, newOnes, watershed_result, Core.CMP_GT);
+    /*
+     *   LoG blob markers and marker-controlled watershed, on the full image or on a tile (TiledWatershed).
+     *   Inputs are not modified. Returns the CV_32S watershed labels, 1 is background and cells are 2 and up.
+     * */
+    Mat segmentCells(Mat mat_img, Mat I2, Mat D, Mat mask_alpha) {
 
-            ones.convertTo(ones, WS_result.type());
-            Core.compare(WS_result, ones, WS_result, Core.CMP_GT);
+        int rows = mat_img.rows();
+        int cols = mat_img.cols();
 
-            WS_result.convertTo(WS_result, CvType.CV_8U);
+        long sTime = System.currentTimeMillis();
 
-            watershed_result = WS_result;
+        // find blob responses across scales.
+        Mat Lmin = segContext.getLoGFilterBank().applyMin(I2);
 
-            //release memory
-        }
+        long eTime = System.currentTimeMillis();
+        long tTime = eTime - sTime;
+        Log.d(TAG, "long Time: " + tTime);
 
-    }
+        // blob responses weighted by the distance transform, both CV_32F
+        Mat Lm2 = segContext.obtain(rows, cols, CvType.CV_32FC1);
+        Core.multiply(D, Lmin, Lm2);
+        Lmin.release();
+        //outMat = Lm2.clone();
+
+        Mat kernel_ones = segContext.getSumKernel3x3();
+        int anchor1 = kernel_ones.cols() - 1 - 1;
+        Imgproc.filter2D(Lm2, Lm2, Lm2.depth(), kernel_ones, new Point(anchor1, anchor1), 0, Core.BORDER_CONSTANT);
+
+        // produce markers, labelled 1..n in CV_32F
+        RegionalMinima regionalMinima = new RegionalMinima();
+        Mat markers = regionalMinima.run(Lm2);
+        segContext.recycle(Lm2);
+        Log.d(TAG, "markers: " + regionalMinima.getCount());
+
+        Mat kernel3x3 = segContext.getStructuringElement(Imgproc.CV_SHAPE_RECT, 3, 3);
+        Imgproc.dilate(markers, markers, kernel3x3);
 
-    private Mat stretchHist_8bit(Mat Green, double min_percent, double max_percent) {
+        long st = System.currentTimeMillis();
 
-        Mat green = Green.clone();
-        green.convertTo(green, CvType.CV_64FC1);
+        // segment watershed
+        SegmentWatershed segmentWatershed = new SegmentWatershed(segContext);
+        segmentWatershed.runSegmentWatershed(mat_img, mask_alpha, markers);
+        segContext.recycle(markers);
 
-        Mat array = reshape2D(green, 1); //self written function
-        Mat centers = histCenters(array, 256); //self written function
-        array.release();
+        long et = System.currentTimeMillis();
+        long tT = et - st;
+        Log.d(TAG, "SegmentWatershed Time: " + tT);
+
+        Mat WS_result = new Mat();
+        segmentWatershed.result.convertTo(WS_result, CvType.CV_32S);
+        segmentWatershed.result.release();
+
+        Imgproc.watershed(mat_img, WS_result);
+
+        return WS_result;
+    }
+
+    // clip the darkest min_percent and brightest (1 - max_percent) pixels and map the result through one lookup table
+    private Mat stretchHist_8bit(Mat green, double min_percent, double max_percent) {
 
         Histogram histogram = new Histogram();
-        histogram.runHistogram(green, 256);
-        Mat h = histogram.getHistMat().clone();
-        histogram.getHistMat().release();
+        histogram.runHistogram_8bit(green, 256);
+        Mat h = histogram.getHistMat();
         boolean retakeFlag = histogram.getRetakeFlag();
+        double minVal = histogram.getMinVal();
+        double maxVal = histogram.getMaxVal();
         histogram = null;
 
         Log.d(TAG,"retakeFlag: " + retakeFlag);
 
         if (retakeFlag) {
 
+            h.release();
             retakeIm = true;
             return null;
         } else {
 
             // normalized cumulative histogram
-            Mat ch = cumsum(h);                 //self written function
+            float h_copy[] = new float[(int) h.total()];
+            h.get(0, 0, h_copy);
             h.release();
-            ch.convertTo(ch, CvType.CV_64F);
-            Mat sumH = Mat.zeros(ch.rows(), ch.cols(), CvType.CV_64FC1);
-            sumH.setTo(new Scalar(ch.get(0, ch.cols() - 1)[0]));
-            Core.divide(ch, sumH, ch);
-            sumH.release();
-            //outMat = ch.clone();
+
+            double ch_copy[] = new double[h_copy.length];
+            double temp = 0;
+            for (int i = 0; i < h_copy.length; i++) {
+                temp = temp + h_copy[i];
+                ch_copy[i] = temp;
+            }
+            double sumH = ch_copy[ch_copy.length - 1];
+            for (int i = 0; i < ch_copy.length; i++) {
+                ch_copy[i] = ch_copy[i] / sumH;
+            }
 
             // histogram cropping
-            double min_P = min_percent;
-            double max_P = max_percent;
             int lower = 0;
             int upper = 0;
-            double centers_lower;
-            double centers_upper;
-
-            double ch_copy[] = new double[(int) ch.total()];
-            ch.get(0, 0, ch_copy);
-            ch.release();
 
             for (int i = 0; i < ch_copy.length; i++) {
-                if (ch_copy[i] > min_P || ch_copy[i] == min_P) {
+                if (ch_copy[i] > min_percent || ch_copy[i] == min_percent) {
                     lower = i;
                     break;
                 }
             }
 
             for (int i = 0; i < ch_copy.length; i++) {
-                if (ch_copy[i] > max_P || ch_copy[i] == max_P) {
+                if (ch_copy[i] > max_percent || ch_copy[i] == max_percent) {
                     upper = i;
                     break;
                 }
             }
-            ch_copy = null;
-
-            // set two matrices where all pixel values are lower and upper bound
-            centers_lower = centers.get(0, lower)[0];
-            centers_upper = centers.get(0, upper)[0];
-            centers.release();
-
-            Mat AllLower = Mat.zeros(green.rows(), green.cols(), CvType.CV_32FC1);
-            Mat AllUpper = Mat.zeros(green.rows(), green.cols(), CvType.CV_32FC1);
-            AllLower.setTo(new Scalar(centers_lower));
-            AllUpper.setTo(new Scalar(centers_upper));
-
-            // get mask that says which pixels are stretched
-            Mat compare_upper = new Mat();
-            Mat compare_lower = new Mat();
-            green.convertTo(green, CvType.CV_32F);
-            Core.compare(green, AllLower, compare_lower, Core.CMP_LT);
-            Core.compare(green, AllUpper, compare_upper, Core.CMP_GT);
-            // change mask value from 255 to 1
-            Core.divide(compare_lower, compare_lower, compare_lower);
-            Core.divide(compare_upper, compare_upper, compare_upper);
-
-            // get complement matrix of the mask
-            Mat lowerM_complement = new Mat();
-            Mat upperM_complement = new Mat();
-            Mat ones = Mat.ones(green.rows(), green.cols(), CvType.CV_32FC1);
-            compare_lower.convertTo(compare_lower, CvType.CV_32F);
-            compare_upper.convertTo(compare_upper, CvType.CV_32F);
-            Core.bitwise_xor(compare_lower, ones, lowerM_complement);
-            Core.bitwise_xor(compare_upper, ones, upperM_complement);
-            ones.release();
-
-            // get stretched part of the new green matrix
-            Mat lowerMat = new Mat();
-            Mat upperMat = new Mat();
-            Core.multiply(compare_lower, AllLower, lowerMat);
-            Core.multiply(compare_upper, AllUpper, upperMat);
-            AllLower.release();
-            AllUpper.release();
-            compare_upper.release();
-            compare_lower.release();
-
-            // get un-stretched part of the new green matrix
-            Mat new_green = new Mat();
-            Core.multiply(green, lowerM_complement, new_green);
-            Core.multiply(new_green, upperM_complement, new_green);
-            lowerM_complement.release();
-            upperM_complement.release();
 
-            // add two parts together
-            Core.add(new_green, lowerMat, new_green);
-            Core.add(new_green, upperMat, new_green);
-            lowerMat.release();
-            upperMat.release();
+            // bin centers of the lower and upper bound, pixels are compared against them in float
+            float centers_lower = (float) histCenter(minVal, maxVal, 256, lower);
+            float centers_upper = (float) histCenter(minVal, maxVal, 256, upper);
+
+            byte lut_copy[] = new byte[256];
+            for (int v = 0; v < 256; v++) {
+                float value = v;
+                if (value < centers_lower) {
+                    value = centers_lower;
+                } else if (value > centers_upper) {
+                    value = centers_upper;
+                }
+                // same rounding as convertTo(CV_8U)
+                lut_copy[v] = (byte) Math.max(0, Math.min(255, (int) Math.rint(value)));
+            }
 
-            // set stretched values to int
-            new_green.convertTo(new_green, CvType.CV_8U);
+            Mat lut = new Mat(1, 256, CvType.CV_8UC1);
+            lut.put(0, 0, lut_copy);
 
-            //release memory
-            green.release();
+            Mat new_green = new Mat();
+            Core.LUT(green, lut, new_green);
+            lut.release();
 
             return new_green;
         }
 
-
     }
 
-    // "col" is the column number of the new matrix
-    private Mat reshape2D(Mat mat, int col) {
-
-        Mat trans = new Mat();
+    // center of bin "index" when [minVal, maxVal] is split into "bins" bins
+    private double histCenter(double minVal, double maxVal, int bins, int index) {
 
-        Core.transpose(mat, trans);
+        double dist = (maxVal - minVal) / (bins * 2);
 
-        Mat temp = trans.reshape(1, col);
-        trans.release();
-
-        Mat res = new Mat();
-        Core.transpose(temp, res);
-        temp.release();
-
-        return res;
+        return (maxVal - dist) - dist * 2 * ((bins - 1) - index);
     }
 
-    private Mat histCenters(Mat array, int bins) {
-
-        Core.MinMaxLocResult res = Core.minMaxLoc(array);
+    // Mat buffers live on the native heap, log it at stage boundaries to compare memory use across versions
+    private void logNativeHeap(String stage) {
 
-        double dist = (res.maxVal - res.minVal) / (bins * 2);
-
-        Mat centers = Mat.zeros(1, bins, CvType.CV_64FC1);
-
-        centers.put(0, bins - 1, res.maxVal - dist);
-        for (int i = 1; i < bins; i++) {
-            double center = (res.maxVal - dist) - dist * 2 * i;
-            centers.put(0, (bins - 1) - i, center);
+        long size = Debug.getNativeHeapAllocatedSize();
+        if (size > nativeHeapPeak) {
+            nativeHeapPeak = size;
         }
-
-        return centers;
+        Log.d(TAG, "Native heap after " + stage + ": " + size / 1024 + " KB");
     }
 
-    private Mat cumsum(Mat h) {
+    /*
+     *   Segment the same image untiled and tiled with 1, 2, 4 & 8 threads, log the time and the number of cells
+     *   of each run. The image is not modified.
+     * */
+    public static void runTilingBenchmark(SegmentationContext segContext, Mat mat_img, float resizeValue, int tileSize) {
 
-        float h_copy[] = new float[(int) h.total()];
-        h.get(0, 0, h_copy);
+        int[] threads = {0, 1, 2, 4, 8}; // 0 is the untiled run
 
-        Mat ch = Mat.zeros(h.rows(), h.cols(), CvType.CV_64FC1);
-        double ch_copy[] = new double[(int) h.total()];
-        double temp = 0;
-        for (int i = 0; i < h_copy.length; i++) {
-            temp = temp + h_copy[i];
-            ch_copy[i] = temp;
-        }
-
-        ch.put(0, 0, ch_copy);
-
-        return ch;
-    }
-
-    private Mat imregionalmin(Mat im) {
-
-        Mat all0 = Mat.zeros(im.rows(), im.cols(), im.type());
-        Mat outSide_mask = new Mat();
-        Core.compare(im, all0, outSide_mask, Core.CMP_EQ);
-        all0.release();
+        for (int i = 0; i < threads.length; i++) {
 
-        Mat eroded = new Mat();
-        Imgproc.erode(im, eroded, new Mat());
-        Mat localMin = new Mat();
-        Core.compare(eroded, im, localMin, Core.CMP_EQ);
-        Core.subtract(localMin, outSide_mask, localMin);
-        outSide_mask.release();
-        eroded.release();
+            Mat image = mat_img.clone();
+            MarkerBasedWatershed watershed = new MarkerBasedWatershed(segContext);
+            watershed.setTiling(threads[i] == 0 ? 0 : tileSize, threads[i]);
 
-        return localMin;
-    }
-
-    private Mat calculate_loG(Mat im, int sigma) {
+            long startTime = System.currentTimeMillis();
+            watershed.runMarkerBasedWatershed(image, resizeValue);
+            long totalTime = System.currentTimeMillis() - startTime;
+            image.release();
 
-        int G_length = (int) Math.floor((sigma * 6 + 1) / 2);
+            if (watershed.watershed_result == null) {
+                return;
+            }
 
-        Mat x = Mat.zeros(1, sigma * 3 * 2 + 1, CvType.CV_64FC1);
-        int start = -G_length;
+            Mat labels = new Mat();
+            int cellNum = Imgproc.connectedComponents(watershed.watershed_result, labels, 4, CvType.CV_32S) - 1;
+            labels.release();
+            watershed.watershed_result.release();
+            watershed.output_WBCMask.release();
 
-        double x_copy[] = new double[(int) x.total()];
-        for (int i = 0; i < x_copy.length; i++) {
-            x_copy[i] = start;
-            start++;
+            Log.d(TAG, "Tiling benchmark, tile size " + (threads[i] == 0 ? 0 : tileSize) + ", threads " + threads[i] + ": " + totalTime + " ms, cells: " + cellNum);
         }
-        x.put(0, 0, x_copy);
-
-        Mat x2 = new Mat();
-        Core.pow(x, 2, x2);
-        x.release();
-
-        Mat sigmaMat = Mat.zeros(1, sigma * 3 * 2 + 1, CvType.CV_64FC1);
-        sigmaMat.setTo(new Scalar(sigma));
-        Mat sigmaMat2 = new Mat();
-        Core.pow(sigmaMat, 2, sigmaMat2);
-        Mat sigmaMat4 = new Mat();
-        Core.pow(sigmaMat, 4, sigmaMat4);
-        sigmaMat.release();
-        //outMat = sigmaMat4.clone();
-
-        double D = Math.sqrt(2 * Math.PI) * sigma;
-
-        // build Gx
-        Mat GaussX = new Mat();
-        Core.divide(x2, sigmaMat2, GaussX);
-        Mat all05 = Mat.zeros(1, sigma * 3 * 2 + 1, CvType.CV_64FC1);
-        all05.setTo(new Scalar(-0.5));
-        Core.multiply(GaussX, all05, GaussX);
-        Core.exp(GaussX, GaussX);
-        Mat allD = Mat.zeros(1, sigma * 3 * 2 + 1, CvType.CV_64FC1);
-        allD.setTo(new Scalar(D));
-        Core.divide(GaussX, allD, GaussX);
-        //Core.transpose(Imgproc.getGaussianKernel(sigma*3*2+1, 5, CvType.CV_32FC1), GaussX);
-        all05.release();
-        allD.release();
-
-        // build dGxx
-        Mat dGxx = new Mat();
-        Core.subtract(x2, sigmaMat2, dGxx);
-        Core.divide(dGxx, sigmaMat4, dGxx);
-        Core.multiply(dGxx, GaussX, dGxx);
-        x2.release();
-        sigmaMat2.release();
-        sigmaMat4.release();
-
-        Mat Ixx = new Mat();
-        Mat Iyy = new Mat();
-
-        Core.flip(GaussX, GaussX, 1);
-        Core.flip(dGxx, dGxx, 1);
-
-        Imgproc.filter2D(im, Ixx, -1, GaussX.t(), new Point(0, G_length), 0, Core.BORDER_CONSTANT);
-        Imgproc.filter2D(Ixx, Ixx, -1, dGxx, new Point(G_length, 0), 0, Core.BORDER_CONSTANT);
-
-        Imgproc.filter2D(im, Iyy, -1, dGxx.t(), new Point(0, G_length), 0, Core.BORDER_CONSTANT);
-        Imgproc.filter2D(Iyy, Iyy, -1, GaussX, new Point(G_length, 0), 0, Core.BORDER_CONSTANT);
-
-        Imgproc.filter2D(Ixx, Ixx, -1, GaussX.t(), new Point(0, G_length), Core.BORDER_CONSTANT);
-        Imgproc.filter2D(Ixx, Ixx, -1, GaussX, new Point(G_length, 0), 0, Core.BORDER_CONSTANT);
-
-        Imgproc.filter2D(Iyy, Iyy, -1, GaussX.t(), new Point(0, G_length), Core.BORDER_CONSTANT);
-        Imgproc.filter2D(Iyy, Iyy, -1, GaussX, new Point(G_length, 0), 0, Core.BORDER_CONSTANT);
-        GaussX.release();
-
-        Mat Laplacian = new Mat();
-        Core.add(Ixx, Iyy, Laplacian);
-        Ixx.release();
-        Iyy.release();
-
-        int pw = (int) Math.floor(dGxx.cols() / 2);
-        dGxx.release();
-
-        Laplacian = padBorders(Laplacian, pw, 0);
-
-        return Laplacian;
-
     }
 
-    // does this padding work?
-    private Mat padBorders(Mat I, int w, double value) {
-
-        int rows = I.rows();
-        int cols = I.cols();
-
-        // pad left
-        Rect roi_L = new Rect(0, 0, w, rows);
-        Mat newI_L = new Mat(I, roi_L);
-        newI_L.setTo(new Scalar(value));
-
-        // pad right
-        Rect roi_R = new Rect(cols - w, 0, w, rows);
-        Mat newI_R = new Mat(I, roi_R);
-        newI_R.setTo(new Scalar(value));
-
-        // pad top
-        Rect roi_U = new Rect(0, 0, cols, w);
-        Mat newI_U = new Mat(I, roi_U);
-        newI_U.setTo(new Scalar(value));
-
-        // pad down
-        Rect roi_D = new Rect(0, rows - w, cols, w);
-        Mat newI_D = new Mat(I, roi_D);
-        newI_D.setTo(new Scalar(value));
-
-        return I;
-
+    public void setTiling(int tileSize, int threads) {
+        this.tileSize = tileSize;
+        this.tileThreads = Math.max(1, threads);
     }
 
     public boolean getRetakeFlag() {
@@ -847,28 +544,7 @@ public class MarkerBasedWatershed {
 
     public Mat morphReconstruct(Mat marker, Mat mask) {
 
-        Mat dst = new Mat();
-        Core.min(marker, mask, dst);
-
-        Mat kernelDilate = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(3, 3));
-        Imgproc.dilate(dst, dst, kernelDilate);
-        Core.min(dst, mask, dst);
-
-        Mat temp1 = Mat.zeros(marker.size(), CvType.CV_8UC1);
-        Mat temp2 = Mat.zeros(marker.size(), CvType.CV_8UC1);
-
-        do {
-            dst.copyTo(temp1);
-            Imgproc.dilate(dst, dst, kernelDilate);
-            Core.min(dst, mask, dst);
-            Core.compare(temp1, dst, temp2, Core.CMP_NE);
-
-        } while (Core.sumElems(temp2).val[0] != 0);
-        temp1.release();
-        temp2.release();
-        kernelDilate.release();
-
-        return dst;
+        return MorphReconstruct.reconstruct(marker, mask);
     }
 
 }
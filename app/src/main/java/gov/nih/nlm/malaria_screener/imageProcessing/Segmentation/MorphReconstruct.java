@@ -0,0 +1,260 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing.Segmentation;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ *   Grayscale morphological reconstruction by dilation (Matlab imreconstruct), 8-connectivity.
+ *   Uses the hybrid raster/anti-raster scan + FIFO queue algorithm (L. Vincent, 1993) on primitive
+ *   arrays instead of repeating dilate/min over the whole image until it stops changing.
+ *   Only min/max are applied to the pixel values, so the output is identical to the iterative version.
+ * */
+public class MorphReconstruct {
+
+    private static final String TAG = "MyDebug";
+
+    // set to true to run the old iterative version next to the queue based one and log both timings
+    public static boolean BENCHMARK = false;
+
+    /*
+     *   @param marker: marker image, same size and type as mask
+     *   @param mask: mask image
+     *   @return reconstructed image, same type as marker
+     * */
+    public static Mat reconstruct(Mat marker, Mat mask) {
+
+        long startTime = System.currentTimeMillis();
+
+        int type = marker.type();
+        int rows = marker.rows();
+        int cols = marker.cols();
+
+        double[] J = toArray(marker);
+        double[] I = toArray(mask);
+
+        reconstruct(J, I, rows, cols);
+
+        Mat dst = new Mat(rows, cols, CvType.CV_64FC1);
+        dst.put(0, 0, J);
+        if (type != CvType.CV_64FC1) {
+            dst.convertTo(dst, type);
+        }
+
+        long endTime = System.currentTimeMillis();
+        long totalTime = endTime - startTime;
+        Log.d(TAG, "morphReconstruct queue Time: " + totalTime);
+
+        if (BENCHMARK) {
+            long startTime_it = System.currentTimeMillis();
+            Mat dst_it = reconstructIterative(marker, mask);
+            long totalTime_it = System.currentTimeMillis() - startTime_it;
+
+            Mat diff = new Mat();
+            Core.compare(dst, dst_it, diff, Core.CMP_NE);
+            int diffNum = Core.countNonZero(diff);
+            diff.release();
+            dst_it.release();
+
+            Log.d(TAG, "morphReconstruct " + cols + "x" + rows + " iterative: " + totalTime_it + " ms, queue: " + totalTime + " ms, different pixels: " + diffNum);
+        }
+
+        return dst;
+    }
+
+    /*
+     *   In-place reconstruction on row-major arrays. J holds the marker on input and the result on output.
+     * */
+    public static void reconstruct(double[] J, double[] I, int rows, int cols) {
+
+        int length = rows * cols;
+
+        for (int p = 0; p < length; p++) {
+            if (J[p] > I[p]) {
+                J[p] = I[p];
+            }
+        }
+
+        // raster scan, causal neighbors: upper-left, up, upper-right, left
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                int p = r * cols + c;
+                double max = J[p];
+
+                if (r > 0) {
+                    int up = p - cols;
+                    if (c > 0 && J[up - 1] > max) max = J[up - 1];
+                    if (J[up] > max) max = J[up];
+                    if (c < cols - 1 && J[up + 1] > max) max = J[up + 1];
+                }
+                if (c > 0 && J[p - 1] > max) max = J[p - 1];
+
+                J[p] = max < I[p] ? max : I[p];
+            }
+        }
+
+        IntQueue fifo = new IntQueue(Math.max(16, length / 16));
+
+        // anti-raster scan, anti-causal neighbors: right, lower-left, down, lower-right
+        for (int r = rows - 1; r >= 0; r--) {
+            for (int c = cols - 1; c >= 0; c--) {
+                int p = r * cols + c;
+                double max = J[p];
+
+                if (c < cols - 1 && J[p + 1] > max) max = J[p + 1];
+                if (r < rows - 1) {
+                    int down = p + cols;
+                    if (c > 0 && J[down - 1] > max) max = J[down - 1];
+                    if (J[down] > max) max = J[down];
+                    if (c < cols - 1 && J[down + 1] > max) max = J[down + 1];
+                }
+
+                double v = max < I[p] ? max : I[p];
+                J[p] = v;
+
+                // queue the pixel if it can still propagate to an anti-causal neighbor
+                if ((c < cols - 1 && canPropagate(J, I, p + 1, v))
+                        || (r < rows - 1 && ((c > 0 && canPropagate(J, I, p + cols - 1, v))
+                        || canPropagate(J, I, p + cols, v)
+                        || (c < cols - 1 && canPropagate(J, I, p + cols + 1, v))))) {
+                    fifo.add(p);
+                }
+            }
+        }
+
+        // propagation
+        while (!fifo.isEmpty()) {
+            int p = fifo.poll();
+            int r = p / cols;
+            int c = p - r * cols;
+            double v = J[p];
+
+            for (int dr = -1; dr <= 1; dr++) {
+                int rr = r + dr;
+                if (rr < 0 || rr >= rows) {
+                    continue;
+                }
+                for (int dc = -1; dc <= 1; dc++) {
+                    int cc = c + dc;
+                    if ((dr == 0 && dc == 0) || cc < 0 || cc >= cols) {
+                        continue;
+                    }
+                    int q = rr * cols + cc;
+                    if (J[q] < v && I[q] != J[q]) {
+                        J[q] = v < I[q] ? v : I[q];
+                        fifo.add(q);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean canPropagate(double[] J, double[] I, int q, double v) {
+        return J[q] < v && J[q] < I[q];
+    }
+
+    private static double[] toArray(Mat mat) {
+
+        Mat mat64F = mat;
+        if (mat.type() != CvType.CV_64FC1 || !mat.isContinuous()) {
+            mat64F = new Mat();
+            mat.convertTo(mat64F, CvType.CV_64F);
+        }
+
+        double[] array = new double[(int) mat64F.total()];
+        mat64F.get(0, 0, array);
+
+        if (mat64F != mat) {
+            mat64F.release();
+        }
+
+        return array;
+    }
+
+    // previous implementation, kept as reference for BENCHMARK
+    public static Mat reconstructIterative(Mat marker, Mat mask) {
+
+        Mat dst = new Mat();
+        Core.min(marker, mask, dst);
+
+        Mat kernelDilate = Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(3, 3));
+        Imgproc.dilate(dst, dst, kernelDilate);
+        Core.min(dst, mask, dst);
+
+        Mat temp1 = Mat.zeros(marker.size(), CvType.CV_8UC1);
+        Mat temp2 = Mat.zeros(marker.size(), CvType.CV_8UC1);
+
+        do {
+            dst.copyTo(temp1);
+            Imgproc.dilate(dst, dst, kernelDilate);
+            Core.min(dst, mask, dst);
+            Core.compare(temp1, dst, temp2, Core.CMP_NE);
+
+        } while (Core.sumElems(temp2).val[0] != 0);
+        temp1.release();
+        temp2.release();
+        kernelDilate.release();
+
+        return dst;
+    }
+
+    // growable ring buffer of pixel indices
+    private static class IntQueue {
+
+        private int[] data;
+        private int head = 0;
+        private int size = 0;
+
+        IntQueue(int capacity) {
+            data = new int[capacity];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(int value) {
+            if (size == data.length) {
+                int[] newData = new int[data.length * 2];
+                for (int i = 0; i < size; i++) {
+                    newData[i] = data[(head + i) % data.length];
+                }
+                data = newData;
+                head = 0;
+            }
+            data[(head + size) % data.length] = value;
+            size++;
+        }
+
+        int poll() {
+            int value = data[head];
+            head = (head + 1) % data.length;
+            size--;
+            return value;
+        }
+    }
+
+}
@@ -20,7 +20,6 @@ limitations under the License.
 package gov.nih.nlm.malaria_screener.imageProcessing.Segmentation;
 
 import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 
 /**
@@ -38,12 +37,10 @@ public class OtsuThreshold {
         Core.normalize(image, newImage, 0, 255, Core.NORM_MINMAX);
         //newImage.convertTo(newImage, CvType.CV_8U);
 
-        mask.convertTo(mask, CvType.CV_32S);
-
-        Core.MinMaxLocResult res = Core.minMaxLoc(image);
+        // mask is CV_8U with values 0 & 1
 
         int length = 0;
-        int mask_JP[] = new int[(int)mask.total()];
+        byte mask_JP[] = new byte[(int)mask.total()];
         double newImage_JP[] = new double[(int)newImage.total()];
 
         mask.get(0,0, mask_JP);
@@ -0,0 +1,120 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing.Segmentation;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/*
+ *   Regional minima (Matlab imregionalmin), 8-connectivity. A regional minimum is a connected plateau of equal
+ *   values whose neighbours are all strictly higher. Each plateau is flood filled once, so every pixel is visited
+ *   a constant number of times. Pixels with value 0 are outside of the blobs and never a minimum.
+ * */
+public class RegionalMinima {
+
+    private int count = 0;
+
+    /*
+     *   @param im: CV_32FC1 image
+     *   @return CV_32FC1 labels, 0 for no minimum and 1..count for the minima
+     * */
+    public Mat run(Mat im) {
+
+        int rows = im.rows();
+        int cols = im.cols();
+
+        float im_JP[] = new float[(int) im.total()];
+        im.get(0, 0, im_JP);
+
+        float labels_JP[] = label(im_JP, rows, cols);
+
+        Mat labels = new Mat(rows, cols, CvType.CV_32FC1);
+        labels.put(0, 0, labels_JP);
+
+        return labels;
+    }
+
+    public float[] label(float[] im, int rows, int cols) {
+
+        int length = rows * cols;
+
+        float[] labels = new float[length];
+        boolean[] visited = new boolean[length];
+        int[] plateau = new int[length];
+
+        count = 0;
+
+        for (int p = 0; p < length; p++) {
+
+            if (visited[p] || im[p] == 0) {
+                continue;
+            }
+
+            float value = im[p];
+            boolean isMin = true;
+
+            // flood fill the plateau of p, plateau[0, size) holds its pixels
+            int size = 0;
+            plateau[size++] = p;
+            visited[p] = true;
+
+            for (int head = 0; head < size; head++) {
+                int q = plateau[head];
+                int r = q / cols;
+                int c = q - r * cols;
+
+                for (int dr = -1; dr <= 1; dr++) {
+                    int rr = r + dr;
+                    if (rr < 0 || rr >= rows) {
+                        continue;
+                    }
+                    for (int dc = -1; dc <= 1; dc++) {
+                        int cc = c + dc;
+                        if ((dr == 0 && dc == 0) || cc < 0 || cc >= cols) {
+                            continue;
+                        }
+                        int n = rr * cols + cc;
+                        if (im[n] < value) {
+                            isMin = false;
+                        } else if (im[n] == value && !visited[n]) {
+                            visited[n] = true;
+                            plateau[size++] = n;
+                        }
+                    }
+                }
+            }
+
+            if (isMin) {
+                count++;
+                for (int i = 0; i < size; i++) {
+                    labels[plateau[i]] = count;
+                }
+            }
+        }
+
+        return labels;
+    }
+
+    // number of minima found by the last run
+    public int getCount() {
+        return count;
+    }
+
+}
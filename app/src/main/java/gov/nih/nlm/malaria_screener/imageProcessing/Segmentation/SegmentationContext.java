@@ -0,0 +1,219 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing.Segmentation;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.CLAHE;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ *   Long-lived state shared by all segmentation runs of a camera session.
+ *
+ *   Full frame temporaries are handed out from a pool keyed by rows, cols & type and given back with recycle(), so
+ *   back to back images reuse the same native buffers. Structuring elements, filter kernels, the CLAHE instance
+ *   and the LoG filter bank are built once. Call release() when the session ends.
+ * */
+public class SegmentationContext {
+
+    private static final int MAX_POOLED_PER_KEY = 4;
+
+    private final Map<Long, ArrayDeque<Mat>> scratchPool = new HashMap<Long, ArrayDeque<Mat>>();
+    private final Map<Long, Mat> structuringElements = new HashMap<Long, Mat>();
+
+    private CLAHE clahe;
+    private Mat gaussianKernel;
+    private Mat sumKernel3x3;
+    private Mat diffKernelX;
+    private Mat diffKernelY;
+    private LoGFilterBank logFilterBank;
+    private ForkJoinPool tilePool;
+
+    // scratch Mat of the requested size & type, its content is undefined
+    public synchronized Mat obtain(int rows, int cols, int type) {
+
+        ArrayDeque<Mat> mats = scratchPool.get(key(rows, cols, type));
+        if (mats != null && !mats.isEmpty()) {
+            return mats.pop();
+        }
+
+        return new Mat(rows, cols, type);
+    }
+
+    // give a Mat obtained from the pool back, the caller must not use it afterwards
+    public synchronized void recycle(Mat mat) {
+
+        if (mat == null) {
+            return;
+        }
+
+        if (mat.empty() || mat.isSubmatrix() || !mat.isContinuous()) {
+            mat.release();
+            return;
+        }
+
+        long key = key(mat.rows(), mat.cols(), mat.type());
+        ArrayDeque<Mat> mats = scratchPool.get(key);
+        if (mats == null) {
+            mats = new ArrayDeque<Mat>();
+            scratchPool.put(key, mats);
+        }
+
+        if (mats.size() < MAX_POOLED_PER_KEY) {
+            mats.push(mat);
+        } else {
+            mat.release();
+        }
+    }
+
+    public synchronized Mat getStructuringElement(int shape, int width, int height) {
+
+        long key = key(width, height, shape);
+        Mat element = structuringElements.get(key);
+        if (element == null) {
+            element = Imgproc.getStructuringElement(shape, new Size(width, height));
+            structuringElements.put(key, element);
+        }
+
+        return element;
+    }
+
+    public synchronized CLAHE getCLAHE() {
+
+        if (clahe == null) {
+            clahe = Imgproc.createCLAHE(2.56, new Size(8, 8)); // 2.56 to 256, as 0.01 to 1 in Matlab, this might not be accurate
+        }
+
+        return clahe;
+    }
+
+    // 5x5 Gaussian with sigma 1, flipped for filter2D
+    public synchronized Mat getGaussianKernel() {
+
+        if (gaussianKernel == null) {
+            Mat Gx = Imgproc.getGaussianKernel(5, 1, CvType.CV_64FC1);
+            gaussianKernel = new Mat();
+            Core.gemm(Gx, Gx.t(), 1, new Mat(), 0, gaussianKernel);
+            Core.flip(gaussianKernel, gaussianKernel, 1);
+            Gx.release();
+        }
+
+        return gaussianKernel;
+    }
+
+    // 3x3 kernel of ones for neighbourhood sums
+    public synchronized Mat getSumKernel3x3() {
+
+        if (sumKernel3x3 == null) {
+            sumKernel3x3 = Mat.ones(3, 3, CvType.CV_32FC1);
+        }
+
+        return sumKernel3x3;
+    }
+
+    // central difference [-0.5 0 0.5] as row or column kernel
+    public synchronized Mat getDiffKernel(boolean horizontal) {
+
+        if (diffKernelX == null) {
+            double data[] = {-0.5, 0, 0.5};
+            diffKernelX = new Mat(1, 3, CvType.CV_64FC1);
+            diffKernelX.put(0, 0, data);
+            diffKernelY = new Mat(3, 1, CvType.CV_64FC1);
+            diffKernelY.put(0, 0, data);
+        }
+
+        return horizontal ? diffKernelX : diffKernelY;
+    }
+
+    // kernels for sigma 5, 6 & 9
+    public synchronized LoGFilterBank getLoGFilterBank() {
+
+        if (logFilterBank == null) {
+            logFilterBank = new LoGFilterBank(new int[]{5, 6, 9});
+        }
+
+        return logFilterBank;
+    }
+
+    // work-stealing pool for tiled segmentation, rebuilt when the thread count changes
+    public synchronized ForkJoinPool getTilePool(int threads) {
+
+        if (tilePool == null || tilePool.getParallelism() != threads) {
+            if (tilePool != null) {
+                tilePool.shutdown();
+            }
+            tilePool = new ForkJoinPool(threads);
+        }
+
+        return tilePool;
+    }
+
+    public synchronized void release() {
+
+        for (ArrayDeque<Mat> mats : scratchPool.values()) {
+            for (Mat mat : mats) {
+                mat.release();
+            }
+        }
+        scratchPool.clear();
+
+        for (Mat element : structuringElements.values()) {
+            element.release();
+        }
+        structuringElements.clear();
+
+        if (gaussianKernel != null) {
+            gaussianKernel.release();
+            gaussianKernel = null;
+        }
+        if (sumKernel3x3 != null) {
+            sumKernel3x3.release();
+            sumKernel3x3 = null;
+        }
+        if (diffKernelX != null) {
+            diffKernelX.release();
+            diffKernelY.release();
+            diffKernelX = null;
+            diffKernelY = null;
+        }
+        if (logFilterBank != null) {
+            logFilterBank.release();
+            logFilterBank = null;
+        }
+        if (tilePool != null) {
+            tilePool.shutdown();
+            tilePool = null;
+        }
+        clahe = null;
+    }
+
+    private static long key(int rows, int cols, int type) {
+
+        return ((long) rows << 40) | ((long) cols << 16) | (type & 0xFFFF);
+    }
+
+}
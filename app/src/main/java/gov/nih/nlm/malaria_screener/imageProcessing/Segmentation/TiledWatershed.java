@@ -0,0 +1,203 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing.Segmentation;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+ *   Runs MarkerBasedWatershed.segmentCells() on overlapping tiles in parallel and stitches the cells back together.
+ *
+ *   Every tile is a core area grown by MARGIN pixels on each side. A cell is taken from the tile whose core contains
+ *   its centroid. The margin is wider than the LoG radius plus a cell, so that tile sees the whole cell and the LoG
+ *   responses around it as the untiled run does. Regional minima and the reconstruction in SegmentWatershed are not
+ *   local though, a plateau or a reconstruction path can reach past the margin, so cells can differ from the untiled
+ *   run. MarkerBasedWatershed.runTilingBenchmark() logs the cell count of both. Where cells taken from different tiles
+ *   touch or overlap, a one pixel boundary is put between them, the same as the watershed lines between cells of one
+ *   tile.
+ * */
+final class TiledWatershed {
+
+    // LoG radius (3 * 9) plus a resized RBC diameter, with some slack
+    static final int MARGIN = 96;
+
+    private TiledWatershed() {
+    }
+
+    // returns the cell mask as CV_8U with 255 for cells and 0 for background & boundaries
+    static Mat run(final MarkerBasedWatershed watershed, final Mat mat_img, final Mat I2, final Mat D, final Mat mask_alpha,
+                   int tileSize, ForkJoinPool pool) {
+
+        int rows = mat_img.rows();
+        int cols = mat_img.cols();
+
+        final List<Rect> cores = new ArrayList<Rect>();
+        final List<Rect> tiles = new ArrayList<Rect>();
+        List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+
+        for (int y = 0; y < rows; y += tileSize) {
+            for (int x = 0; x < cols; x += tileSize) {
+
+                Rect core = new Rect(x, y, Math.min(tileSize, cols - x), Math.min(tileSize, rows - y));
+
+                int x0 = Math.max(0, core.x - MARGIN);
+                int y0 = Math.max(0, core.y - MARGIN);
+                int x1 = Math.min(cols, core.x + core.width + MARGIN);
+                int y1 = Math.min(rows, core.y + core.height + MARGIN);
+                final Rect tile = new Rect(x0, y0, x1 - x0, y1 - y0);
+
+                cores.add(core);
+                tiles.add(tile);
+                tasks.add(new Callable<int[]>() {
+                    @Override
+                    public int[] call() {
+                        return segmentTile(watershed, mat_img, I2, D, mask_alpha, tile);
+                    }
+                });
+            }
+        }
+
+        int[] cellLabels = new int[rows * cols];
+        int nextLabel = 1;
+
+        try {
+            List<Future<int[]>> futures = pool.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                nextLabel = mergeTile(futures.get(i).get(), tiles.get(i), cores.get(i), cellLabels, cols, nextLabel);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Tiled segmentation failed", e);
+        }
+
+        Mat result = new Mat(rows, cols, CvType.CV_8UC1);
+        result.put(0, 0, toMask(cellLabels, rows, cols));
+
+        return result;
+    }
+
+    private static int[] segmentTile(MarkerBasedWatershed watershed, Mat mat_img, Mat I2, Mat D, Mat mask_alpha, Rect tile) {
+
+        // continuous copies, so filters see the same zero border as on a full image
+        Mat tile_img = new Mat(mat_img, tile).clone();
+        Mat tile_I2 = new Mat(I2, tile).clone();
+        Mat tile_D = new Mat(D, tile).clone();
+        Mat tile_mask = new Mat(mask_alpha, tile).clone();
+
+        Mat labels = watershed.segmentCells(tile_img, tile_I2, tile_D, tile_mask);
+        tile_img.release();
+        tile_I2.release();
+        tile_D.release();
+        tile_mask.release();
+
+        int labels_JP[] = new int[(int) labels.total()];
+        labels.get(0, 0, labels_JP);
+        labels.release();
+
+        return labels_JP;
+    }
+
+    // copy the cells whose centroid lies in the core of this tile into cellLabels, -1 marks pixels claimed twice
+    private static int mergeTile(int[] labels, Rect tile, Rect core, int[] cellLabels, int cols, int nextLabel) {
+
+        int maxLabel = 0;
+        for (int label : labels) {
+            if (label > maxLabel) {
+                maxLabel = label;
+            }
+        }
+
+        long[] sumX = new long[maxLabel + 1];
+        long[] sumY = new long[maxLabel + 1];
+        int[] area = new int[maxLabel + 1];
+
+        for (int r = 0; r < tile.height; r++) {
+            for (int c = 0; c < tile.width; c++) {
+                int label = labels[r * tile.width + c];
+                if (label > 1) { // 1 is background, -1 watershed lines
+                    sumX[label] += c;
+                    sumY[label] += r;
+                    area[label]++;
+                }
+            }
+        }
+
+        int[] globalLabel = new int[maxLabel + 1];
+        for (int label = 2; label <= maxLabel; label++) {
+            if (area[label] > 0) {
+                double cx = tile.x + (double) sumX[label] / area[label];
+                double cy = tile.y + (double) sumY[label] / area[label];
+                if (cx >= core.x && cx < core.x + core.width && cy >= core.y && cy < core.y + core.height) {
+                    globalLabel[label] = nextLabel++;
+                }
+            }
+        }
+
+        for (int r = 0; r < tile.height; r++) {
+            int index = (tile.y + r) * cols + tile.x;
+            for (int c = 0; c < tile.width; c++, index++) {
+                int label = labels[r * tile.width + c];
+                if (label > 1 && globalLabel[label] > 0) {
+                    int current = cellLabels[index];
+                    if (current == 0) {
+                        cellLabels[index] = globalLabel[label];
+                    } else if (current != globalLabel[label]) {
+                        cellLabels[index] = -1;
+                    }
+                }
+            }
+        }
+
+        return nextLabel;
+    }
+
+    // cells to 255, a pixel whose left or upper neighbour belongs to another cell becomes boundary
+    private static byte[] toMask(int[] cellLabels, int rows, int cols) {
+
+        byte[] mask = new byte[rows * cols];
+
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                int index = r * cols + c;
+                int label = cellLabels[index];
+                if (label <= 0) {
+                    continue;
+                }
+                if (c > 0 && cellLabels[index - 1] > 0 && cellLabels[index - 1] != label) {
+                    continue;
+                }
+                if (r > 0 && cellLabels[index - cols] > 0 && cellLabels[index - cols] != label) {
+                    continue;
+                }
+                mask[index] = (byte) 255;
+            }
+        }
+
+        return mask;
+    }
+
+}
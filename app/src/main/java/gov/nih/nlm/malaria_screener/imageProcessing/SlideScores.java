@@ -0,0 +1,160 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ *   Re-scoring of a whole slide from the CellScores files in its folder, no segmentation or inference.
+ *
+ *   Call rescore() with the new threshold, then read the counts per image and for the slide. Parasitemia uses the
+ *   same formulas as the summary sheets. Overlays are drawn per image with getCellScores(i).drawOverlay().
+ * */
+public class SlideScores {
+
+    private static final String TAG = "MyDebug";
+
+    private final ArrayList<String> imageNames = new ArrayList<>();
+    private final ArrayList<CellScores> cellScores = new ArrayList<>();
+
+    private int[] infectedCounts = new int[0];
+    private int infectedTotal = 0;
+    private int cellTotal = 0;
+
+    /*
+     *   Loads the score files of all images in the slide folder, sorted by image name. Unreadable files are skipped.
+     * */
+    public static SlideScores load(File slideDir) {
+
+        SlideScores slideScores = new SlideScores();
+
+        File[] files = slideDir.listFiles();
+        if (files == null) {
+            return slideScores;
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+
+            String fileName = file.getName();
+            if (!fileName.endsWith(CellScores.FILE_SUFFIX)) {
+                continue;
+            }
+
+            try {
+                CellScores scores = CellScores.load(file);
+                slideScores.add(fileName.substring(0, fileName.length() - CellScores.FILE_SUFFIX.length()), scores);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return slideScores;
+    }
+
+    public void add(String imageName, CellScores scores) {
+        imageNames.add(imageName);
+        cellScores.add(scores);
+    }
+
+    /*
+     *   Recomputes the infected counts of all images at the threshold, UtilsCustom.Th for thin and
+     *   UtilsCustom.Th_thick for thick smears at the current settings.
+     * */
+    public void rescore(double threshold) {
+
+        long startTime = System.currentTimeMillis();
+
+        int imageNum = cellScores.size();
+
+        infectedCounts = new int[imageNum];
+        infectedTotal = 0;
+        cellTotal = 0;
+
+        for (int i = 0; i < imageNum; i++) {
+            infectedCounts[i] = cellScores.get(i).getInfectedCount(threshold);
+            infectedTotal += infectedCounts[i];
+            cellTotal += getCellCount(i);
+        }
+
+        long totalTime = System.currentTimeMillis() - startTime;
+        Log.d(TAG, "Rescore Time: " + totalTime);
+    }
+
+    public int getImageNum() {
+        return cellScores.size();
+    }
+
+    public String getImageName(int i) {
+        return imageNames.get(i);
+    }
+
+    public CellScores getCellScores(int i) {
+        return cellScores.get(i);
+    }
+
+    public boolean isThick() {
+        return !cellScores.isEmpty() && cellScores.get(0).getType() == CellScores.THICK;
+    }
+
+    // infected cells (thin) or parasites (thick) of image i at the last threshold
+    public int getInfectedCount(int i) {
+        return infectedCounts[i];
+    }
+
+    // cells (thin) or WBCs (thick) of image i, these don't depend on the threshold
+    public int getCellCount(int i) {
+
+        CellScores scores = cellScores.get(i);
+
+        if (scores.getType() == CellScores.THICK) {
+            return scores.getWBCCount();
+        } else {
+            return scores.size();
+        }
+    }
+
+    public int getInfectedTotal() {
+        return infectedTotal;
+    }
+
+    public int getCellTotal() {
+        return cellTotal;
+    }
+
+    /*
+     *   Parasites/uL at the last threshold, see SummarySheetActivity & SummarySheetActivity_thick.
+     *   @param hct: hematocrit of the patient, only used for thin smears
+     * */
+    public int getParasitemia(double hct) {
+
+        if (isThick()) {
+            return infectedTotal * 40;
+        } else {
+            return (int) (infectedTotal * hct * 125.6);
+        }
+    }
+
+}
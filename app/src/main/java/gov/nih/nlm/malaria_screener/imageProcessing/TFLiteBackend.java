@@ -0,0 +1,116 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ *   TensorFlow Lite model (.tflite) run on the CPU with XNNPACK and several threads.
+ *
+ *   The input is resized to the batch size when it changes, the direct input & output buffers are kept for the next
+ *   batch of the same size. The model is memory-mapped from the APK (noCompress "tflite").
+ * */
+public class TFLiteBackend implements InferenceBackend {
+
+    private final Interpreter interpreter;
+
+    private final int width;
+    private final int height;
+    private final int numClasses;
+
+    private int currentDims = 0;
+    private ByteBuffer inputBuffer;
+    private ByteBuffer outputBuffer;
+
+    public TFLiteBackend(AssetManager assetManager, String modelName, int width, int height, int numClasses, int numThreads) throws IOException {
+
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(numThreads);
+        options.setUseXNNPACK(true);
+
+        this.interpreter = new Interpreter(loadModelFile(assetManager, modelName), options);
+
+        this.width = width;
+        this.height = height;
+        this.numClasses = numClasses;
+    }
+
+    @Override
+    public float[] infer(float[] pixels, int dims) {
+
+        if (dims != currentDims) {
+            interpreter.resizeInput(0, new int[]{dims, height, width, 3});
+            interpreter.allocateTensors();
+
+            inputBuffer = ByteBuffer.allocateDirect(dims * height * width * 3 * 4).order(ByteOrder.nativeOrder());
+            outputBuffer = ByteBuffer.allocateDirect(dims * numClasses * 4).order(ByteOrder.nativeOrder());
+            currentDims = dims;
+        }
+
+        inputBuffer.rewind();
+        inputBuffer.asFloatBuffer().put(pixels, 0, dims * height * width * 3);
+        outputBuffer.rewind();
+
+        interpreter.run(inputBuffer, outputBuffer);
+
+        float[] output = new float[numClasses * dims];
+        outputBuffer.rewind();
+        FloatBuffer outputFloats = outputBuffer.asFloatBuffer();
+        outputFloats.get(output);
+
+        return output;
+    }
+
+    @Override
+    public int getType() {
+        return TFLITE;
+    }
+
+    @Override
+    public void close() {
+        interpreter.close();
+    }
+
+    static MappedByteBuffer loadModelFile(AssetManager assetManager, String modelName) throws IOException {
+
+        AssetFileDescriptor fd = assetManager.openFd(modelName);
+        FileInputStream inputStream = new FileInputStream(fd.getFileDescriptor());
+
+        try {
+            FileChannel channel = inputStream.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getDeclaredLength());
+        } finally {
+            inputStream.close();
+            fd.close();
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import android.content.res.AssetManager;
+
+import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
+
+/*
+ *   Frozen graph (.pb) run with TensorFlow Mobile (TensorFlowInferenceInterface).
+ * */
+public class TFMobileBackend implements InferenceBackend {
+
+    private final TensorFlowInferenceInterface tfHelper;
+
+    private final String inputName;
+    private final String outputName;
+    private final String[] outputNames;
+
+    private final int width;
+    private final int height;
+    private final int numClasses;
+
+    public TFMobileBackend(AssetManager assetManager, String modelName, int width, int height, String inputName, String outputName, int numClasses) {
+
+        this.tfHelper = new TensorFlowInferenceInterface(assetManager, modelName);
+
+        this.inputName = inputName;
+        this.outputName = outputName;
+        this.outputNames = new String[]{outputName};
+
+        this.width = width;
+        this.height = height;
+        this.numClasses = numClasses;
+    }
+
+    @Override
+    public float[] infer(float[] pixels, int dims) {
+
+        float[] output = new float[numClasses * dims];
+
+        tfHelper.feed(inputName, pixels, dims, height, width, 3);
+
+        //get the possible outputs
+        tfHelper.run(outputNames);
+
+        //get the output
+        tfHelper.fetch(outputName, output);
+
+        return output;
+    }
+
+    @Override
+    public int getType() {
+        return TF_MOBILE;
+    }
+
+    @Override
+    public void close() {
+        tfHelper.close();
+    }
+
+}
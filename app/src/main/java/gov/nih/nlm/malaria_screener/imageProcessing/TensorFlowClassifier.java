@@ -21,8 +21,6 @@ package gov.nih.nlm.malaria_screener.imageProcessing;
 
 import android.content.res.AssetManager;
 
-import org.tensorflow.contrib.android.TensorFlowInferenceInterface;
-
 import java.io.IOException;
 
 import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
@@ -31,30 +29,29 @@ public class TensorFlowClassifier {
 
     private static final String TAG = "MyDebug";
 
-    private TensorFlowInferenceInterface tfHelper;
-
-    private String inputName;
-    private String outputName;
+    private InferenceBackend backend;
 
     private int width;
     private int height;
 
-    private String[] outputNames;
+    private String modelName;
+
+    private int batchSize = 0; // 0 until set by BatchSizeTuner
 
-    int numClasses = 2;
+    static final int NUM_CLASSES = 2;
 
     public static TensorFlowClassifier create(AssetManager assetManager, String modelName, int width, int height, String inputName, String outputName) throws IOException {
 
-        // initialize a classifier
-        TensorFlowClassifier c = new TensorFlowClassifier();
+        return create(new TFMobileBackend(assetManager, modelName, width, height, inputName, outputName, NUM_CLASSES), modelName, width, height);
+    }
 
-        c.inputName = inputName;
-        c.outputName = outputName;
+    public static TensorFlowClassifier create(InferenceBackend backend, String modelName, int width, int height) {
 
-        // Pre-allocate buffer.
-        c.outputNames = new String[]{outputName};
+        // initialize a classifier
+        TensorFlowClassifier c = new TensorFlowClassifier();
 
-        c.tfHelper = new TensorFlowInferenceInterface(assetManager, modelName);
+        c.backend = backend;
+        c.modelName = modelName;
 
         c.width = width;
         c.height = height;
@@ -64,17 +61,7 @@ public class TensorFlowClassifier {
 
     public boolean recongnize(float[] pixels, int dims){
 
-        float[] output = new float[numClasses * dims];
-
-        tfHelper.feed(inputName, pixels, dims, width, height, 3);
-
-        //tfHelper.feed("keep_prob", new float[] { 1 });
-
-        //get the possible outputs
-        tfHelper.run(outputNames);
-
-        //get the output
-        tfHelper.fetch(outputName, output);
+        float[] output = infer(pixels, dims);
 
         //Log.d(TAG, "output: " + output[0] + ", " + output[1]);
 
@@ -91,16 +78,15 @@ public class TensorFlowClassifier {
 
     // for Shiva's thin smear classifier
     public void recongnize_batch(float[] pixels, int dims) {
+        addThinResults(infer(pixels, dims));
+    }
 
-            float[] output = new float[numClasses * dims];
-
-            tfHelper.feed(inputName, pixels, dims, height, width, 3);
-
-            //get the possible outputs
-            tfHelper.run(outputNames);
+    // same as recongnize_batch(float[], int) for 8 bit pixels, see acceptsBytes()
+    public void recongnize_batch(byte[] pixels, int dims) {
+        addThinResults(inferBytes(pixels, dims));
+    }
 
-            //get the output
-            tfHelper.fetch(outputName, output);
+    private void addThinResults(float[] output) {
 
             for (int i = 0; i < output.length / 2; i++) {
 
@@ -108,12 +94,10 @@ public class TensorFlowClassifier {
                 // Therefore, output[i*2] contains confidence for infected class
                 if (output[i*2] > UtilsCustom.Th) {
                     // infected confidence higher
-                    UtilsCustom.results.add(1);
-                    UtilsCustom.confs_patch.add(output[i*2]);
+                    UtilsCustom.cellTable.addResult(CellTable.INFECTED, output[i*2], output[i*2]);
                 } else {
                     // normal confidence higher
-                    UtilsCustom.results.add(0);
-                    UtilsCustom.confs_patch.add(output[i*2+1]);
+                    UtilsCustom.cellTable.addResult(CellTable.NORMAL, output[i*2+1], output[i*2]);
                 }
 
                 //Log.d(TAG, "DL chip output: " + i + " , " + output[i*2]);
@@ -124,21 +108,20 @@ public class TensorFlowClassifier {
 
     // for thick smear classifier
     public void recongnize_batch_thick(float[] pixels, int dims) {
+        addThickResults(infer(pixels, dims));
+    }
 
-        float[] output = new float[numClasses * dims];
-
-        tfHelper.feed(inputName, pixels, dims, height, width, 3);
-
-        //get the possible outputs
-        tfHelper.run(outputNames);
+    public void recongnize_batch_thick(byte[] pixels, int dims) {
+        addThickResults(inferBytes(pixels, dims));
+    }
 
-        //get the output
-        tfHelper.fetch(outputName, output);
+    private void addThickResults(float[] output) {
 
         for (int i = 0; i < output.length / 2; i++) {
 
             // in the loaded TF thick smear model 0 is normal, 1 is infected
             // Therefore, output[i*2] contains confidence for normal class
+            UtilsCustom.probs_patch.add(output[i*2+1]);
             if (output[i*2+1] > UtilsCustom.Th_thick) {
                 UtilsCustom.results.add(1);
                 UtilsCustom.confs_patch.add(output[i*2+1]);
@@ -154,15 +137,7 @@ public class TensorFlowClassifier {
     // for focus measure
     public void recongnize_fm_batch(float[] pixels, int dims) {
 
-        float[] output = new float[numClasses * dims];
-
-        tfHelper.feed(inputName, pixels, dims, height, width, 3);
-
-        //get the possible outputs
-        tfHelper.run(outputNames);
-
-        //get the output
-        tfHelper.fetch(outputName, output);
+        float[] output = infer(pixels, dims);
 
         for (int i = 0; i < output.length / 2; i++) {
 
@@ -182,6 +157,60 @@ public class TensorFlowClassifier {
         //Log.d(TAG, "One batch over");
     }
 
+    /*
+     *   Feeds a batch of dims images (dims x height x width x 3) and returns the NUM_CLASSES outputs per image.
+     *   Synchronized because the backends can't be used from two threads, e.g. while BatchSizeTuner runs.
+     * */
+    public synchronized float[] infer(float[] pixels, int dims) {
+        return backend.infer(pixels, dims);
+    }
+
+    /*
+     *   Same as infer() for 8 bit pixels (TensorPacker.packBytes). Quantized models take them as they are, the other
+     *   backends get them converted to float.
+     * */
+    public synchronized float[] inferBytes(byte[] pixels, int dims) {
+
+        if (backend instanceof QuantizedTFLiteBackend) {
+            return ((QuantizedTFLiteBackend) backend).inferBytes(pixels, dims);
+        }
+
+        float[] floatPixels = new float[dims * height * width * 3];
+        for (int i = 0; i < floatPixels.length; i++) {
+            floatPixels[i] = (pixels[i] & 0xFF) / 255.0f;
+        }
+        return backend.infer(floatPixels, dims);
+    }
+
+    // true if the model takes 8 bit input, then chips are better packed with TensorPacker.packBytes & fed to inferBytes()
+    public boolean acceptsBytes() {
+        return backend.getType() == InferenceBackend.TFLITE_INT8;
+    }
+
+    // frees the model, the classifier can't be used afterwards
+    public synchronized void close() {
+        backend.close();
+    }
+
+    public InferenceBackend getBackend() {
+        return backend;
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /*
+     *   @return the batch size found by BatchSizeTuner, defaultSize if the classifier was not tuned
+     * */
+    public int getBatchSize(int defaultSize) {
+        return batchSize > 0 ? batchSize : defaultSize;
+    }
+
     public int getWidth() {
         return width;
     }
@@ -0,0 +1,220 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/*
+ *   Packs 8 bit image chips into the float input of a TensorFlowClassifier, batch x height x width x 3 in [0, 1].
+ *
+ *   The chip bytes are read straight from the Mat into a reused byte buffer, without the Bitmap round trip. The
+ *   channel order is the one Utils.matToBitmap gave before: a 3 or 4 channel Mat is taken as RGB(A), a 1 channel
+ *   Mat is repeated in all three channels. The batch arrays are reused as long as the batch size does not change.
+ *
+ *   The packBytes() variants write the same layout as 8 bit pixels, for quantized models (QuantizedTFLiteBackend).
+ * */
+public class TensorPacker {
+
+    private static final float[] TO_FLOAT = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            TO_FLOAT[i] = i / 255.0f;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int chipLength;
+
+    private float[] batch = new float[0];
+    private float[] lastBatch = new float[0];
+
+    private byte[] byteBatch = new byte[0];
+    private byte[] lastByteBatch = new byte[0];
+
+    private byte[] chipBuffer = new byte[0];
+    private Mat resized = new Mat();
+    private Mat converted = new Mat();
+
+    public TensorPacker(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.chipLength = width * height * 3;
+    }
+
+    /*
+     *   @param batchSize: number of chips in the batch
+     *   @param last: true for the last, smaller batch of an image, so that a full sized batch array is kept
+     *   @return float array of exactly batchSize chips, reused between calls
+     * */
+    public float[] obtain(int batchSize, boolean last) {
+
+        int length = batchSize * chipLength;
+
+        if (last) {
+            if (lastBatch.length != length) {
+                lastBatch = new float[length];
+            }
+            return lastBatch;
+        }
+
+        if (batch.length != length) {
+            batch = new float[length];
+        }
+        return batch;
+    }
+
+    public float[] obtain(int batchSize) {
+        return obtain(batchSize, false);
+    }
+
+    // same as obtain() for packBytes()
+    public byte[] obtainBytes(int batchSize, boolean last) {
+
+        int length = batchSize * chipLength;
+
+        if (last) {
+            if (lastByteBatch.length != length) {
+                lastByteBatch = new byte[length];
+            }
+            return lastByteBatch;
+        }
+
+        if (byteBatch.length != length) {
+            byteBatch = new byte[length];
+        }
+        return byteBatch;
+    }
+
+    /*
+     *   Writes chip n of the batch. The chip is resized with INTER_CUBIC if it is not width x height and converted
+     *   to 8 bit if needed, the chip itself is not changed.
+     * */
+    public void pack(Mat chip, float[] dst, int n) {
+
+        int channels = read(chip);
+
+        pack(chipBuffer, channels, dst, n);
+    }
+
+    // same as pack(Mat, float[], int) without the conversion to float
+    public void packBytes(Mat chip, byte[] dst, int n) {
+
+        int channels = read(chip);
+
+        packBytes(chipBuffer, channels, dst, n);
+    }
+
+    // reads the chip into chipBuffer, returns the number of channels
+    private int read(Mat chip) {
+
+        Mat src = chip;
+
+        if (src.depth() != CvType.CV_8U) {
+            src.convertTo(converted, CvType.CV_8U);
+            src = converted;
+        }
+
+        if (src.cols() != width || src.rows() != height) {
+            Imgproc.resize(src, resized, new Size(width, height), 0, 0, Imgproc.INTER_CUBIC);
+            src = resized;
+        }
+
+        int channels = src.channels();
+        int pixels = width * height;
+
+        if (chipBuffer.length < pixels * channels) {
+            chipBuffer = new byte[pixels * channels];
+        }
+        src.get(0, 0, chipBuffer);
+
+        return channels;
+    }
+
+    /*
+     *   Writes chip n of the batch from interleaved 8 bit pixels that are already width x height.
+     * */
+    public void pack(byte[] pixels, int channels, float[] dst, int n) {
+
+        int pixelNum = width * height;
+        int offset = n * chipLength;
+
+        if (channels == 1) {
+            for (int j = 0; j < pixelNum; j++) {
+                float v = TO_FLOAT[pixels[j] & 0xFF];
+                dst[offset++] = v;
+                dst[offset++] = v;
+                dst[offset++] = v;
+            }
+        } else {
+            for (int j = 0; j < pixelNum; j++) {
+                int p = j * channels;
+                dst[offset++] = TO_FLOAT[pixels[p] & 0xFF];     //R
+                dst[offset++] = TO_FLOAT[pixels[p + 1] & 0xFF]; //G
+                dst[offset++] = TO_FLOAT[pixels[p + 2] & 0xFF]; //B
+            }
+        }
+    }
+
+    /*
+     *   Same as pack(byte[], int, float[], int) without the conversion to float, 3 channel pixels are copied as they are.
+     * */
+    public void packBytes(byte[] pixels, int channels, byte[] dst, int n) {
+
+        int pixelNum = width * height;
+        int offset = n * chipLength;
+
+        if (channels == 3) {
+            System.arraycopy(pixels, 0, dst, offset, chipLength);
+        } else if (channels == 1) {
+            for (int j = 0; j < pixelNum; j++) {
+                byte v = pixels[j];
+                dst[offset++] = v;
+                dst[offset++] = v;
+                dst[offset++] = v;
+            }
+        } else {
+            for (int j = 0; j < pixelNum; j++) {
+                int p = j * channels;
+                dst[offset++] = pixels[p];     //R
+                dst[offset++] = pixels[p + 1]; //G
+                dst[offset++] = pixels[p + 2]; //B
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void release() {
+        resized.release();
+        converted.release();
+    }
+
+}
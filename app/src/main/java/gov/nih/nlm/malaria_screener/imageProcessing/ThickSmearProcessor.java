@@ -35,6 +35,7 @@ import org.opencv.core.Rect;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 import gov.nih.nlm.malaria_screener.R;
 import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
@@ -62,6 +63,8 @@ public class ThickSmearProcessor {
 
     Context context;
 
+    CellScores cellScores;
+
     public ThickSmearProcessor(Context context, Mat oriSizeMat) {
 
         this.oriSizeMat = oriSizeMat;
@@ -122,36 +125,48 @@ public class ThickSmearProcessor {
 
         UtilsCustom.results.clear();
         UtilsCustom.confs_patch.clear();
+        UtilsCustom.probs_patch.clear();
 
         int patch_num = candi_patches.height()/inputSize;
 
+        TensorFlowClassifier tensorFlowClassifier = ModelRegistry.getThickClassifier(); // waits if it is still loading
+        batch_size = tensorFlowClassifier.getBatchSize(UtilsCustom.batch_size);
+
         int iteration = patch_num / batch_size;
         int lastBatchSize = patch_num % batch_size;
 
-        float[] floatPixels = new float[inputSize * inputSize * 3 * batch_size];
-        float[] floatPixels_last = new float[inputSize * inputSize * 3 * lastBatchSize];
+        TensorPacker tensorPacker = new TensorPacker(inputSize, inputSize);
 
-        // normal batches
-        for (int i = 0; i < iteration; i++) {
+        if (tensorFlowClassifier.acceptsBytes()) {
+            // quantized model, the patch pixels are fed without conversion to float
+            classifyBytes(tensorFlowClassifier, tensorPacker, iteration, lastBatchSize);
+        } else {
 
-            for (int n = 0; n < batch_size; n++) {
+            // normal batches
+            float[] floatPixels = tensorPacker.obtain(batch_size);
+            for (int i = 0; i < iteration; i++) {
+
+                for (int n = 0; n < batch_size; n++) {
 
-                floatPixels = putInPixels(i, n, batch_size, floatPixels);
+                    putInPixels(tensorPacker, i * batch_size + n, floatPixels, n);
 
+                }
+
+                tensorFlowClassifier.recongnize_batch_thick(floatPixels, batch_size);
             }
 
-            UtilsCustom.tensorFlowClassifier_thick.recongnize_batch_thick(floatPixels, batch_size);
-        }
+            // last batch
+            if (lastBatchSize != 0) {
+                float[] floatPixels_last = tensorPacker.obtain(lastBatchSize, true);
+                for (int n = 0; n < lastBatchSize; n++) {
 
-        // last batch
-        if (lastBatchSize != 0) {
-            for (int n = 0; n < lastBatchSize; n++) {
+                    putInPixels(tensorPacker, iteration * batch_size + n, floatPixels_last, n);
+                }
 
-                floatPixels_last = putInPixels(iteration, n, batch_size, floatPixels_last);
+                tensorFlowClassifier.recongnize_batch_thick(floatPixels_last, lastBatchSize);
             }
-
-            UtilsCustom.tensorFlowClassifier_thick.recongnize_batch_thick(floatPixels, batch_size);
         }
+        tensorPacker.release();
 
         // ------------------------------------ TF Lite -----------------------------------
         /*List<Bitmap> bitmapList = new ArrayList<>();
@@ -247,6 +262,13 @@ public class ThickSmearProcessor {
         }
         UtilsCustom.pos_confs_im.add(conf_im);
 
+        float[] probs = new float[patch_num];
+        for (int i = 0; i < patch_num; i++) {
+            probs[i] = UtilsCustom.probs_patch.get(i);
+        }
+        cellScores = new CellScores(CellScores.THICK, CellScores.DL, oriSizeMat.width(), oriSizeMat.height(), wbcCount,
+                Arrays.copyOf(x, patch_num), Arrays.copyOf(y, patch_num), probs);
+
         int[] res = new int[2];
 
         res[0] = parasiteCount;
@@ -279,27 +301,45 @@ public class ThickSmearProcessor {
         return chip_bitmap;
     }*/
 
-    private float[] putInPixels(int i, int n, int batch_size, float[] floatPixels) {
+    private void putInPixels(TensorPacker tensorPacker, int index, float[] floatPixels, int n) {
 
-        Bitmap chip_bitmap;
-        int[] intPixels = new int[inputSize * inputSize];
-
-        Rect rect = new Rect(0, (i * batch_size + n) * inputSize, inputSize, inputSize);
+        Rect rect = new Rect(0, index * inputSize, inputSize, inputSize);
         Mat temp = new Mat(candi_patches, rect);
 
-        temp.convertTo(temp, CvType.CV_8U);
-        chip_bitmap = Bitmap.createBitmap(temp.cols(), temp.rows(), Bitmap.Config.ARGB_8888);
-        Utils.matToBitmap(temp, chip_bitmap);
+        tensorPacker.pack(temp, floatPixels, n);
+        temp.release();
+    }
+
+    // same batches as the float path with 8 bit pixels, for quantized models
+    private void classifyBytes(TensorFlowClassifier tensorFlowClassifier, TensorPacker tensorPacker, int iteration, int lastBatchSize) {
+
+        byte[] bytePixels = tensorPacker.obtainBytes(batch_size, false);
+        for (int i = 0; i < iteration; i++) {
+
+            for (int n = 0; n < batch_size; n++) {
+                putInBytes(tensorPacker, i * batch_size + n, bytePixels, n);
+            }
+
+            tensorFlowClassifier.recongnize_batch_thick(bytePixels, batch_size);
+        }
 
-        chip_bitmap.getPixels(intPixels, 0, chip_bitmap.getWidth(), 0, 0, chip_bitmap.getWidth(), chip_bitmap.getHeight());
+        if (lastBatchSize != 0) {
+            byte[] bytePixels_last = tensorPacker.obtainBytes(lastBatchSize, true);
+            for (int n = 0; n < lastBatchSize; n++) {
+                putInBytes(tensorPacker, iteration * batch_size + n, bytePixels_last, n);
+            }
 
-        for (int j = 0; j < intPixels.length; ++j) {
-            floatPixels[n * inputSize * inputSize * 3 + j * 3 + 0] = ((intPixels[j] >> 16) & 0xFF) / 255.0f; //R
-            floatPixels[n * inputSize * inputSize * 3 + j * 3 + 1] = ((intPixels[j] >> 8) & 0xFF) / 255.0f;  //G
-            floatPixels[n * inputSize * inputSize * 3 + j * 3 + 2] = (intPixels[j] & 0xFF) / 255.0f;         //B
+            tensorFlowClassifier.recongnize_batch_thick(bytePixels_last, lastBatchSize);
         }
+    }
+
+    private void putInBytes(TensorPacker tensorPacker, int index, byte[] bytePixels, int n) {
 
-        return floatPixels;
+        Rect rect = new Rect(0, index * inputSize, inputSize, inputSize);
+        Mat temp = new Mat(candi_patches, rect);
+
+        tensorPacker.packBytes(temp, bytePixels, n);
+        temp.release();
     }
 
     /*OutputStream outStream = null;
@@ -333,6 +373,11 @@ public class ThickSmearProcessor {
         return imgFile;
     }
 
+    // centroids & infected probabilities of the processed image, for re-scoring at another threshold
+    public CellScores getCellScores() {
+        return cellScores;
+    }
+
     private File createImageFileExtra() throws IOException {
 
         File imgFile = new File(Environment.getExternalStorageDirectory(), "this_extra.png");
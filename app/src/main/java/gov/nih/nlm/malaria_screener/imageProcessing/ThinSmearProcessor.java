@@ -32,6 +32,7 @@ import android.util.Log;
 import android.view.Surface;
 
 import org.opencv.android.Utils;
+import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.imgcodecs.Imgcodecs;
 
@@ -43,6 +44,7 @@ import java.util.Collections;
 import gov.nih.nlm.malaria_screener.R;
 import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
 import gov.nih.nlm.malaria_screener.imageProcessing.Segmentation.MarkerBasedWatershed;
+import gov.nih.nlm.malaria_screener.imageProcessing.Segmentation.SegmentationContext;
 
 public class ThinSmearProcessor {
 
@@ -55,14 +57,19 @@ public class ThinSmearProcessor {
     Canvas canvas;
     Paint paint;
 
-    int[][] cellLocation;
+    CellTable cellTable;
     private int cellCount = 0;
     private int infectedCount = 0;
 
     Context context;
 
-    public ThinSmearProcessor(Context context){
+    private int preScreenResult = PreScreen.OK;
+
+    SegmentationContext segContext;
+
+    public ThinSmearProcessor(Context context, SegmentationContext segContext){
         this.context = context;
+        this.segContext = segContext;
     }
 
     public int[] processImage(Mat resizedMat, int orientation, float RV, boolean takenFromCam, File pictureFileCopy){
@@ -71,6 +78,17 @@ public class ThinSmearProcessor {
 
         this.pictureFileCopy = pictureFileCopy;
 
+        // black, blank or empty frames, only rejected before any heavy processing in PRE_SCREEN_REJECT mode
+        preScreenResult = PreScreen.OK;
+        if (UtilsCustom.pre_screen_mode != UtilsCustom.PRE_SCREEN_OFF) {
+            int result = PreScreen.run(resizedMat);
+            if (result != PreScreen.OK && UtilsCustom.pre_screen_mode == UtilsCustom.PRE_SCREEN_REJECT) {
+                preScreenResult = result;
+                resizedMat.release();
+                return null;
+            }
+        }
+
         // put resized image on canvas for drawing results after image processing
         UtilsCustom.canvasBitmap = Bitmap.createBitmap(resizedMat.width(), resizedMat.height(), Bitmap.Config.RGB_565);
         Utils.matToBitmap(resizedMat, UtilsCustom.canvasBitmap);
@@ -80,48 +98,90 @@ public class ThinSmearProcessor {
         paint.setStrokeWidth(5);
         paint.setColor(Color.BLACK);
 
-        MarkerBasedWatershed watershed = new MarkerBasedWatershed();
-        watershed.runMarkerBasedWatershed(resizedMat, RV);
+        if (UtilsCustom.seg_tiling_benchmark) {
+            MarkerBasedWatershed.runTilingBenchmark(segContext, resizedMat, RV, UtilsCustom.seg_tile_size > 0 ? UtilsCustom.seg_tile_size : 256);
+        }
+
+        Mat watershed_result = new Mat();
+        Mat output_WBCMask = new Mat();
+        boolean retake = false;
+
+        if (UtilsCustom.seg_mode == UtilsCustom.SEG_NATIVE && UtilsCustom.seg_tile_size > 0) {
+            Log.w(TAG, "seg_tile_size " + UtilsCustom.seg_tile_size + " is ignored, native segmentation doesn't tile");
+        }
+
+        if (UtilsCustom.seg_mode != UtilsCustom.SEG_JAVA) {
+
+            long startTime_native = System.currentTimeMillis();
+
+            retake = processThinImage(resizedMat.getNativeObjAddr(), RV, watershed_result.getNativeObjAddr(), output_WBCMask.getNativeObjAddr()) == 0;
+
+            Log.d(TAG, "Native Watershed Time: " + (System.currentTimeMillis() - startTime_native));
+        }
+
+        if (UtilsCustom.seg_mode != UtilsCustom.SEG_NATIVE) {
+
+            long startTime_java = System.currentTimeMillis();
+
+            MarkerBasedWatershed watershed = new MarkerBasedWatershed(segContext);
+            watershed.setTiling(UtilsCustom.seg_tile_size, UtilsCustom.seg_threads);
+            watershed.runMarkerBasedWatershed(resizedMat, RV);
+
+            Log.d(TAG, "Java Watershed Time: " + (System.currentTimeMillis() - startTime_java));
+
+            if (UtilsCustom.seg_mode == UtilsCustom.SEG_COMPARE) {
+                compareSegmentation(retake, watershed_result, output_WBCMask, watershed);
+            }
+
+            // the Java version is the reference, its results are used
+            watershed_result.release();
+            output_WBCMask.release();
+            retake = watershed.getRetakeFlag();
+            if (!retake) {
+                watershed_result = watershed.watershed_result;
+                output_WBCMask = watershed.output_WBCMask;
+            }
+            watershed = null;
+        }
         resizedMat.release();
 
         long endTime_w = System.currentTimeMillis();
         long totalTime_w = endTime_w - startTime_w;
         Log.d(TAG, "Watershed Time: " + totalTime_w);
 
-        if (watershed.getRetakeFlag()) { // take care of the case (avoid crash) when segmentation failed due to a plain black image was taken
+        if (retake) { // take care of the case (avoid crash) when segmentation failed due to a plain black image was taken
 
             Log.d(TAG, "here");
 
             return null;
         } else {
 
-            watershedMask = watershed.watershed_result.clone(); //when segmentation is successful, copy seg mask to later save it in worker thread
+            watershedMask = watershed_result.clone(); //when segmentation is successful, copy seg mask to later save it in worker thread
 
             long startTime_C = System.currentTimeMillis();
 
             Cells c = new Cells();
-            c.runCells(watershed.watershed_result, watershed.output_WBCMask);
+            c.runCells(watershed_result, output_WBCMask);
 
-            watershed = null;
             c = null;
 
             long endTime_C = System.currentTimeMillis();
             long totalTime_C = endTime_C - startTime_C;
             Log.d(TAG, "Cell Time: " + totalTime_C);
 
-            if (UtilsCustom.cellLocation.length == 0) {  //take care of the case(avoid crash) when segmentation passed but no cell chips extracted
+            if (UtilsCustom.cellTable.size() == 0) {  //take care of the case(avoid crash) when segmentation passed but no cell chips extracted
                 Log.d(TAG, "here1");
 
                 return null;
             } else {
 
-                cellLocation = UtilsCustom.cellLocation;
+                cellTable = UtilsCustom.cellTable;
 
                 //reset
                 cellCount = 0;
                 infectedCount = 0;
 
-                cellCount = UtilsCustom.cellCount;
+                cellCount = cellTable.size();
             }
 
             drawAll(orientation, RV, takenFromCam);
@@ -165,8 +225,8 @@ public class ThinSmearProcessor {
             ArrayList<Float> confs_pos_patch = new ArrayList<>();
             for (int i = 0; i < cellCount; i++) {
 
-                if (UtilsCustom.results.get(i) == 1) {
-                    confs_pos_patch.add(UtilsCustom.confs_patch.get(i));
+                if (cellTable.isInfected(i)) {
+                    confs_pos_patch.add(cellTable.getConfidence(i));
                 }
             }
 
@@ -179,49 +239,53 @@ public class ThinSmearProcessor {
 
     public void drawAll(int orientation, float RV, boolean takenFromCam) {
 
-        for (int i = 0; i < UtilsCustom.results.size(); i++) {
+        for (int i = 0; i < cellTable.getResultCount(); i++) {
 
-            if (UtilsCustom.results.get(i) == 0) {
+            float x = cellTable.getCenterCol(i) / RV;
+            float y = cellTable.getCenterRow(i) / RV;
+            float conf = cellTable.getConfidence(i);
+
+            if (cellTable.getResult(i) == CellTable.NORMAL) {
                 //infectedNum++;
                 /*paint.setColor(Color.BLUE); // not infected
-                canvas.drawCircle(UtilsCustom.cellLocation[i][1] / RV, UtilsCustom.cellLocation[i][0] / RV, 2, paint);*/
+                canvas.drawCircle(x, y, 2, paint);*/
                 //canvas.drawText(String.valueOf(infectedNum), cellLocation[i][1] - 7, cellLocation[i][0] - 7, paint);
-            } else if (UtilsCustom.results.get(i) == 1) {
+            } else if (cellTable.getResult(i) == CellTable.INFECTED) {
                 infectedCount++;
 
                 //draw color according to confidence level
-                if (UtilsCustom.confs_patch.get(i) > 0.5 && UtilsCustom.confs_patch.get(i) <= 0.6){             // level 1
+                if (conf > 0.5 && conf <= 0.6){             // level 1
                     paint.setColor(context.getResources().getColor(R.color.level_1));
-                } else if (UtilsCustom.confs_patch.get(i) > 0.6 && UtilsCustom.confs_patch.get(i) <= 0.7){      // level 2
+                } else if (conf > 0.6 && conf <= 0.7){      // level 2
                     paint.setColor(context.getResources().getColor(R.color.level_2));
-                } else if (UtilsCustom.confs_patch.get(i) > 0.7 && UtilsCustom.confs_patch.get(i) <= 0.8){      // level 3
+                } else if (conf > 0.7 && conf <= 0.8){      // level 3
                     paint.setColor(context.getResources().getColor(R.color.level_3));
-                } else if (UtilsCustom.confs_patch.get(i) > 0.8 && UtilsCustom.confs_patch.get(i) <= 0.9){      // level 4
+                } else if (conf > 0.8 && conf <= 0.9){      // level 4
                     paint.setColor(context.getResources().getColor(R.color.level_4));
-                } else if (UtilsCustom.confs_patch.get(i) > 0.9 && UtilsCustom.confs_patch.get(i) <= 1.0){      // level 4
+                } else if (conf > 0.9 && conf <= 1.0){      // level 4
                     paint.setColor(context.getResources().getColor(R.color.level_5));
                 } else {
                     paint.setColor(context.getResources().getColor(R.color.level_0));
                 }
 
-                canvas.drawCircle(UtilsCustom.cellLocation[i][1] / RV, UtilsCustom.cellLocation[i][0] / RV, 2, paint);
+                canvas.drawCircle(x, y, 2, paint);
 
                 if (takenFromCam) { // test this canvas rotate
                     canvas.save();
                     // draw texts according to phone rotation while image was taken
                     if (orientation == Surface.ROTATION_0) {                //portrait
-                        canvas.rotate(270, UtilsCustom.cellLocation[i][1] / RV, UtilsCustom.cellLocation[i][0] / RV);
+                        canvas.rotate(270, x, y);
                     } else if (orientation == Surface.ROTATION_270) {      //reverse landscape
-                        canvas.rotate(180, UtilsCustom.cellLocation[i][1] / RV, UtilsCustom.cellLocation[i][0] / RV);
+                        canvas.rotate(180, x, y);
                     } else if (orientation == Surface.ROTATION_180) {      //reverse portrait
-                        canvas.rotate(90, UtilsCustom.cellLocation[i][1] / RV, UtilsCustom.cellLocation[i][0] / RV);
+                        canvas.rotate(90, x, y);
                     } else if (orientation == Surface.ROTATION_90) {       //landscape
-                        canvas.rotate(0, UtilsCustom.cellLocation[i][1] / RV, UtilsCustom.cellLocation[i][0] / RV);
+                        canvas.rotate(0, x, y);
                     }
-                    canvas.drawText(String.valueOf(infectedCount), UtilsCustom.cellLocation[i][1] / RV - 7, UtilsCustom.cellLocation[i][0] / RV - 7, paint);
+                    canvas.drawText(String.valueOf(infectedCount), x - 7, y - 7, paint);
                     canvas.restore();
                 } else {
-                    canvas.drawText(String.valueOf(infectedCount), UtilsCustom.cellLocation[i][1] / RV - 7, UtilsCustom.cellLocation[i][0] / RV - 7, paint);
+                    canvas.drawText(String.valueOf(infectedCount), x - 7, y - 7, paint);
                 }
             }
 
@@ -280,6 +344,33 @@ public class ThinSmearProcessor {
         return imgFile;
     }
 
-}
+    // centroids & infected probabilities of the processed image, for re-scoring at another threshold
+    public CellScores getCellScores() {
+        return CellScores.fromCellTable(cellTable, UtilsCustom.whichClassifier, UtilsCustom.oriSizeMat.width(), UtilsCustom.oriSizeMat.height());
+    }
+
+    // reason code of PreScreen when it rejected the frame, OK otherwise
+    public int getPreScreenResult() {
+        return preScreenResult;
+    }
 
+    // log how far the native segmentation is from the Java reference
+    private void compareSegmentation(boolean retake_native, Mat watershed_native, Mat WBCMask_native, MarkerBasedWatershed watershed) {
+
+        if (retake_native || watershed.getRetakeFlag()) {
+            Log.d(TAG, "Segmentation compare, retake native: " + retake_native + ", Java: " + watershed.getRetakeFlag());
+            return;
+        }
 
+        Mat diff = new Mat();
+        Core.compare(watershed_native, watershed.watershed_result, diff, Core.CMP_NE);
+        int diff_watershed = Core.countNonZero(diff);
+        Core.compare(WBCMask_native, watershed.output_WBCMask, diff, Core.CMP_NE);
+        int diff_WBC = Core.countNonZero(diff);
+        diff.release();
+
+        Log.d(TAG, "Segmentation compare, different pixels watershed: " + diff_watershed + ", WBC mask: " + diff_WBC);
+    }
+
+    public native int processThinImage(long mat, float resizeValue, long watershedResult, long wbcMask);
+}
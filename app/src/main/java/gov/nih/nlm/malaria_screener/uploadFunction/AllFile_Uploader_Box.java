@@ -43,6 +43,7 @@ import java.io.File;
 import java.util.ArrayList;
 
 import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
+import gov.nih.nlm.malaria_screener.imageProcessing.CellScores;
 
 /* This class is to provide function that:
     1. create root folder in user's remote Box repository
@@ -159,6 +160,10 @@ public class AllFile_Uploader_Box extends AsyncTask<Void, Integer, Boolean> {
                         // iterate through images
                         for (final File imgFile: imageListing){
 
+                            if (CellScores.isScoreFile(imgFile)) {
+                                continue;
+                            }
+
                             Log.d(TAG, "imgFile: " + imgFile);
 
                             new Thread() {
@@ -37,6 +37,7 @@ import gov.nih.nlm.malaria_screener.R;
 import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
 import gov.nih.nlm.malaria_screener.database.ProgressBarEvent;
 import gov.nih.nlm.malaria_screener.database.ProgressDoneEvent;
+import gov.nih.nlm.malaria_screener.imageProcessing.CellScores;
 
 /*
 *
@@ -279,7 +280,7 @@ public class BoxUploadService extends Service {
 
                 for (final File imgFile : imageListing) {
 
-                    if (imgFile.toString().contains(imageNameOnly)) {
+                    if (imgFile.toString().contains(imageNameOnly) && !CellScores.isScoreFile(imgFile)) {
                         numOfFiles += 1;
                     }
                 }
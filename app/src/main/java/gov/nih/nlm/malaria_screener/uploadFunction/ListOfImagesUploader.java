@@ -41,6 +41,7 @@ import gov.nih.nlm.malaria_screener.custom.Utils.UtilsCustom;
 import gov.nih.nlm.malaria_screener.database.ProgressBarEvent;
 import gov.nih.nlm.malaria_screener.database.ProgressDoneEvent;
 import gov.nih.nlm.malaria_screener.database.UpdateListViewEvent;
+import gov.nih.nlm.malaria_screener.imageProcessing.CellScores;
 
 /*  <<Class Description>>
     This class is to provide function that:
@@ -158,7 +159,7 @@ public class ListOfImagesUploader {
                             break;
                         }
 
-                        if (imgFile.toString().contains(imageNameOnly)){
+                        if (imgFile.toString().contains(imageNameOnly) && !CellScores.isScoreFile(imgFile)){
 
                             // -------- 5. create new thread and upload each image file ------------
 
@@ -52,6 +52,7 @@ import java.util.Map;
 import gov.nih.nlm.malaria_screener.R;
 import gov.nih.nlm.malaria_screener.custom.Utils.UtilsMethods;
 import gov.nih.nlm.malaria_screener.database.UpdateListViewEvent;
+import gov.nih.nlm.malaria_screener.imageProcessing.CellScores;
 import gov.nih.nlm.malaria_screener.others.NavToPermissionActivity;
 import gov.nih.nlm.malaria_screener.uploadFunction.custom.CustomAdapter_Upload;
 import gov.nih.nlm.malaria_screener.uploadFunction.custom.RowItem_Folders;
@@ -289,7 +290,7 @@ public class UploadActivity extends AppCompatActivity implements CustomAdapter_U
                         int startIndex = imgFile.toString().lastIndexOf("/");
                         final String imageNameStr = imgFile.toString().substring(startIndex+1);
 
-                        if (!imageNameStr.contains("result") && !imageNameStr.contains("mask")) {
+                        if (!imageNameStr.contains("result") && !imageNameStr.contains("mask") && !CellScores.isScoreFile(imgFile)) {
                             imageNameList.add(imageNameStr);
                             folderNameList.add(folderNameStr);
 
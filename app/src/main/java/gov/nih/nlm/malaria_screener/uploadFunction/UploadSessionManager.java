@@ -40,6 +40,7 @@ import java.io.File;
 import java.util.ArrayList;
 
 import gov.nih.nlm.malaria_screener.R;
+import gov.nih.nlm.malaria_screener.imageProcessing.CellScores;
 
 public class UploadSessionManager implements BoxAuthentication.AuthListener{
 
@@ -189,7 +190,7 @@ public class UploadSessionManager implements BoxAuthentication.AuthListener{
 
                 for (final File imgFile : imageListing) {
 
-                    if (imgFile.toString().contains(imageNameOnly)) {
+                    if (imgFile.toString().contains(imageNameOnly) && !CellScores.isScoreFile(imgFile)) {
                         numOfFiles += 1;
                     }
                 }
@@ -0,0 +1,160 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CellScoresTest {
+
+    @Test
+    public void savesAndLoads() throws IOException {
+
+        CellScores scores = new CellScores(CellScores.THICK, CellScores.SVM, 4000, 3000, 17,
+                new int[]{10, 20, 30}, new int[]{11, 21, 31}, new float[]{0.25f, 0.5f, 0.75f});
+
+        File file = File.createTempFile("scores", CellScores.FILE_SUFFIX);
+        try {
+            scores.save(file);
+            CellScores loaded = CellScores.load(file);
+
+            assertEquals(CellScores.THICK, loaded.getType());
+            assertEquals(CellScores.SVM, loaded.getClassifier());
+            assertEquals(4000, loaded.getImageWidth());
+            assertEquals(3000, loaded.getImageHeight());
+            assertEquals(17, loaded.getWBCCount());
+            assertEquals(3, loaded.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals(scores.getX(i), loaded.getX(i));
+                assertEquals(scores.getY(i), loaded.getY(i));
+                assertEquals(scores.getProbability(i), loaded.getProbability(i), 0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBadMagic() throws IOException {
+
+        File file = File.createTempFile("scores", CellScores.FILE_SUFFIX);
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            out.writeInt(0x12345678);
+            out.writeInt(1);
+            out.close();
+
+            CellScores.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNewerVersion() throws IOException {
+
+        File file = File.createTempFile("scores", CellScores.FILE_SUFFIX);
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            out.writeInt(0x43454C53);
+            out.writeInt(2);
+            out.close();
+
+            CellScores.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFile() throws IOException {
+
+        File file = File.createTempFile("scores", CellScores.FILE_SUFFIX);
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            out.writeInt(0x43454C53);
+            out.writeInt(1);
+            out.writeInt(CellScores.THIN);
+            out.close();
+
+            CellScores.load(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void thresholdRuleFollowsClassifier() {
+
+        // SVM_Classifier calls a cell at Th infected, the DL processors call it normal
+        int[] xy = {0, 0, 0};
+        float[] probability = {0.3f, 0.5f, 0.7f};
+
+        CellScores svm = new CellScores(CellScores.THIN, CellScores.SVM, 100, 100, 0, xy, xy, probability);
+        CellScores dl = new CellScores(CellScores.THIN, CellScores.DL, 100, 100, 0, xy, xy, probability);
+
+        assertEquals(2, svm.getInfectedCount(0.5));
+        assertEquals(1, dl.getInfectedCount(0.5));
+        assertEquals(3, svm.getInfectedCount(0.3));
+        assertEquals(0, dl.getInfectedCount(0.7));
+    }
+
+    @Test
+    public void imageConfidenceIsMedianForThinAndMeanForThick() {
+
+        int[] xy = {0, 0, 0, 0};
+        float[] probability = {0.3f, 0.5f, 0.6f, 1.0f};
+
+        CellScores thin = new CellScores(CellScores.THIN, CellScores.DL, 100, 100, 0, xy, xy, probability);
+        CellScores thick = new CellScores(CellScores.THICK, CellScores.DL, 100, 100, 5, xy, xy, probability);
+
+        assertEquals(0.6f, thin.getImageConfidence(0.4), 1e-6f);
+        assertEquals(0.7f, thick.getImageConfidence(0.4), 1e-6f);
+        assertEquals(0, thin.getImageConfidence(1.0), 0);
+    }
+
+    @Test
+    public void copiesClassifiedCells() {
+
+        CellTable cellTable = new CellTable();
+        cellTable.add(1, 0, 0, 10, 20, 100);
+        cellTable.add(2, 50, 60, 10, 10, 100);
+        cellTable.add(3, 80, 80, 10, 10, 100); // no result yet, not copied
+        cellTable.addResult(CellTable.NORMAL, 0.8f, 0.2f);
+        cellTable.addResult(CellTable.INFECTED, 0.9f, 0.9f);
+
+        CellScores scores = CellScores.fromCellTable(cellTable, CellScores.SVM, 4000, 3000);
+
+        assertEquals(CellScores.THIN, scores.getType());
+        assertEquals(CellScores.SVM, scores.getClassifier());
+        assertEquals(2, scores.size());
+        assertArrayEquals(new int[]{5, 55}, new int[]{scores.getX(0), scores.getX(1)});
+        assertArrayEquals(new int[]{10, 65}, new int[]{scores.getY(0), scores.getY(1)});
+        assertEquals(0.9f, scores.getProbability(1), 0);
+    }
+
+}
@@ -0,0 +1,122 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class CellTableTest {
+
+    @Test
+    public void keepsRowsAndResultsWhenGrowing() {
+
+        CellTable cellTable = new CellTable();
+
+        for (int i = 0; i < 300; i++) {
+            cellTable.add(i + 1, i, 2 * i, 10, 20, 100 + i);
+            cellTable.addResult(i % 3 == 0 ? CellTable.INFECTED : CellTable.NORMAL, 0.5f, i / 300f);
+        }
+        cellTable.ensureCapacity(5000);
+
+        assertEquals(300, cellTable.size());
+        assertEquals(300, cellTable.getResultCount());
+        assertEquals(100, cellTable.getInfectedCount());
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i + 1, cellTable.getLabel(i));
+            assertEquals(2 * i + 10, cellTable.getCenterRow(i));
+            assertEquals(i + 5, cellTable.getCenterCol(i));
+            assertEquals(100 + i, cellTable.getArea(i));
+            assertEquals(i % 3 == 0, cellTable.isInfected(i));
+            assertEquals(i / 300f, cellTable.getProbability(i), 0);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsMoreResultsThanCells() {
+
+        CellTable cellTable = new CellTable();
+        cellTable.add(1, 0, 0, 10, 10, 100);
+        cellTable.addResult(CellTable.NORMAL, 0.9f, 0.1f);
+
+        cellTable.addResult(CellTable.NORMAL, 0.9f, 0.1f);
+    }
+
+    @Test
+    public void clearKeepsNoRows() {
+
+        CellTable cellTable = new CellTable();
+        cellTable.add(1, 0, 0, 10, 10, 100);
+        cellTable.addResult(CellTable.INFECTED, 0.9f, 0.9f);
+
+        cellTable.clear();
+        cellTable.add(2, 0, 0, 10, 10, 100);
+
+        assertEquals(1, cellTable.size());
+        assertEquals(0, cellTable.getResultCount());
+        assertEquals(2, cellTable.getLabel(0));
+        assertFalse(cellTable.isInfected(0));
+    }
+
+    /*
+     *   Cells added on this thread while a consumer thread adds the results, the way the inference pipeline uses
+     *   the table after ensureCapacity().
+     * */
+    @Test
+    public void addsResultsWhileAddingCells() throws InterruptedException {
+
+        final int cellNum = 20000;
+        final CellTable cellTable = new CellTable();
+        final BlockingQueue<Integer> rows = new ArrayBlockingQueue<Integer>(64);
+
+        cellTable.ensureCapacity(cellNum);
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < cellNum; i++) {
+                        int row = rows.take();
+                        cellTable.addResult(row % 2 == 0 ? CellTable.INFECTED : CellTable.NORMAL, 1, row);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+
+        for (int i = 0; i < cellNum; i++) {
+            rows.put(cellTable.add(i, i, i, 4, 4, 16));
+        }
+        consumer.join();
+
+        assertEquals(cellNum, cellTable.getResultCount());
+        assertEquals(cellNum / 2, cellTable.getInfectedCount());
+        for (int i = 0; i < cellNum; i++) {
+            assertEquals(i, cellTable.getProbability(i), 0);
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/*
+ *   HistogramFeatures against a per channel binning written out the way the per chip calcHist version did it:
+ *   normalize, take the range of the channel, then bin every foreground pixel on its own.
+ * */
+public class HistogramFeaturesTest {
+
+    private static final int BINS = HistogramFeatures.BINS;
+    private static final int LENGTH = HistogramFeatures.LENGTH;
+
+    @Test
+    public void binsSmallChip() {
+
+        // (0, 5, 5) is background, (1, 1, 1) falls in bin 5 of every channel, the max of every channel is left out
+        byte[] chip = {
+                1, 1, 2,
+                2, 1, 1,
+                0, 5, 5,
+                1, 2, 1,
+                1, 1, 1};
+
+        HistogramFeatures features = new HistogramFeatures();
+        features.reset(1);
+        features.compute(chip, 5, 0);
+
+        float[] expected = new float[LENGTH];
+        for (int c = 0; c < 3; c++) {
+            expected[c * BINS] = 2;
+            expected[c * BINS + 5] = 1;
+        }
+
+        assertArrayEquals(expected, row(features, 0), 0);
+    }
+
+    @Test
+    public void uniformChipGivesZeros() {
+
+        byte[] chip = new byte[30];
+        for (int i = 0; i < chip.length; i += 3) {
+            chip[i] = 40;
+            chip[i + 1] = 80;
+            chip[i + 2] = 120;
+        }
+
+        HistogramFeatures features = new HistogramFeatures();
+        features.reset(1);
+        features.compute(chip, 10, 0);
+
+        assertArrayEquals(new float[LENGTH], row(features, 0), 0);
+    }
+
+    @Test
+    public void backgroundChipGivesZeros() {
+
+        HistogramFeatures features = new HistogramFeatures();
+        features.reset(1);
+        features.compute(new byte[30], 10, 0);
+
+        assertArrayEquals(new float[LENGTH], row(features, 0), 0);
+    }
+
+    @Test
+    public void resetClearsPreviousCells() {
+
+        Random random = new Random(1);
+
+        HistogramFeatures features = new HistogramFeatures();
+        features.reset(3);
+        for (int row = 0; row < 3; row++) {
+            features.compute(randomChip(random, 100), 100, row);
+        }
+
+        features.reset(2);
+
+        assertEquals(2, features.getCellNum());
+        assertArrayEquals(new float[LENGTH], row(features, 0), 0);
+        assertArrayEquals(new float[LENGTH], row(features, 1), 0);
+    }
+
+    @Test
+    public void matchesReferenceOnRandomChips() {
+
+        Random random = new Random(1);
+
+        int cellNum = 200;
+        byte[][] chips = new byte[cellNum][];
+        int[] pixelNum = new int[cellNum];
+
+        HistogramFeatures features = new HistogramFeatures();
+        features.reset(cellNum);
+
+        // out of order and of varying size, so the buffers are reused and grown
+        for (int i = 0; i < cellNum; i++) {
+            int row = (i * 7) % cellNum;
+            pixelNum[row] = 1 + random.nextInt(44 * 44);
+            chips[row] = randomChip(random, pixelNum[row]);
+            features.compute(chips[row], pixelNum[row], row);
+        }
+
+        for (int row = 0; row < cellNum; row++) {
+            assertArrayEquals("cell " + row, histogramReference(chips[row], pixelNum[row]), row(features, row), 0);
+        }
+    }
+
+    private static float[] row(HistogramFeatures features, int row) {
+        return Arrays.copyOfRange(features.getTable(), row * LENGTH, (row + 1) * LENGTH);
+    }
+
+    // chip with about a quarter background pixels
+    private static byte[] randomChip(Random random, int pixelNum) {
+
+        byte[] chip = new byte[pixelNum * 3];
+        random.nextBytes(chip);
+        for (int p = 0; p < pixelNum; p++) {
+            if (random.nextInt(4) == 0) {
+                chip[p * 3] = 0;
+            }
+        }
+
+        return chip;
+    }
+
+    private static float[] histogramReference(byte[] chip, int pixelNum) {
+
+        float[] hist = new float[LENGTH];
+
+        for (int c = 0; c < 3; c++) {
+
+            float[] values = new float[pixelNum];
+            boolean[] foreground = new boolean[pixelNum];
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+
+            for (int p = 0; p < pixelNum; p++) {
+                int r = chip[p * 3] & 0xFF;
+                int g = chip[p * 3 + 1] & 0xFF;
+                int b = chip[p * 3 + 2] & 0xFF;
+                if (r == 0) {
+                    continue;
+                }
+                foreground[p] = true;
+                values[p] = (chip[p * 3 + c] & 0xFF) / (float) (r + g + b);
+                min = Math.min(min, values[p]);
+                max = Math.max(max, values[p]);
+            }
+
+            if (!(max > min)) {
+                continue;
+            }
+
+            // calcHist: bin floor(v * a + b) with a = bins / (max - min), b = -a * min, max excluded
+            double a = BINS / ((double) max - min);
+            double b = -a * min;
+            for (int p = 0; p < pixelNum; p++) {
+                if (!foreground[p]) {
+                    continue;
+                }
+                int bin = (int) Math.floor(values[p] * a + b);
+                if (bin >= 0 && bin < BINS) {
+                    hist[c * BINS + bin]++;
+                }
+            }
+        }
+
+        return hist;
+    }
+
+}
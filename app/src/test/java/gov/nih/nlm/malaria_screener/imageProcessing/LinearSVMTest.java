@@ -0,0 +1,160 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/*
+ *   The folded LinearSVM against the decision value of the Matlab model evaluated as written, one support vector
+ *   at a time.
+ * */
+public class LinearSVMTest {
+
+    private static final int LENGTH = HistogramFeatures.LENGTH;
+
+    @Test
+    public void matchesSupportVectorSum() {
+
+        Random random = new Random(1);
+
+        int svNum = 300;
+        int cellNum = 100;
+
+        double[][] sv = randomMatrix(random, svNum, LENGTH);
+        double[] alpha = randomVector(random, svNum);
+        double[] scaleFactor = randomVector(random, LENGTH);
+        double[] shift = randomVector(random, LENGTH);
+        double bias = random.nextGaussian();
+
+        double[] features = new double[cellNum * LENGTH];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = random.nextInt(200); // histogram counts
+        }
+
+        LinearSVM svm = LinearSVM.compile(sv, alpha, scaleFactor, shift, bias);
+
+        double[] f = new double[cellNum];
+        svm.score(features, cellNum, f);
+
+        assertEquals(LENGTH, svm.getLength());
+        for (int i = 0; i < cellNum; i++) {
+            double expected = decisionValue(sv, alpha, scaleFactor, shift, bias, features, i * LENGTH);
+            assertEquals("cell " + i, expected, f[i], 1e-9 * Math.max(1, Math.abs(expected)));
+        }
+    }
+
+    @Test
+    public void flatSupportVectorsMatch2D() {
+
+        Random random = new Random(2);
+
+        int svNum = 57;
+        int cellNum = 20;
+
+        double[][] sv = randomMatrix(random, svNum, LENGTH);
+        double[] alpha = randomVector(random, svNum);
+        double[] scaleFactor = randomVector(random, LENGTH);
+        double[] shift = randomVector(random, LENGTH);
+        double bias = random.nextGaussian();
+
+        double[] flat = new double[svNum * LENGTH];
+        for (int k = 0; k < svNum; k++) {
+            System.arraycopy(sv[k], 0, flat, k * LENGTH, LENGTH);
+        }
+
+        double[] features = randomVector(random, cellNum * LENGTH);
+
+        double[] f2D = new double[cellNum];
+        double[] fFlat = new double[cellNum];
+        LinearSVM.compile(sv, alpha, scaleFactor, shift, bias).score(features, cellNum, f2D);
+        LinearSVM.compile(flat, alpha, scaleFactor, shift, LENGTH, bias).score(features, cellNum, fFlat);
+
+        assertArrayEquals(f2D, fFlat, 0);
+    }
+
+    @Test
+    public void foldsShiftIntoBias() {
+
+        // one support vector: f(x) = 2 * <(1, 1), (x + (1, -3)) .* (0.5, 1)> + 1 = x0 + 2 * x1 - 4
+        LinearSVM svm = LinearSVM.compile(new double[][]{{1, 1}}, new double[]{2}, new double[]{0.5, 1}, new double[]{1, -3}, 1);
+
+        double[] f = new double[2];
+        svm.score(new double[]{0, 0, 3, 1}, 2, f);
+
+        assertEquals(-4, svm.getBias(), 0);
+        assertArrayEquals(new double[]{-4, 1}, f, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAlphaLengthMismatch() {
+        LinearSVM.compile(new double[3][LENGTH], new double[2], new double[LENGTH], new double[LENGTH], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFlatLengthMismatch() {
+        LinearSVM.compile(new double[3 * LENGTH - 1], new double[3], new double[LENGTH], new double[LENGTH], LENGTH, 0);
+    }
+
+    // sum_k alpha_k * <sv_k, (x + shift) .* scale> + bias
+    private static double decisionValue(double[][] sv, double[] alpha, double[] scaleFactor, double[] shift, double bias, double[] features, int offset) {
+
+        double[] x = new double[scaleFactor.length];
+        for (int j = 0; j < x.length; j++) {
+            x[j] = (features[offset + j] + shift[j]) * scaleFactor[j];
+        }
+
+        double sum = bias;
+        for (int k = 0; k < sv.length; k++) {
+            double dot = 0;
+            for (int j = 0; j < x.length; j++) {
+                dot += sv[k][j] * x[j];
+            }
+            sum += alpha[k] * dot;
+        }
+
+        return sum;
+    }
+
+    private static double[][] randomMatrix(Random random, int rows, int cols) {
+
+        double[][] m = new double[rows][];
+        for (int r = 0; r < rows; r++) {
+            m[r] = randomVector(random, cols);
+        }
+
+        return m;
+    }
+
+    private static double[] randomVector(Random random, int length) {
+
+        double[] v = new double[length];
+        for (int i = 0; i < length; i++) {
+            v[i] = random.nextGaussian();
+        }
+
+        return v;
+    }
+
+}
@@ -0,0 +1,184 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SVMModelFileTest {
+
+    private static final int LENGTH = HistogramFeatures.LENGTH;
+
+    @Test
+    public void writesAndReads() throws IOException {
+
+        SVMModelFile model = randomModel(new Random(1), new int[]{30, 7});
+
+        SVMModelFile read = SVMModelFile.read(ByteBuffer.wrap(writeBytes(model)));
+
+        assertEquals(2, read.getClassNum());
+        assertEquals(LENGTH, read.getLength());
+        for (int c = 0; c < 2; c++) {
+            assertEquals(model.getBias(c), read.getBias(c), 0);
+            assertArrayEquals(model.getAlpha(c), read.getAlpha(c), 0);
+            assertArrayEquals(model.getScaleFactor(c), read.getScaleFactor(c), 0);
+            assertArrayEquals(model.getShift(c), read.getShift(c), 0);
+
+            double[][] sv = model.getSupportVectors(c);
+            double[][] svRead = read.getSupportVectors(c);
+            assertEquals(sv.length, svRead.length);
+            for (int k = 0; k < sv.length; k++) {
+                assertArrayEquals(sv[k], svRead[k], 0);
+            }
+        }
+    }
+
+    @Test
+    public void compiledModelMatchesSupportVectors() throws IOException {
+
+        Random random = new Random(2);
+        SVMModelFile model = SVMModelFile.read(ByteBuffer.wrap(writeBytes(randomModel(random, new int[]{40}))));
+
+        double[] features = new double[LENGTH];
+        for (int j = 0; j < LENGTH; j++) {
+            features[j] = random.nextInt(100);
+        }
+
+        double[] f = new double[1];
+        double[] expected = new double[1];
+        model.compile(0).score(features, 1, f);
+        LinearSVM.compile(model.getSupportVectors(0), model.getAlpha(0), model.getScaleFactor(0), model.getShift(0), model.getBias(0))
+                .score(features, 1, expected);
+
+        assertEquals(expected[0], f[0], 1e-9 * Math.max(1, Math.abs(expected[0])));
+    }
+
+    @Test
+    public void rejectsEveryTruncation() throws IOException {
+
+        byte[] bytes = writeBytes(randomModel(new Random(3), new int[]{3, 2}));
+
+        for (int size = 0; size < bytes.length; size++) {
+            try {
+                SVMModelFile.read(ByteBuffer.wrap(Arrays.copyOf(bytes, size)));
+                fail("Read a file truncated to " + size + " of " + bytes.length + " bytes");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTrailingBytes() throws IOException {
+
+        byte[] bytes = writeBytes(randomModel(new Random(4), new int[]{3}));
+
+        SVMModelFile.read(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length + 4)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBadMagic() throws IOException {
+
+        byte[] bytes = writeBytes(randomModel(new Random(5), new int[]{3}));
+        bytes[0] ^= 1;
+
+        SVMModelFile.read(ByteBuffer.wrap(bytes));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherVersion() throws IOException {
+
+        byte[] bytes = writeBytes(randomModel(new Random(6), new int[]{3}));
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(4, SVMModelFile.VERSION + 1);
+
+        SVMModelFile.read(ByteBuffer.wrap(bytes));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNegativeSupportVectorNumber() throws IOException {
+
+        byte[] bytes = writeBytes(randomModel(new Random(7), new int[]{3}));
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(16, -1);
+
+        SVMModelFile.read(ByteBuffer.wrap(bytes));
+    }
+
+    private static byte[] writeBytes(SVMModelFile model) throws IOException {
+
+        File file = File.createTempFile("svm", ".svmb");
+        try {
+            model.write(file);
+
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                byte[] bytes = new byte[(int) in.length()];
+                in.readFully(bytes);
+                return bytes;
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static SVMModelFile randomModel(Random random, int[] svNum) {
+
+        int classNum = svNum.length;
+
+        double[] bias = new double[classNum];
+        float[][] alpha = new float[classNum][];
+        float[][] scaleFactor = new float[classNum][];
+        float[][] shift = new float[classNum][];
+        float[][] supportVector = new float[classNum][];
+
+        for (int c = 0; c < classNum; c++) {
+            bias[c] = random.nextGaussian();
+            alpha[c] = randomFloats(random, svNum[c]);
+            scaleFactor[c] = randomFloats(random, LENGTH);
+            shift[c] = randomFloats(random, LENGTH);
+            supportVector[c] = randomFloats(random, svNum[c] * LENGTH);
+        }
+
+        return new SVMModelFile(LENGTH, bias, alpha, scaleFactor, shift, supportVector);
+    }
+
+    private static float[] randomFloats(Random random, int length) {
+
+        float[] v = new float[length];
+        for (int i = 0; i < length; i++) {
+            v[i] = (float) random.nextGaussian();
+        }
+
+        return v;
+    }
+
+}
@@ -0,0 +1,135 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing.Segmentation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/*
+ *   MorphReconstruct.reconstruct() on arrays against the definition: dilate the marker with a 3x3 square and take
+ *   the minimum with the mask until nothing changes, which is what reconstructIterative() does with OpenCV.
+ * */
+public class MorphReconstructTest {
+
+    @Test
+    public void propagatesAlongTheMask() {
+
+        double[] mask = {1, 4, 4, 2, 6, 6, 1};
+        double[] marker = {0, 4, 0, 0, 0, 0, 0};
+
+        MorphReconstruct.reconstruct(marker, mask, 1, 7);
+
+        assertArrayEquals(new double[]{1, 4, 4, 2, 2, 2, 1}, marker, 0);
+    }
+
+    @Test
+    public void clipsMarkerAboveMask() {
+
+        double[] mask = {3, 3, 3, 3};
+        double[] marker = {9, 0, 0, 0};
+
+        MorphReconstruct.reconstruct(marker, mask, 2, 2);
+
+        assertArrayEquals(new double[]{3, 3, 3, 3}, marker, 0);
+    }
+
+    @Test
+    public void propagatesDiagonally() {
+
+        // 8-connectivity: the diagonal of 5s connects the corners, the 0s block everything else
+        double[] mask = {
+                5, 0, 0,
+                0, 5, 0,
+                0, 0, 5};
+        double[] marker = {
+                5, 0, 0,
+                0, 0, 0,
+                0, 0, 0};
+
+        MorphReconstruct.reconstruct(marker, mask, 3, 3);
+
+        assertArrayEquals(mask, marker, 0);
+    }
+
+    @Test
+    public void matchesIterativeOnRandomImages() {
+
+        Random random = new Random(1);
+
+        for (int t = 0; t < 500; t++) {
+
+            int rows = 1 + random.nextInt(24);
+            int cols = 1 + random.nextInt(24);
+            int levels = 2 + random.nextInt(8); // few levels give plateaus
+
+            double[] mask = new double[rows * cols];
+            double[] marker = new double[rows * cols];
+            for (int p = 0; p < mask.length; p++) {
+                mask[p] = random.nextInt(levels);
+                marker[p] = random.nextInt(10) == 0 ? random.nextInt(levels + 2) : 0;
+            }
+
+            double[] expected = reconstructIterative(marker, mask, rows, cols);
+
+            MorphReconstruct.reconstruct(marker, mask, rows, cols);
+
+            assertArrayEquals(rows + "x" + cols + ", image " + t, expected, marker, 0);
+        }
+    }
+
+    private static double[] reconstructIterative(double[] marker, double[] mask, int rows, int cols) {
+
+        double[] J = new double[marker.length];
+        for (int p = 0; p < J.length; p++) {
+            J[p] = Math.min(marker[p], mask[p]);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+
+            double[] dilated = new double[J.length];
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    double max = J[r * cols + c];
+                    for (int rr = Math.max(0, r - 1); rr <= Math.min(rows - 1, r + 1); rr++) {
+                        for (int cc = Math.max(0, c - 1); cc <= Math.min(cols - 1, c + 1); cc++) {
+                            max = Math.max(max, J[rr * cols + cc]);
+                        }
+                    }
+                    dilated[r * cols + c] = Math.min(max, mask[r * cols + c]);
+                }
+            }
+
+            for (int p = 0; p < J.length; p++) {
+                if (dilated[p] != J[p]) {
+                    changed = true;
+                }
+            }
+            J = dilated;
+        }
+
+        return J;
+    }
+
+}
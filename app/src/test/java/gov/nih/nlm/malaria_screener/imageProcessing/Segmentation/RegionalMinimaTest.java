@@ -0,0 +1,224 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing.Segmentation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/*
+ *   RegionalMinima.label() on arrays: plateaus, borders, the zero background, and random images against a direct
+ *   evaluation of the definition.
+ * */
+public class RegionalMinimaTest {
+
+    @Test
+    public void labelsPlateauAsOneMinimum() {
+
+        float[] im = {
+                5, 5, 5, 5,
+                5, 2, 2, 5,
+                5, 2, 2, 5,
+                5, 5, 5, 5};
+
+        RegionalMinima regionalMinima = new RegionalMinima();
+        float[] labels = regionalMinima.label(im, 4, 4);
+
+        assertEquals(1, regionalMinima.getCount());
+        assertArrayEquals(new float[]{
+                0, 0, 0, 0,
+                0, 1, 1, 0,
+                0, 1, 1, 0,
+                0, 0, 0, 0}, labels, 0);
+    }
+
+    @Test
+    public void plateauNextToLowerPixelIsNoMinimum() {
+
+        // the plateau of 2s touches the 1 diagonally
+        float[] im = {
+                5, 5, 5, 5,
+                5, 2, 2, 5,
+                5, 2, 2, 5,
+                5, 5, 5, 1};
+
+        RegionalMinima regionalMinima = new RegionalMinima();
+        float[] labels = regionalMinima.label(im, 4, 4);
+
+        assertEquals(1, regionalMinima.getCount());
+        assertEquals(0, labels[5], 0);
+        assertEquals(1, labels[15], 0);
+    }
+
+    @Test
+    public void findsMinimaOnTheBorder() {
+
+        float[] im = {
+                1, 3, 3, 3, 2,
+                3, 4, 4, 4, 3,
+                3, 4, 4, 4, 3,
+                2, 2, 4, 3, 1};
+
+        RegionalMinima regionalMinima = new RegionalMinima();
+        float[] labels = regionalMinima.label(im, 4, 5);
+
+        assertEquals(4, regionalMinima.getCount());
+        assertArrayEquals(new float[]{
+                1, 0, 0, 0, 2,
+                0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0,
+                3, 3, 0, 0, 4}, labels, 0);
+    }
+
+    @Test
+    public void skipsZeroBackground() {
+
+        // the 3 is lower than its blob but touches the background, the 0s are never a minimum
+        float[] im = {
+                0, 0, 0, 0, 0,
+                0, 4, 4, 4, 0,
+                0, 4, 2, 4, 0,
+                0, 4, 4, 3, 0,
+                0, 0, 0, 0, 0};
+
+        RegionalMinima regionalMinima = new RegionalMinima();
+        float[] labels = regionalMinima.label(im, 5, 5);
+
+        assertEquals(1, regionalMinima.getCount());
+        assertEquals(1, labels[12], 0);
+        assertEquals(0, labels[18], 0);
+        assertEquals(0, labels[0], 0);
+    }
+
+    @Test
+    public void flatImageIsOneMinimum() {
+
+        float[] im = {7, 7, 7, 7, 7, 7};
+
+        RegionalMinima regionalMinima = new RegionalMinima();
+        float[] labels = regionalMinima.label(im, 2, 3);
+
+        assertEquals(1, regionalMinima.getCount());
+        assertArrayEquals(new float[]{1, 1, 1, 1, 1, 1}, labels, 0);
+    }
+
+    @Test
+    public void matchesDefinitionOnRandomImages() {
+
+        Random random = new Random(1);
+
+        for (int t = 0; t < 500; t++) {
+
+            int rows = 1 + random.nextInt(20);
+            int cols = 1 + random.nextInt(20);
+            int levels = 2 + random.nextInt(6); // few levels give plateaus, 0 is background
+
+            float[] im = new float[rows * cols];
+            for (int p = 0; p < im.length; p++) {
+                im[p] = random.nextInt(levels);
+            }
+
+            RegionalMinima regionalMinima = new RegionalMinima();
+            float[] labels = regionalMinima.label(im, rows, cols);
+
+            int[] count = new int[1];
+            float[] expected = labelNaive(im, rows, cols, count);
+
+            assertArrayEquals(rows + "x" + cols + ", image " + t, expected, labels, 0);
+            assertEquals(count[0], regionalMinima.getCount());
+        }
+    }
+
+    /*
+     *   Plateaus by propagating the smallest pixel index until stable, so they are numbered in raster order of their
+     *   first pixel like label() does, then every plateau without a lower neighbour is a minimum.
+     * */
+    private static float[] labelNaive(float[] im, int rows, int cols, int[] count) {
+
+        int length = rows * cols;
+
+        int[] plateau = new int[length];
+        for (int p = 0; p < length; p++) {
+            plateau[p] = p;
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int p = 0; p < length; p++) {
+                for (int n : neighbours(p, rows, cols)) {
+                    if (im[n] == im[p] && plateau[n] < plateau[p]) {
+                        plateau[p] = plateau[n];
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        boolean[] hasLower = new boolean[length];
+        for (int p = 0; p < length; p++) {
+            for (int n : neighbours(p, rows, cols)) {
+                if (im[n] < im[p]) {
+                    hasLower[plateau[p]] = true;
+                }
+            }
+        }
+
+        float[] labels = new float[length];
+        float[] plateauLabel = new float[length];
+        count[0] = 0;
+        for (int p = 0; p < length; p++) {
+            int first = plateau[p];
+            if (im[p] == 0 || hasLower[first]) {
+                continue;
+            }
+            if (first == p) {
+                plateauLabel[p] = ++count[0];
+            }
+            labels[p] = plateauLabel[first];
+        }
+
+        return labels;
+    }
+
+    private static int[] neighbours(int p, int rows, int cols) {
+
+        int r = p / cols;
+        int c = p % cols;
+
+        int[] n = new int[8];
+        int size = 0;
+        for (int rr = Math.max(0, r - 1); rr <= Math.min(rows - 1, r + 1); rr++) {
+            for (int cc = Math.max(0, c - 1); cc <= Math.min(cols - 1, c + 1); cc++) {
+                if (rr != r || cc != c) {
+                    n[size++] = rr * cols + cc;
+                }
+            }
+        }
+
+        int[] result = new int[size];
+        System.arraycopy(n, 0, result, 0, size);
+        return result;
+    }
+
+}
@@ -0,0 +1,108 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package gov.nih.nlm.malaria_screener.imageProcessing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SlideScoresTest {
+
+    private File slideDir;
+
+    @Before
+    public void setUp() throws IOException {
+
+        slideDir = File.createTempFile("slide", "");
+        slideDir.delete();
+        slideDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+
+        File[] files = slideDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        slideDir.delete();
+    }
+
+    @Test
+    public void loadsAndRescoresSlide() throws IOException {
+
+        int[] xy = {0, 0, 0, 0};
+
+        new CellScores(CellScores.THIN, CellScores.DL, 100, 100, 0, xy, xy, new float[]{0.2f, 0.4f, 0.6f, 0.8f})
+                .save(CellScores.getFile(slideDir, "image_1"));
+        new CellScores(CellScores.THIN, CellScores.SVM, 100, 100, 0, new int[2], new int[2], new float[]{0.5f, 0.9f})
+                .save(CellScores.getFile(slideDir, "image_0"));
+
+        // other files in the folder are skipped, unreadable score files too
+        new FileOutputStream(new File(slideDir, "image_0.png")).close();
+        new FileOutputStream(CellScores.getFile(slideDir, "image_2")).close();
+
+        SlideScores slideScores = SlideScores.load(slideDir);
+
+        assertEquals(2, slideScores.getImageNum());
+        assertEquals("image_0", slideScores.getImageName(0));
+        assertEquals("image_1", slideScores.getImageName(1));
+        assertFalse(slideScores.isThick());
+
+        slideScores.rescore(0.5);
+
+        assertEquals(2, slideScores.getInfectedCount(0));
+        assertEquals(2, slideScores.getInfectedCount(1));
+        assertEquals(4, slideScores.getInfectedTotal());
+        assertEquals(6, slideScores.getCellTotal());
+
+        slideScores.rescore(0.7);
+
+        assertEquals(1, slideScores.getInfectedCount(0));
+        assertEquals(1, slideScores.getInfectedCount(1));
+        assertEquals((int) (2 * 0.4 * 125.6), slideScores.getParasitemia(0.4));
+    }
+
+    @Test
+    public void countsWBCsOfThickSmears() throws IOException {
+
+        new CellScores(CellScores.THICK, CellScores.DL, 100, 100, 25, new int[3], new int[3], new float[]{0.6f, 0.7f, 0.1f})
+                .save(CellScores.getFile(slideDir, "image_0"));
+
+        SlideScores slideScores = SlideScores.load(slideDir);
+        slideScores.rescore(0.5);
+
+        assertTrue(slideScores.isThick());
+        assertEquals(25, slideScores.getCellTotal());
+        assertEquals(2, slideScores.getInfectedTotal());
+        assertEquals(80, slideScores.getParasitemia(0.4));
+    }
+
+}
@@ -0,0 +1,115 @@
+/* Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+
+This software was developed under contract funded by the National Library of Medicine,
+which is part of the National Institutes of Health, an agency of the Department of Health and Human
+Services, United States Government.
+
+Licensed under GNU General Public License v3.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    https://www.gnu.org/licenses/gpl-3.0.html
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import gov.nih.nlm.malaria_screener.imageProcessing.SVMModelFile;
+
+/*
+ *   Converts the Matlab text export of the thin smear SVM (res/raw) to the binary model file read by SVMModelFile.
+ *   Desktop tool, not part of the app: tools/convert_svm_model.sh compiles it against the app's SVMModelFile and
+ *   rebuilds assets/svm_thin.svmb with the biases of SVM_Classifier.readSVMTextFile(), which are not part of the
+ *   text export.
+ * */
+public class SVMModelConverter {
+
+    // text files of each class, same names as in SVM_Classifier.readSVMTextFile()
+    private static final String[] SUPPORT_VECTOR = {"supportvector", "supportvector1"};
+    private static final String[] ALPHA = {"alpha", "alpha1"};
+    private static final String[] SCALE_FACTOR = {"scalefactor", "scalefactor1"};
+    private static final String[] SHIFT = {"shift", "shift1"};
+
+    private static final int LENGTH = 48;
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 2 + SUPPORT_VECTOR.length) {
+            System.err.println("Usage: SVMModelConverter <raw dir> <output .svmb> <bias class 1> <bias class 2>");
+            System.exit(1);
+        }
+
+        File rawDir = new File(args[0]);
+        File output = new File(args[1]);
+
+        int classNum = SUPPORT_VECTOR.length;
+
+        double[] bias = new double[classNum];
+        float[][] alpha = new float[classNum][];
+        float[][] scaleFactor = new float[classNum][];
+        float[][] shift = new float[classNum][];
+        float[][] supportVector = new float[classNum][];
+
+        for (int c = 0; c < classNum; c++) {
+
+            bias[c] = Double.parseDouble(args[2 + c]);
+            alpha[c] = readValues(new File(rawDir, ALPHA[c] + ".txt"), 1);
+            scaleFactor[c] = readValues(new File(rawDir, SCALE_FACTOR[c] + ".txt"), 1);
+            shift[c] = readValues(new File(rawDir, SHIFT[c] + ".txt"), 1);
+            supportVector[c] = readValues(new File(rawDir, SUPPORT_VECTOR[c] + ".txt"), LENGTH);
+
+            if (scaleFactor[c].length != LENGTH || shift[c].length != LENGTH || supportVector[c].length != alpha[c].length * LENGTH) {
+                throw new IOException("Inconsistent model files for class " + (c + 1));
+            }
+
+            System.out.println("class " + (c + 1) + ": " + alpha[c].length + " support vectors, bias " + bias[c]);
+        }
+
+        new SVMModelFile(LENGTH, bias, alpha, scaleFactor, shift, supportVector).write(output);
+
+        System.out.println("written " + output + ", " + output.length() + " bytes");
+    }
+
+    // one row per line, values separated by spaces
+    private static float[] readValues(File file, int valuesPerLine) throws IOException {
+
+        ArrayList<String> lines = new ArrayList<>();
+
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line.trim());
+                }
+            }
+        } finally {
+            br.close();
+        }
+
+        float[] values = new float[lines.size() * valuesPerLine];
+        for (int i = 0; i < lines.size(); i++) {
+
+            String[] temp = lines.get(i).split(" +");
+            if (temp.length < valuesPerLine) {
+                throw new IOException(file + ", line " + (i + 1) + ": " + temp.length + " values, " + valuesPerLine + " expected");
+            }
+
+            for (int j = 0; j < valuesPerLine; j++) {
+                values[i * valuesPerLine + j] = (float) Double.parseDouble(temp[j]);
+            }
+        }
+
+        return values;
+    }
+
+}
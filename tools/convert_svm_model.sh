@@ -0,0 +1,24 @@
+#!/bin/sh
+# Rebuilds app/src/main/assets/svm_thin.svmb from the Matlab text export of the thin smear SVM in app/src/main/res/raw.
+#
+# The biases are not part of the text export, they are the values hard coded in SVM_Classifier.readSVMTextFile().
+# SVMModelFile refers to android.content.res.AssetManager, so android.jar has to be on the classpath: set ANDROID_JAR
+# or ANDROID_HOME.
+#
+#     tools/convert_svm_model.sh
+
+set -e
+
+cd "$(dirname "$0")/.."
+
+ANDROID_JAR=${ANDROID_JAR:-$ANDROID_HOME/platforms/android-29/android.jar}
+SRC=app/src/main/java/gov/nih/nlm/malaria_screener/imageProcessing
+
+BIAS_1=0.565332615798344
+BIAS_2=-0.565349892568091
+
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -cp "$ANDROID_JAR" -d "$OUT" $SRC/SVMModelFile.java $SRC/LinearSVM.java tools/SVMModelConverter.java
+java -cp "$OUT:$ANDROID_JAR" SVMModelConverter app/src/main/res/raw app/src/main/assets/svm_thin.svmb $BIAS_1 $BIAS_2
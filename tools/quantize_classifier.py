@@ -0,0 +1,229 @@
+#!/usr/bin/env python3
+# Copyright 2020 The Malaria Screener Authors. All Rights Reserved.
+#
+# Licensed under GNU General Public License v3.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     https://www.gnu.org/licenses/gpl-3.0.html
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+"""Post-training INT8 quantization of the thin & thick smear classifiers.
+
+Converts a frozen graph from app/src/main/assets to a full integer .tflite model with a uint8 input and float output,
+the model QuantizedTFLiteBackend loads. The calibration uses cell chips (thin smear) or patches (thick smear) stored
+on disk, as the app cuts them: RGB, already masked, any size (they are resized to the network input size with
+INTER_AREA like ChipExtractor.getResizedChipPixels).
+
+The chips are split in a calibration set and a held out check set. The quantized model is run on the check set next to
+the float graph and the per-cell labels are compared at every threshold the sensitivity setting can give (Th and
+Th_thick are (100 - level) / 100, level 0..100, see CameraActivity), the worst threshold decides. The model is only
+written if that worst agreement is at least --min-agreement, otherwise nothing is written and the script exits with
+status 1, so it can gate a build.
+The 'check' command runs the same comparison for an existing .tflite file.
+
+    python3 tools/quantize_classifier.py export --model thin --chips chips/thin
+    python3 tools/quantize_classifier.py export --model thick --chips chips/thick --min-agreement 0.985
+    python3 tools/quantize_classifier.py check --model thin --chips chips/thin \\
+        --tflite app/src/main/assets/malaria_thinsmear_44_retrainSudan_20P_4000C_separate_int8.tflite
+
+Needs tensorflow >= 2.3, numpy & opencv-python.
+"""
+
+import argparse
+import os
+import random
+import sys
+import tempfile
+
+import cv2
+import numpy as np
+
+ASSETS = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..', 'app', 'src', 'main', 'assets')
+
+# same models as ModelRegistry, infected is the index of the infected class in the output
+MODELS = {
+    'thin': dict(graph='malaria_thinsmear_44_retrainSudan_20P_4000C_separate.pb', input='conv2d_1_input',
+                 output='dense_1/Softmax', size=44, infected=0,
+                 tflite='malaria_thinsmear_44_retrainSudan_20P_4000C_separate_int8.tflite'),
+    'thick': dict(graph='ThickSmearModel.h5.pb', input='conv2d_1_input', output='output_node0', size=44, infected=1,
+                  tflite='ThickSmearModel_int8.tflite'),
+}
+
+IMAGE_EXTENSIONS = ('.png', '.jpg', '.jpeg', '.bmp')
+
+
+def load_chips(chip_dir, size, limit):
+    """Returns the chips as uint8 N x size x size x 3 RGB, in file name order."""
+    names = sorted(os.path.join(root, f) for root, _, files in os.walk(chip_dir) for f in files
+                   if f.lower().endswith(IMAGE_EXTENSIONS))
+    if limit:
+        names = names[:limit]
+    if not names:
+        sys.exit('No chips in ' + chip_dir)
+
+    chips = np.empty((len(names), size, size, 3), np.uint8)
+    for i, name in enumerate(names):
+        bgr = cv2.imread(name, cv2.IMREAD_COLOR)
+        if bgr is None:
+            sys.exit('Cannot read ' + name)
+        if bgr.shape[:2] != (size, size):
+            bgr = cv2.resize(bgr, (size, size), interpolation=cv2.INTER_AREA)
+        chips[i] = cv2.cvtColor(bgr, cv2.COLOR_BGR2RGB)
+    return chips
+
+
+def split(chips, calibration_num, seed):
+    """Disjoint calibration & check sets, the check set is never seen by the converter."""
+    index = list(range(len(chips)))
+    random.Random(seed).shuffle(index)
+    calibration_num = min(calibration_num, len(chips) // 2)
+    return chips[sorted(index[:calibration_num])], chips[sorted(index[calibration_num:])]
+
+
+def convert(graph, model, calibration):
+    import tensorflow as tf
+
+    size = model['size']
+    converter = tf.compat.v1.lite.TFLiteConverter.from_frozen_graph(
+        graph, [model['input']], [model['output']], input_shapes={model['input']: [1, size, size, 3]})
+
+    def representative_dataset():
+        # the full 0..1 range first, so that the input is quantized with scale 1/255 and zero point 0 and the app can
+        # feed the chip pixels as they are
+        yield [np.linspace(0, 1, size * size * 3, dtype=np.float32).reshape(1, size, size, 3)]
+        for chip in calibration:
+            yield [chip[np.newaxis].astype(np.float32) / 255.0]
+
+    converter.optimizations = [tf.lite.Optimize.DEFAULT]
+    converter.representative_dataset = representative_dataset
+    converter.target_spec.supported_ops = [tf.lite.OpsSet.TFLITE_BUILTINS_INT8]
+    converter.inference_input_type = tf.uint8
+    converter.inference_output_type = tf.float32
+    return converter.convert()
+
+
+def run_float(graph, model, chips, batch_size=64):
+    import tensorflow as tf
+
+    graph_def = tf.compat.v1.GraphDef()
+    with open(graph, 'rb') as f:
+        graph_def.ParseFromString(f.read())
+
+    with tf.Graph().as_default() as g:
+        tf.compat.v1.import_graph_def(graph_def, name='')
+        x = g.get_tensor_by_name(model['input'] + ':0')
+        y = g.get_tensor_by_name(model['output'] + ':0')
+        with tf.compat.v1.Session(graph=g) as session:
+            outputs = [session.run(y, {x: chips[i:i + batch_size].astype(np.float32) / 255.0})
+                       for i in range(0, len(chips), batch_size)]
+    return np.concatenate(outputs)
+
+
+def run_quantized(tflite_model, chips):
+    import tensorflow as tf
+
+    interpreter = tf.lite.Interpreter(model_content=tflite_model)
+    input_detail = interpreter.get_input_details()[0]
+    output_detail = interpreter.get_output_details()[0]
+
+    scale, zero_point = input_detail['quantization']
+    if input_detail['dtype'] != np.uint8:
+        sys.exit('Input is not uint8: ' + str(input_detail['dtype']))
+    if abs(scale * 255 - 1) > 1e-3 or zero_point != 0:
+        print('Input scale %g, zero point %d: the app feeds the chips through a lookup table' % (scale, zero_point))
+
+    interpreter.resize_tensor_input(input_detail['index'], [1] + list(chips.shape[1:]))
+    interpreter.allocate_tensors()
+
+    outputs = []
+    for chip in chips:
+        # same mapping as QuantizedTFLiteBackend
+        q = np.clip(np.round(chip.astype(np.float32) / 255.0 / scale) + zero_point, 0, 255).astype(np.uint8)
+        interpreter.set_tensor(input_detail['index'], q[np.newaxis])
+        interpreter.invoke()
+        output = interpreter.get_tensor(output_detail['index'])[0].astype(np.float32)
+        if output_detail['dtype'] != np.float32:
+            out_scale, out_zero_point = output_detail['quantization']
+            output = (output - out_zero_point) * out_scale
+        outputs.append(output)
+    return np.array(outputs)
+
+
+def agreement(graph, model, tflite_model, chips, thresholds):
+    """Lowest fraction of chips, over the thresholds, with the same infected / normal label from the float graph and
+    the quantized model. A cell is infected when its probability is above the threshold, like in TensorFlowClassifier."""
+    infected = model['infected']
+    p_float = run_float(graph, model, chips)[:, infected]
+    p_quantized = run_quantized(tflite_model, chips)[:, infected]
+
+    print('Check chips: %d, max probability difference: %.4f' % (len(chips), np.abs(p_float - p_quantized).max()))
+
+    worst, worst_threshold = 1.0, None
+    for threshold in thresholds:
+        labels_float = p_float > threshold
+        labels_quantized = p_quantized > threshold
+        agree = float(np.mean(labels_float == labels_quantized))
+
+        if threshold == 0.5 or agree < worst:
+            print('Threshold %.2f, infected float: %d, infected quantized: %d, label agreement: %.4f'
+                  % (threshold, labels_float.sum(), labels_quantized.sum(), agree))
+        if agree < worst:
+            worst, worst_threshold = agree, threshold
+
+    print('Worst label agreement: %.4f at threshold %s' % (worst, 'any' if worst_threshold is None else
+                                                           '%.2f' % worst_threshold))
+    return worst
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('command', choices=['export', 'check'])
+    parser.add_argument('--model', choices=sorted(MODELS), required=True)
+    parser.add_argument('--chips', required=True, help='directory of stored chips, searched recursively')
+    parser.add_argument('--graph', help='frozen float graph, default: the app asset')
+    parser.add_argument('--tflite', help='export: output file, default: the app asset; check: model to check')
+    parser.add_argument('--min-agreement', type=float, default=0.99,
+                        help='lowest accepted fraction of check chips with the float label (default 0.99)')
+    parser.add_argument('--thresholds', type=float, nargs='+', default=[level / 100.0 for level in range(101)],
+                        help='infected thresholds to check, default: all of the sensitivity setting, 0.00 to 1.00')
+    parser.add_argument('--calibration', type=int, default=500, help='chips used for calibration (default 500)')
+    parser.add_argument('--limit', type=int, default=0, help='use only the first chips, 0 for all')
+    parser.add_argument('--seed', type=int, default=0)
+    args = parser.parse_args()
+
+    model = MODELS[args.model]
+    graph = args.graph or os.path.join(ASSETS, model['graph'])
+    output = args.tflite or os.path.join(ASSETS, model['tflite'])
+
+    chips = load_chips(args.chips, model['size'], args.limit)
+
+    if args.command == 'check':
+        with open(output, 'rb') as f:
+            agree = agreement(graph, model, f.read(), chips, args.thresholds)
+    else:
+        calibration, check = split(chips, args.calibration, args.seed)
+        print('Calibration chips: %d, check chips: %d' % (len(calibration), len(check)))
+
+        tflite_model = convert(graph, model, calibration)
+        agree = agreement(graph, model, tflite_model, check, args.thresholds)
+
+        if agree >= args.min_agreement:
+            # write next to the output & rename, so that a failed write never leaves a partial model in assets
+            fd, temp = tempfile.mkstemp(dir=os.path.dirname(os.path.abspath(output)))
+            with os.fdopen(fd, 'wb') as f:
+                f.write(tflite_model)
+            os.replace(temp, output)
+            print('Wrote ' + output)
+
+    if agree < args.min_agreement:
+        print('Rejected: worst agreement %.4f is below %.4f' % (agree, args.min_agreement))
+        sys.exit(1)
+
+
+if __name__ == '__main__':
+    main()